@@ -0,0 +1,84 @@
+package edu.cmu.pandaa.bench;
+
+import edu.cmu.pandaa.header.MultiHeader.MultiFrame;
+import edu.cmu.pandaa.header.StreamHeader;
+import edu.cmu.pandaa.stream.MultiFrameStream;
+
+/*
+ * Contention benchmark for the MultiFrameStream join: N producer threads, one per input,
+ * each push frames as fast as they can while a single consumer pulls complete time slices.
+ *
+ * usage: MultiFrameStreamBenchmark [frames per producer] [producer counts...]
+ */
+public class MultiFrameStreamBenchmark {
+  static final int WARMUP_ROUNDS = 2;
+
+  public static void main(String[] args) throws Exception {
+    int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int[] counts = { 2, 8, 32, 128 };
+    if (args.length > 1) {
+      counts = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++) {
+        counts[i - 1] = Integer.parseInt(args[i]);
+      }
+    }
+
+    for (int n : counts) {
+      for (int i = 0; i < WARMUP_ROUNDS; i++) {
+        run(n, frames / 10);
+      }
+      long elapsed = run(n, frames);
+      long total = (long) n * frames;
+      System.out.println(n + " producers: " + frames + " slices in " + elapsed / 1000000 + "ms, " +
+              (frames * 1000000000L / Math.max(1, elapsed)) + " slices/s, " +
+              (elapsed / Math.max(1, total)) + "ns/frame");
+    }
+  }
+
+  static long run(int producers, final int frames) throws Exception {
+    final MultiFrameStream join = new MultiFrameStream("bench");
+    final StreamHeader[] headers = new StreamHeader[producers];
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < producers; i++) {
+      headers[i] = new StreamHeader("dev" + i, startTime, 100);
+      join.setHeader(headers[i]);
+    }
+    // inputs join the slice once they send their first frame, so prime every slot up front
+    for (int i = 0; i < producers; i++) {
+      join.sendFrame(headers[i].makeFrame(0));
+    }
+
+    Thread[] threads = new Thread[producers];
+    for (int i = 0; i < producers; i++) {
+      final StreamHeader header = headers[i];
+      threads[i] = new Thread("producer-" + i) {
+        public void run() {
+          try {
+            for (int seq = 1; seq < frames; seq++) {
+              join.sendFrame(header.makeFrame(seq));
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      };
+    }
+
+    long start = System.nanoTime();
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (int seq = 0; seq < frames; seq++) {
+      MultiFrame mf = join.recvFrame();
+      if (mf.seqNum != seq) {
+        throw new RuntimeException("Out of order slice " + mf.seqNum + " != " + seq);
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    for (Thread t : threads) {
+      t.join();
+    }
+    join.close();
+    return elapsed;
+  }
+}
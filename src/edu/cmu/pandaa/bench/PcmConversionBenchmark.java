@@ -0,0 +1,135 @@
+package edu.cmu.pandaa.bench;
+
+import java.util.Random;
+
+import edu.cmu.pandaa.utils.DataConversionUtil;
+
+/*
+ * PCM conversion throughput: the bulk DataConversionUtil conversions against the per-sample ones they
+ * replaced (kept here as legacyToShorts/legacyToBytes), and the other sample formats. Each case
+ * converts one 100ms frame over and over, the way the file readers, live capture and the WAV writer
+ * do, and reports ns per frame and samples per microsecond.
+ *
+ * usage: PcmConversionBenchmark [frames] [samples per frame]
+ */
+public class PcmConversionBenchmark {
+  static final int WARMUP_ROUNDS = 3;
+  static long sink;  // keeps the results alive
+
+  interface Case {
+    void convert();
+  }
+
+  public static void main(String[] args) {
+    final int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    final int samples = args.length > 1 ? Integer.parseInt(args[1]) : 4410;
+
+    final byte[] pcm = new byte[samples * 4];
+    new Random(1).nextBytes(pcm);
+    for (int i = 3; i < pcm.length; i += 4) {
+      pcm[i] &= 0x3f;  // keeps the float samples within -1..1 (and away from NaN)
+    }
+    final short[] shorts = new short[samples];
+    DataConversionUtil.bytesToShorts(pcm, 0, shorts, 0, samples);
+    final short[] out = new short[samples];
+    final byte[] bytes = new byte[samples * 4];
+
+    run("16 bit to shorts, legacy", frames, samples, new Case() {
+      public void convert() {
+        sink += legacyToShorts(pcm, samples * 2)[0];
+      }
+    });
+    run("16 bit to shorts, bulk", frames, samples, new Case() {
+      public void convert() {
+        DataConversionUtil.bytesToShorts(pcm, 0, out, 0, samples);
+        sink += out[0];
+      }
+    });
+    run("shorts to 16 bit, legacy", frames, samples, new Case() {
+      public void convert() {
+        sink += legacyToBytes(shorts)[0];
+      }
+    });
+    run("shorts to 16 bit, bulk", frames, samples, new Case() {
+      public void convert() {
+        DataConversionUtil.shortsToBytes(shorts, 0, bytes, 0, samples);
+        sink += bytes[0];
+      }
+    });
+    for (final int bits : new int[] { 8, 24, 32 }) {
+      run(bits + " bit to shorts", frames, samples, new Case() {
+        public void convert() {
+          DataConversionUtil.pcmToShorts(pcm, 0, bits, false, out, 0, samples);
+          sink += out[0];
+        }
+      });
+      run("shorts to " + bits + " bit", frames, samples, new Case() {
+        public void convert() {
+          DataConversionUtil.shortsToPcm(shorts, 0, bits, false, bytes, 0, samples);
+          sink += bytes[0];
+        }
+      });
+    }
+    run("float to shorts", frames, samples, new Case() {
+      public void convert() {
+        DataConversionUtil.pcmToShorts(pcm, 0, 32, true, out, 0, samples);
+        sink += out[0];
+      }
+    });
+    run("shorts to float", frames, samples, new Case() {
+      public void convert() {
+        DataConversionUtil.shortsToPcm(shorts, 0, 32, true, bytes, 0, samples);
+        sink += bytes[0];
+      }
+    });
+    System.out.println("(checksum " + sink + ")");
+  }
+
+  static void run(String name, int frames, int samples, Case c) {
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      for (int i = 0; i < frames / 10; i++) {
+        c.convert();
+      }
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < frames; i++) {
+      c.convert();
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.println(String.format("%-26s %8dns/frame %8.1f samples/us", name, elapsed / frames,
+            (double) frames * samples * 1000 / Math.max(1, elapsed)));
+  }
+
+  // DataConversionUtil.byteArrayToShortArray as it was: a 2 byte temporary per sample
+  static short[] legacyToShorts(byte[] bArray, int size) {
+    int numShorts = size / 2;
+    int nextByteIndex = 0;
+    short[] shortArray = new short[numShorts];
+    byte[] dataBytes = new byte[2];
+    for (int i = 0; i < numShorts; i++) {
+      if (nextByteIndex >= bArray.length) {
+        break;
+      }
+      dataBytes[0] = bArray[nextByteIndex++];
+      dataBytes[1] = nextByteIndex >= bArray.length ? 0 : bArray[nextByteIndex];
+      nextByteIndex++;
+      short value = 0;
+      for (int b = 0; b < dataBytes.length; b++) {
+        value += (dataBytes[b] & 0xff) << (8 * b);
+      }
+      shortArray[i] = value;
+    }
+    return shortArray;
+  }
+
+  // DataConversionUtil.shortArrayToByteArray as it was: a new array per sample
+  static byte[] legacyToBytes(short[] sArray) {
+    byte[] byteArray = new byte[sArray.length * 2];
+    for (int i = 0, b = 0; i < sArray.length; i++, b += 2) {
+      byte[] audioByte = new byte[] { (byte) (sArray[i] & 0xff), (byte) ((sArray[i] >>> 8) & 0xff) };
+      byteArray[b] = audioByte[0];
+      byteArray[b + 1] = audioByte[1];
+    }
+    return byteArray;
+  }
+}
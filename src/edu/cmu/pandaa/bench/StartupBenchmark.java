@@ -0,0 +1,130 @@
+package edu.cmu.pandaa.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Startup latency of App: launches it as a new JVM, the way it's deployed, and measures how long
+ * it takes from launching the process to the first geometry frame. Also reports the slowest
+ * pipeline stage start, i.e. how long a stage waited between being set up and its init, which is
+ * what a device joining a running session waits for too. Each run gets a scratch directory for
+ * its traces and is killed after the first frame.
+ *
+ * usage: StartupBenchmark [runs] <App args...>, e.g. StartupBenchmark 5 -pooled recordings/
+ */
+public class StartupBenchmark {
+  static final String FIRST_FRAME = "First geometry frame ";
+  static final String STAGE_START = "Starting stream ";
+  static final long TIMEOUT_MS = 60 * 1000;
+
+  public static void main(String[] args) throws Exception {
+    int arg = 0;
+    int runs = 5;
+    if (args.length > 0 && args[0].matches("[0-9]+")) {
+      runs = Integer.parseInt(args[arg++]);
+    }
+    if (arg == args.length) {
+      System.err.println("usage: StartupBenchmark [runs] <App args...>");
+      System.exit(1);
+    }
+    String[] appArgs = absolutePaths(Arrays.copyOfRange(args, arg, args.length));
+
+    long[] wall = new long[runs], launch = new long[runs], stage = new long[runs];
+    for (int i = 0; i < runs; i++) {
+      long[] result = run(appArgs);
+      wall[i] = result[0];
+      launch[i] = result[1];
+      stage[i] = result[2];
+      System.out.println("run " + (i + 1) + ": first geometry frame " + wall[i] + "ms after spawn, " +
+              launch[i] + "ms after JVM start, slowest stage start " + stage[i] + "ms");
+    }
+    System.out.println("spawn to first frame: " + summary(wall));
+    System.out.println("JVM start to first frame: " + summary(launch));
+    System.out.println("slowest stage start: " + summary(stage));
+  }
+
+  // { ms from spawn, ms from JVM start as App reports it, slowest stage setup-to-init }
+  static long[] run(String[] appArgs) throws Exception {
+    File dir = File.createTempFile("startup", "");
+    dir.delete();
+    dir.mkdir();
+    List<String> command = new ArrayList<String>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("edu.cmu.pandaa.framework.App");
+    command.addAll(Arrays.asList(appArgs));
+
+    long spawned = System.nanoTime();
+    Process app = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+    try {
+      BufferedReader out = new BufferedReader(new InputStreamReader(app.getInputStream()));
+      long slowest = 0;
+      String line;
+      while ((line = out.readLine()) != null) {
+        if ((System.nanoTime() - spawned) / 1000000 > TIMEOUT_MS) {
+          break;
+        }
+        int at = line.indexOf(STAGE_START);
+        if (at >= 0) {
+          slowest = Math.max(slowest, millisIn(line.substring(at + STAGE_START.length())));
+        }
+        at = line.indexOf(FIRST_FRAME);
+        if (at >= 0) {
+          long wall = (System.nanoTime() - spawned) / 1000000;
+          return new long[] { wall, millisIn(line.substring(at + FIRST_FRAME.length())), slowest };
+        }
+      }
+      throw new RuntimeException("App ended without a geometry frame, see the traces in " + dir);
+    } finally {
+      app.destroy();
+      app.waitFor();
+      delete(dir);
+    }
+  }
+
+  // the number in front of "ms after", as both messages put it
+  static long millisIn(String text) {
+    int end = text.indexOf("ms after");
+    int start = end;
+    while (start > 0 && Character.isDigit(text.charAt(start - 1))) {
+      start--;
+    }
+    return start < end ? Long.parseLong(text.substring(start, end)) : 0;
+  }
+
+  // the child runs elsewhere, so recordings given relative to here need full paths
+  static String[] absolutePaths(String[] args) {
+    String[] result = args.clone();
+    for (int i = 0; i < result.length; i++) {
+      String arg = result[i];
+      int eq = arg.indexOf('=');
+      String path = eq > 0 && !arg.startsWith("-") ? arg.substring(eq + 1) : arg;
+      if (new File(path).exists()) {
+        result[i] = arg.substring(0, arg.length() - path.length()) + new File(path).getAbsolutePath();
+      }
+    }
+    return result;
+  }
+
+  static String summary(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return "min=" + sorted[0] + "ms median=" + sorted[sorted.length / 2] + "ms max=" +
+            sorted[sorted.length - 1] + "ms";
+  }
+
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -5,6 +5,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sound.sampled.*;
 
@@ -13,8 +15,10 @@ import edu.cmu.pandaa.header.RawAudioHeader.RawAudioFrame;
 import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
 import edu.cmu.pandaa.stream.FrameStream;
+import edu.cmu.pandaa.stream.OverflowPolicy;
 import edu.cmu.pandaa.stream.RawAudioFileStream;
 import edu.cmu.pandaa.utils.DataConversionUtil;
+import edu.cmu.pandaa.utils.ThreadUtil;
 
 public class LiveAudioStream implements FrameStream {
   ByteArrayOutputStream byteArrayOutputStream;
@@ -24,7 +28,14 @@ public class LiveAudioStream implements FrameStream {
   final static int syncFrames = 10;
   static final Map<TargetDataLine, Mixer> lines = new HashMap<TargetDataLine, Mixer>();
   static int lineCount = 0;
-  final static int delayWindowMs = 10 * 1000;
+  static final ReentrantLock linesLock = new ReentrantLock();
+  static final Condition linesChanged = linesLock.newCondition();
+  // j.u.c locks instead of monitors, so a reader parked in recvFrame doesn't pin a virtual thread carrier
+  private final ReentrantLock dataLock = new ReentrantLock();
+  private final Condition dataReady = dataLock.newCondition();
+  private final ReentrantLock stateLock = new ReentrantLock();
+  private final Condition stateChanged = stateLock.newCondition();
+  static long sharedStartTime;  // guarded by linesLock
   private RawAudioFileStream rawAudioOutputStream;
 
   public enum AudioCaptureState {
@@ -43,6 +54,14 @@ public class LiveAudioStream implements FrameStream {
   private int framesDesired, framesCaptured;
   private long loopTime;
   private final int segmentLengthMs;
+  // capture buffer limit in frames and what happens past it; guarded by dataLock
+  private OverflowPolicy overflow = OverflowPolicy.DROP_NEWEST;
+  private int maxBufferedFrames = 100;
+  private long consumedBytes;   // stream position of the first buffered byte
+  private long skipBytes;       // dropped data the next frame has to account for in its seqNum
+  private long droppedBytes;
+  private final LinkedList<long[]> gaps = new LinkedList<long[]>();  // DROP_NEWEST: {position, bytes}
+  private boolean overflowing;
 
   private final static int DEFAULT_ENCODING = 1; // PCM
   private final static int DEFAULT_CHANNELS = 1; // MONO
@@ -92,6 +111,72 @@ public class LiveAudioStream implements FrameStream {
     }
   }
 
+  // bound the capture buffer; the capture thread can't wait for a slow consumer, so BLOCK isn't allowed
+  public void setOverflow(int maxFrames, OverflowPolicy policy) {
+    if (policy == OverflowPolicy.BLOCK) {
+      throw new IllegalArgumentException("Live capture can't block, the audio device would overrun instead");
+    }
+    if (maxFrames <= 0) {
+      throw new IllegalArgumentException("maxFrames must be > 0");
+    }
+    dataLock.lock();
+    try {
+      maxBufferedFrames = maxFrames;
+      overflow = policy;
+    } finally {
+      dataLock.unlock();
+    }
+  }
+
+  public long getDroppedFrames() {
+    dataLock.lock();
+    try {
+      return dataSize > 0 ? droppedBytes / dataSize : 0;
+    } finally {
+      dataLock.unlock();
+    }
+  }
+
+  // called with dataLock held
+  private void bufferData(byte[] data, int cnt) {
+    int buffered = byteArrayOutputStream.size();
+    int limit = dataSize * maxBufferedFrames;
+    if (buffered + cnt > limit) {
+      if (!overflowing) {
+        overflowing = true;
+        System.out.println(System.currentTimeMillis() + " Capture buffer of " + id + " full, " + overflow);
+      }
+      if (overflow == OverflowPolicy.DROP_NEWEST) {
+        droppedBytes += cnt;
+        gaps.addLast(new long[] { consumedBytes + buffered, cnt });
+        return;
+      }
+      // DROP_OLDEST frees whole frames until the new data fits, COALESCE skips the entire backlog
+      int drop = overflow == OverflowPolicy.COALESCE ? buffered : buffered + cnt - limit;
+      drop = Math.min(buffered, (drop + dataSize - 1) / dataSize * dataSize);
+      byte[] old = byteArrayOutputStream.toByteArray();
+      byteArrayOutputStream.reset();
+      byteArrayOutputStream.write(old, drop, old.length - drop);
+      consumedBytes += drop;
+      skipBytes += drop;
+      droppedBytes += drop;
+    } else {
+      overflowing = false;
+    }
+    byteArrayOutputStream.write(data, 0, cnt);
+    dataReady.signalAll();
+  }
+
+  // frames lost before the data about to be read, so its seqNum (and start time) stays true; dataLock held
+  private int takeSkippedFrames() {
+    while (!gaps.isEmpty() && gaps.getFirst()[0] <= consumedBytes) {
+      skipBytes += gaps.removeFirst()[1];
+    }
+    int frames = (int) (skipBytes / dataSize);
+    skipBytes -= (long) frames * dataSize;
+    return frames;
+  }
+
   @Override
   public void setHeader(StreamHeader h) throws Exception {
     throw new RuntimeException("setHeader: Writing to Live Audio Stream is not supported");
@@ -128,10 +213,12 @@ public class LiveAudioStream implements FrameStream {
     }
 
     byte[] audioData;
-    synchronized (byteArrayOutputStream) {
+    int skipped;
+    dataLock.lock();
+    try {
       while (byteArrayOutputStream.size() == 0) {
         if (isRunning())
-          byteArrayOutputStream.wait();
+          dataReady.await();
         else
           return null;
       }
@@ -146,10 +233,15 @@ public class LiveAudioStream implements FrameStream {
         byteArrayOutputStream.write(audioData, dataSize, audioData.length - dataSize);
         audioData = nData;
       }
+      skipped = takeSkippedFrames();
+      consumedBytes += audioData.length;
+    } finally {
+      dataLock.unlock();
     }
 
-    RawAudioFrame audioFrame = header.makeFrame();
-    audioFrame.audioData = DataConversionUtil.byteArrayToShortArray(audioData);
+    header.nextSeq += skipped;
+    RawAudioFrame audioFrame = header.makeFrame(audioData.length / 2);
+    DataConversionUtil.bytesToShorts(audioData, 0, audioFrame.audioData, 0, audioData.length / 2);
 
     if (rawAudioOutputStream != null) {
       rawAudioOutputStream.sendFrame(audioFrame);
@@ -157,7 +249,7 @@ public class LiveAudioStream implements FrameStream {
 
       if (framesCaptured == framesDesired) {
         System.out.println(System.currentTimeMillis() + " Audio stream complete for " + id);
-        rawAudioOutputStream.close();
+        rawAudioOutputStream.closeBehind();  // the next segment starts while this one is written out
         rawAudioOutputStream = null;
         loopTime += framesCaptured * frameTime;
       }
@@ -168,23 +260,30 @@ public class LiveAudioStream implements FrameStream {
 
   @Override
   public void close() {
-    synchronized (this) {
-      stopAudioCapture();
+    stopAudioCapture();
+    stateLock.lock();
+    try {
       while (isRunning()) {
         try {
-          wait();
+          stateChanged.await();
         } catch (InterruptedException e) {
           // ignore interruption
         }
       }
+    } finally {
+      stateLock.unlock();
     }
     if (byteArrayOutputStream != null) {
-      synchronized (byteArrayOutputStream) {
-        try {
-          byteArrayOutputStream.close();
-        } catch (IOException e) {
-          // ignore closing exception
+      dataLock.lock();
+      try {
+        if (droppedBytes > 0) {
+          System.out.println("Capture of " + id + " dropped " + droppedBytes / dataSize + " frames (" + overflow + ")");
         }
+        byteArrayOutputStream.close();
+      } catch (IOException e) {
+        // ignore closing exception
+      } finally {
+        dataLock.unlock();
       }
     }
     if (targetDataLine != null) {
@@ -196,29 +295,45 @@ public class LiveAudioStream implements FrameStream {
   }
 
   private void stopAudioCapture() {
-    synchronized (byteArrayOutputStream) {
+    dataLock.lock();
+    try {
       setState(AudioCaptureState.STOPPED);
-      byteArrayOutputStream.notify();
+      dataReady.signal();
+    } finally {
+      dataLock.unlock();
     }
   }
 
-  private synchronized void setState(AudioCaptureState newState) {
-    audioCaptureState = newState;
-    notifyAll();
+  private void setState(AudioCaptureState newState) {
+    stateLock.lock();
+    try {
+      audioCaptureState = newState;
+      stateChanged.signalAll();
+    } finally {
+      stateLock.unlock();
+    }
   }
 
-  private synchronized boolean isRunning() {
-    return audioCaptureState == AudioCaptureState.RUNNING ||
-            audioCaptureState == AudioCaptureState.PREFETCH;
+  private boolean isRunning() {
+    stateLock.lock();
+    try {
+      return audioCaptureState == AudioCaptureState.RUNNING ||
+              audioCaptureState == AudioCaptureState.PREFETCH;
+    } finally {
+      stateLock.unlock();
+    }
   }
 
-  private synchronized void waitActive() {
+  private void waitActive() {
+    stateLock.lock();
     try {
       while (audioCaptureState == AudioCaptureState.PREFETCH) {
-        wait();
+        stateChanged.await();
       }
     } catch (InterruptedException e) {
       //
+    } finally {
+      stateLock.unlock();
     }
   }
 
@@ -270,11 +385,13 @@ public class LiveAudioStream implements FrameStream {
           if (cnt < 0) {
             break;
           }
-          synchronized (byteArrayOutputStream) {
-            if (audioCaptureState != AudioCaptureState.PREFETCH && byteArrayOutputStream.size() < dataSize*100) {
-              byteArrayOutputStream.write(dataBuffer, 0, cnt);
-              byteArrayOutputStream.notifyAll();
+          dataLock.lock();
+          try {
+            if (audioCaptureState != AudioCaptureState.PREFETCH) {
+              bufferData(dataBuffer, cnt);
             }
+          } finally {
+            dataLock.unlock();
           }
           if (targetDataLine.available() > 0) {
             Thread.sleep(frameTime/2);
@@ -303,7 +420,7 @@ public class LiveAudioStream implements FrameStream {
     List<LiveAudioStream> streams = getLiveAudioStreams(null, captureTimeMs, segmentLengthMs);
     for (LiveAudioStream stream : streams) {
       AudioRunner runner = new AudioRunner(stream);
-      new Thread(runner, stream.id).start();
+      ThreadUtil.start(runner, stream.id);
     }
   }
 
@@ -351,13 +468,14 @@ public class LiveAudioStream implements FrameStream {
   }
 
   private static void readySetGo(TargetDataLine targetDataLine) throws InterruptedException {
-    synchronized(lines) {
+    linesLock.lock();
+    try {
       lineCount++;
       //System.out.println("Linecount is ++ " + lineCount);
       if (lineCount == lines.size()) {
-        lines.notifyAll();
+        linesChanged.signalAll();
       } else while (lineCount < lines.size()) {
-        lines.wait();
+        linesChanged.await();
       }
       targetDataLine.start();
 
@@ -366,32 +484,42 @@ public class LiveAudioStream implements FrameStream {
         // this flush is necessary on some versions of the JDK that seem to start capture before start()!
         targetDataLine.flush();
       }
+    } finally {
+      linesLock.unlock();
     }
     //System.out.println("Linecount is == "+ + lineCount);
     Thread.sleep(1); // let other threads start their lines
-    synchronized(lines) {
+    linesLock.lock();
+    try {
       lineCount--;
       //System.out.println("Linecount is -- "+ + lineCount);
       while (lineCount > 0) {
-        lines.wait();
+        linesChanged.await();
       }
-      lines.notifyAll();
+      linesChanged.signalAll();
+    } finally {
+      linesLock.unlock();
     }
     System.out.println(System.currentTimeMillis() + " Releasing line");
   }
 
+  // the next frame boundary at least a frame away, so the capture thread is up by then; lines started
+  // together get the same one, and devices on synchronized clocks all land on the same frame grid
   private long alignStartTime() throws Exception {
-    if ((delayWindowMs % frameTime) != 0) {
-      throw new IllegalArgumentException("delayWindowMs(" + delayWindowMs +
-              ") must be a mod of frameTime("+frameTime+")");
-    }
-    long loopTime = System.currentTimeMillis();
-    int delay = delayWindowMs - (int) (loopTime % delayWindowMs);
-    if (delay < frameTime*2)
-      delay += delayWindowMs;
-    loopTime += delay;
-    System.out.println("Aiming to start at " + loopTime);
-    return loopTime;
+    linesLock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      if (sharedStartTime > now) {
+        return sharedStartTime;
+      }
+      long start = now + frameTime;
+      start += frameTime - start % frameTime;
+      sharedStartTime = start;
+      System.out.println("Aiming to start at " + start);
+      return start;
+    } finally {
+      linesLock.unlock();
+    }
   }
 
   private void startSaveAudio()
@@ -1,43 +1,150 @@
 package edu.cmu.pandaa.framework;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
 import java.net.ServerSocket;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.cmu.pandaa.desktop.LiveAudioStream;
+import edu.cmu.pandaa.header.MultiHeader;
+import edu.cmu.pandaa.header.RawAudioHeader;
 import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+import edu.cmu.pandaa.module.Checkpointable;
+import edu.cmu.pandaa.module.Degradable;
 import edu.cmu.pandaa.module.StreamModule;
 import edu.cmu.pandaa.stream.*;
+import edu.cmu.pandaa.utils.ThreadUtil;
 
 // server app
 public class App {
-  static final int STARTUP_DELAY = 1000;
+  static final int MAX_BATCH = 32;  // most frames a pipe hands to its pipeline in one processBatch call
   static final int SERVER_PORT = 12345;
-  MultiFrameStream combiner = new MultiFrameStream("combiner");
-  final Map<StreamHeader, PipeHandler> inHeaders = new HashMap<StreamHeader, PipeHandler>();
-  private int basePort = 8000;
-  private int nextDevicePort = basePort + 20;
-  private int nextCombinePort = basePort + 40;
+  static final int COMBINER_LATENESS_MS = 2000; // live input: don't let one stalled pair hold up the geometry
+  static final int CHECKPOINT_SECONDS = 30;  // default for -checkpoint
+  static final int QUALITY_INTERVAL_MS = 2000;  // how often -quality auto reconsiders the level
+  static final int TRACE_BACKLOG = 512;  // default for -traces: frames a trace tap may lag behind its pipe
+  // a full join doesn't hold one (OutputChannel); a few extra for outputs that block in I/O, e.g. shard sockets
+  static final int DELIVERY_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+  static final int BASE_PORT = 8000;
+  static final int SESSION_PORTS = 100;  // web views of session n from BASE_PORT + n * SESSION_PORTS on, see takePort
+  static final int PORT_ATTEMPTS = 100;  // ports held by other processes a web view skips before giving up
+  static final String DEFAULT_SESSION = "default";
   private final int SEGMENT_LENGTH_MS = 100 * 1000;
 
-  private boolean useMFCC = true;
+  private PipelineGraph graph;  // module chains for the device, pair and merge tiers
+  private StageScheduler scheduler;  // null runs every pipe on its own thread
+  private ShardCoordinator shards;  // non-null runs the pair tier on ShardWorker processes
+  private CheckpointManager checkpoints;  // non-null saves and restores pipeline state
+  private QualityController quality;  // non-null lowers quality to keep up with live audio
+  private int offlineThreads = 0;  // > 0 replays the recordings in lockstep, see -offline
+  private int cpuQuota = 0, queueQuota = 0;  // per session, 0 for no limit; see -quota
+  private int traceBacklog = TRACE_BACKLOG;  // 0 writes traces on the pipe threads
+  private boolean liveInput;  // capture or connecting devices, rather than recordings
+  private boolean splitChannels = false;  // a device per channel of multichannel recordings, see -channels
 
+  private final Map<String, Session> sessions = new LinkedHashMap<String, Session>();
+  private final ReentrantLock sessionLock = new ReentrantLock();
+  private final BitSet ports = new BitSet();  // web view ports taken, from BASE_PORT; process-wide
+  private final ReentrantLock portLock = new ReentrantLock();
+
+  // pipes may run on virtual threads, so App's own waits use j.u.c locks rather than monitors
+  private final ReentrantLock appLock = new ReentrantLock();
+  private final Condition pipesDone = appLock.newCondition();
   private int pipes_active = 0;
+  // delivers frames from pipes to their outputs, so one slow subscriber doesn't hold up the others
+  private final ExecutorService delivery =
+          Executors.newFixedThreadPool(DELIVERY_THREADS, ThreadUtil.daemonFactory("deliver"));
+  // best effort: trace files are written behind the pipes, on a thread that yields to them
+  private final ExecutorService traceWriter =
+          Executors.newSingleThreadExecutor(ThreadUtil.daemonFactory("trace", Thread.MIN_PRIORITY));
+
+  // overflow handling per kind of stream edge: pair joins, the combiner's inputs, pipe outputs and
+  // live capture buffers; see -overflow
+  static final String[] EDGES = { "join", "merge", "output", "live" };
+  private final Map<String, OverflowPolicy> overflow = new HashMap<String, OverflowPolicy>();
+  private final Map<String, Integer> capacity = new HashMap<String, Integer>();
 
   public static final String TRACE_DIR = "trace/";
 
   public App(String[] args) throws Exception {
+    // lossless by default; "merge=coalesce:N" lets a lagging geometry skip ahead to the latest
+    // distances, but the merge pipe starts after the pairs, so coalescing would eat its first slices
+    setOverflow("join=block:64");
+    setOverflow("merge=block:64");
+    setOverflow("output=block:256");
+    setOverflow("live=drop_newest:100");
+    args = parseOptions(args);
+    liveInput = args.length == 0 || args[0].equalsIgnoreCase("live");
     new File(TRACE_DIR).mkdir();
+    if (offlineThreads > 0) {
+      if (args.length == 0 || args[0].equalsIgnoreCase("live")) {
+        throw new IllegalArgumentException("-offline needs recorded audio");
+      }
+      if (checkpoints != null) {
+        throw new IllegalArgumentException("-checkpoint would make -offline runs depend on earlier ones");
+      }
+      if (quality != null) {
+        throw new IllegalArgumentException("-offline replays run at full quality, drop -quality");
+      }
+    }
+    if (shards != null) {
+      ThreadUtil.daemonFactory("shard-accept").newThread(shards).start();
+    }
 
     if (args.length == 0) {
-      new AcceptClients().start();
+      getSession(DEFAULT_SESSION).start();  // devices name their session when they connect
+      ThreadUtil.start(new AcceptClients(), "accept-clients");
     } else if (args[0].equalsIgnoreCase("live")) {
-      List<LiveAudioStream> streams = LiveAudioStream.getLiveAudioStreams(TRACE_DIR, -1, SEGMENT_LENGTH_MS);
+      Session session = getSession(DEFAULT_SESSION);
+      List<LiveAudioStream> streams = LiveAudioStream.getLiveAudioStreams(session.traceDir, -1, SEGMENT_LENGTH_MS);
       for (LiveAudioStream in : streams) {
-        activateNewDevice(in);
+        in.setOverflow(session.getCapacity("live"), overflow.get("live"));
+        session.addDevice(in);
       }
-    } else if (new File(args[0]).isDirectory()) {
+      session.start();
+    } else if (args[0].indexOf('=') > 0) {
+      for (String arg : args) {  // room=recordings, one session each
+        int eq = arg.indexOf('=');
+        if (eq <= 0) {
+          throw new IllegalArgumentException("Expected session=recordings, got " + arg);
+        }
+        Session session = getSession(arg.substring(0, eq));
+        addRecordings(session, new String[] { arg.substring(eq + 1) });
+        session.start();
+      }
+    } else {
+      Session session = getSession(DEFAULT_SESSION);
+      addRecordings(session, args);
+      session.start();
+    }
+  }
+
+  private void addRecordings(Session session, String[] args) throws Exception {
+    double dilation = new File(args[0]).isDirectory() ? 0.1 : 1.0;
+    for (RawAudioFileStream in : openRecordings(args)) {
+      in.setTimeDialtion(offlineThreads > 0 ? 0 : dilation);
+      if (splitChannels && ((RawAudioHeader) in.getHeader()).getNumChannels() > 1) {
+        for (FrameStream channel : new ChannelSplitter(in).getStreams()) {
+          session.addDevice(channel);
+        }
+      } else {
+        session.addDevice(in);
+      }
+    }
+  }
+
+  // one stream per device: a directory of device_timestamp segments (or some of its device bases),
+  // or a set of wav files like audio_src/name (or the files themselves), synchronized to the first
+  static List<RawAudioFileStream> openRecordings(String[] args) throws Exception {
+    List<RawAudioFileStream> streams = new ArrayList<RawAudioFileStream>();
+    if (new File(args[0]).isDirectory()) {
       if (args.length == 1) {
         args = processDirectory(args[0]);
       }
@@ -52,9 +159,7 @@ public class App {
         } else if (!startTime.equals(timestamp)) {
           throw new IllegalArgumentException("Mismatching start timestamp: " + timestamp + " != " + startTime);
         }
-        RawAudioFileStream in = new RawAudioFileStream(fileNames);
-        in.setTimeDialtion(0.1);
-        activateNewDevice(in);
+        streams.add(new RawAudioFileStream(fileNames));
       }
     } else {
       if (args.length == 1) {
@@ -62,18 +167,148 @@ public class App {
       }
       String file1 = args[0];
       for (String file : args) {
-        RawAudioFileStream in = new RawAudioFileStream(file, file1, 60);
-        in.setTimeDialtion(1.0);
-        activateNewDevice(in);
+        streams.add(new RawAudioFileStream(file, file1, 60));
+      }
+    }
+    for (RawAudioFileStream in : streams) {
+      in.setMapped(true);
+    }
+    return streams;
+  }
+
+  // the named session, created on first use
+  Session getSession(String name) throws Exception {
+    if (!name.matches("[A-Za-z0-9_-]+")) {
+      throw new IllegalArgumentException("Bad session name " + name);
+    }
+    sessionLock.lock();
+    try {
+      Session session = sessions.get(name);
+      if (session == null) {
+        session = new Session(name, sessions.size());
+        sessions.put(name, session);
       }
+      return session;
+    } finally {
+      sessionLock.unlock();
     }
+  }
 
-    PipeHandler combpipe = new PipeHandler(combiner, new MergePipeline(),
-            new GeometryFileStream(TRACE_DIR + "output.txt", true), basePort, false);
-    new Thread(combpipe, "combiner").start();
+  private List<Session> getSessions() {
+    sessionLock.lock();
+    try {
+      return new ArrayList<Session>(sessions.values());
+    } finally {
+      sessionLock.unlock();
+    }
   }
 
-  private String[] processDirectory(String base) {
+  private String[] parseOptions(String[] args) throws Exception {
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("-"); i++) {
+      if (args[i].equals("-pooled")) {
+        scheduler = new StageScheduler();  // run stages on a worker pool sized to the cores
+      } else if (args[i].equals("-graph") && i + 1 < args.length) {
+        graph = PipelineGraph.load(args[++i]);  // "mfcc", "impulse" or a graph file
+      } else if (args[i].equals("-overflow") && i + 1 < args.length) {
+        setOverflow(args[++i]);
+      } else if (args[i].equals("-shard") && i + 1 < args.length) {
+        shards = new ShardCoordinator(Integer.parseInt(args[++i]));  // workers connect here
+      } else if (args[i].equals("-checkpoint") && i + 1 < args.length) {
+        checkpoints = CheckpointManager.parse(args[++i], CHECKPOINT_SECONDS);  // dir[:seconds]
+      } else if (args[i].equals("-offline") && i + 1 < args.length) {
+        offlineThreads = Integer.parseInt(args[++i]);  // 1 for a single thread
+      } else if (args[i].equals("-quota") && i + 1 < args.length) {
+        setQuota(args[++i]);
+      } else if (args[i].equals("-quality") && i + 1 < args.length) {
+        quality = QualityController.parse(args[++i], QUALITY_INTERVAL_MS);  // auto, or a fixed level
+      } else if (args[i].equals("-traces") && i + 1 < args.length) {
+        String mode = args[++i];  // sync, or the frames a trace may lag before it skips some
+        traceBacklog = mode.equals("sync") ? 0 : Integer.parseInt(mode);
+      } else if (args[i].equals("-channels")) {
+        splitChannels = true;  // each mic of a multichannel recording as its own device, not the mixdown
+      } else if (args[i].equals("-checkframes")) {
+        StreamHeader.debugFrameRefs = true;  // catch frames used after they went back to the pool
+      } else if (args[i].equals("-virtual")) {
+        // one virtual thread per pipe/connection, keeping the plain blocking recvFrame loops
+        if (!ThreadUtil.setVirtual(true)) {
+          System.out.println("Virtual threads not supported by this JVM, using platform threads");
+        }
+      } else {
+        throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    if (graph == null) {
+      graph = PipelineGraph.load("mfcc");
+    }
+    if (traceBacklog > 0 && offlineThreads == 0) {  // offline replays keep complete, reproducible traces
+      graph.deferTraces(traceWriter, traceBacklog);
+    }
+    return Arrays.copyOfRange(args, i, args.length);
+  }
+
+  // "edge=policy:capacity", e.g. "join=drop_oldest:32"
+  private void setOverflow(String spec) {
+    int eq = spec.indexOf('='), colon = spec.indexOf(':');
+    if (eq < 0 || colon < eq) {
+      throw new IllegalArgumentException("Bad overflow spec " + spec + ", expected edge=policy:capacity");
+    }
+    String edge = spec.substring(0, eq);
+    if (!Arrays.asList(EDGES).contains(edge)) {
+      throw new IllegalArgumentException("Unknown stream edge " + edge + ", expected one of " + Arrays.toString(EDGES));
+    }
+    overflow.put(edge, OverflowPolicy.parse(spec.substring(eq + 1, colon)));
+    capacity.put(edge, Integer.parseInt(spec.substring(colon + 1)));
+  }
+
+  // "cpu=N,queue=M": each session runs at most N pipelines at once and queues at most M frames per edge
+  private void setQuota(String spec) {
+    for (String part : spec.split(",")) {
+      int eq = part.indexOf('=');
+      String kind = eq < 0 ? part : part.substring(0, eq);
+      int value = eq < 0 ? -1 : Integer.parseInt(part.substring(eq + 1));
+      if (value <= 0 || !(kind.equals("cpu") || kind.equals("queue"))) {
+        throw new IllegalArgumentException("Bad quota " + part + ", expected cpu=N or queue=N");
+      }
+      if (kind.equals("cpu")) {
+        cpuQuota = value;
+      } else {
+        queueQuota = value;
+      }
+    }
+  }
+
+  private OutputChannel newOutput(Session session, FrameStream out, String name) {
+    return new OutputChannel(out, name, delivery, session.getCapacity("output"), overflow.get("output"),
+            scheduler == null);
+  }
+
+  private void startPipe(PipeHandler pipe, String name) {
+    if (scheduler != null) {
+      scheduler.start(pipe);
+    } else {
+      ThreadUtil.start(pipe, name);
+    }
+  }
+
+  private void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+    delivery.shutdown();
+    traceWriter.shutdown();
+    if (quality != null) {
+      quality.close();
+    }
+    if (shards != null) {
+      shards.close();
+    }
+    if (checkpoints != null) {
+      checkpoints.close();
+    }
+  }
+
+  static String[] processDirectory(String base) {
     SortedSet<String> files = new TreeSet<String>();
     String[] flist = new File(base).list();
     if (!base.endsWith(File.separator)) {
@@ -86,7 +321,7 @@ public class App {
     return files.toArray(new String[] {});
   }
 
-  private List<String> getFileSet(String base) {
+  private static List<String> getFileSet(String base) {
     SortedSet<String> files = new TreeSet<String>();
     String dir = new File(base).getParent();
     base = base.substring(dir.length()+1);
@@ -101,7 +336,7 @@ public class App {
     return retlist;
   }
 
-  private String[] expandFiles(String base) {
+  static String[] expandFiles(String base) {
     ArrayList<String> files = new ArrayList<String>();
     String dir = new File(base).getParent();
     base = base.substring(dir.length()+1);
@@ -116,21 +351,55 @@ public class App {
 
   public static void main(String[] args) {
     try {
-      new App(args).waitForCompletion();
+      App app = new App(args);
+      if (app.offlineThreads > 0) {
+        app.runOffline();
+      } else {
+        app.waitForCompletion();
+      }
+      app.shutdown();
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
+  private void runOffline() throws Exception {
+    for (Session session : getSessions()) {
+      long start = System.currentTimeMillis();
+      session.engine.run(new GeometryFileStream(session.traceDir + "output.txt", true));
+      System.out.println(session.prefix() + "Offline " + session.engine.getStats() + " ms=" +
+              (System.currentTimeMillis() - start));
+    }
+  }
+
   private void waitForCompletion() {
-    synchronized(App.this) {
+    appLock.lock();
+    try {
       while (pipes_active > 0) {
         try {
-          App.this.wait();
+          pipesDone.await();
         } catch (InterruptedException e) {
           // ignore interrupted
           }
       }
+    } finally {
+      appLock.unlock();
+    }
+    for (Session session : getSessions()) {
+      System.out.println(session.prefix() + "Combiner " + session.combiner.getStats() +
+              (session.cpu == null ? "" : " cpu " + session.cpu));
+    }
+    if (scheduler != null) {
+      System.out.println("Scheduler " + scheduler.getStats());
+    }
+    if (quality != null) {
+      System.out.println("Quality " + quality.getStats());
+    }
+    if (shards != null) {
+      System.out.println("Shards " + shards.getStats());
+    }
+    if (checkpoints != null) {
+      System.out.println("Checkpoints " + checkpoints.getStats());
     }
   }
 
@@ -140,6 +409,11 @@ public class App {
     return combineIds(aid,bid);
   }
 
+  // ms since the JVM was launched, for startup latency
+  static long sinceLaunch() {
+    return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+  }
+
   public static String combineIds(String aid, String bid) {
     if (aid.equals(bid)) {
       throw new IllegalArgumentException("Streamin IDs must be unique!");
@@ -156,50 +430,220 @@ public class App {
     return aid.substring(0, j+1) + "," + bid.substring(i);
   }
 
-  private class CompareStreamId implements Comparator<StreamHeader> {
-    @Override
-    public int compare(StreamHeader streamHeader1, StreamHeader streamHeader2) {
-      return streamHeader1.id.compareTo(streamHeader2.id);
+  // the first port from preferred on that no web view of this process has, taken until freePort
+  int takePort(int preferred) {
+    portLock.lock();
+    try {
+      int port = BASE_PORT + ports.nextClearBit(preferred - BASE_PORT);
+      ports.set(port - BASE_PORT);
+      return port;
+    } finally {
+      portLock.unlock();
+    }
+  }
+
+  void freePort(int port) {
+    portLock.lock();
+    try {
+      ports.clear(port - BASE_PORT);
+    } finally {
+      portLock.unlock();
+    }
+  }
+
+  // a web view on the first free port from preferred on; a port another process holds stays taken
+  WebViewStream openView(int preferred) {
+    for (int attempt = 0; ; attempt++) {
+      int port = takePort(preferred);
+      try {
+        return new WebViewStream(port);
+      } catch (RuntimeException e) {
+        if (!(e.getCause() instanceof BindException) || attempt == PORT_ATTEMPTS) {
+          freePort(port);
+          throw e;
+        }
+        preferred = port + 1;
+      }
     }
   }
 
-  private synchronized void activateNewDevice(FrameStream in) throws Exception {
-    StreamHeader inHeader = in.getHeader();
-    System.out.println("Activating device " + inHeader.id + " on " + nextDevicePort);
-    StreamModule pipeline = useMFCC ? new MFCCPipeline() : new SinglePipeline();
-    PipeHandler pipe = new PipeHandler(in, pipeline, null, nextDevicePort++);
-    new Thread(pipe, inHeader.id).start();
-
-    synchronized (inHeaders) {
-      for (StreamHeader other : inHeaders.keySet()) {
-        boolean swap = inHeader.id.compareTo(other.id) > 0;
-        StreamHeader a = swap ? other : inHeader;
-        StreamHeader b = swap ? inHeader : other;
-        String id = makeId(a, b);
-        MultiFrameStream mixer = new MultiFrameStream(id);
-        PipeHandler otherPipe = inHeaders.get(other);
-        if (swap) {
-          otherPipe.addOutput(mixer);
-          pipe.addOutput(mixer);
-        } else {
-          pipe.addOutput(mixer);
-          otherPipe.addOutput(mixer);
-        }
-
-        SortedSet<StreamHeader> headers = new TreeSet<StreamHeader>(new CompareStreamId());
-        headers.add(a);
-        headers.add(b);
-        StreamModule pipeline2 = useMFCC ? new VectorPipeline(headers) : new DualPipeline(headers);
-        PipeHandler dualPipe = new PipeHandler(mixer, pipeline2, combiner, nextCombinePort++);
-        new Thread(dualPipe, id).start();
-      }
-
-      inHeaders.put(inHeader, pipe);
+  /*
+   * One room: its own devices, pairs and combiner, its own trace directory and its own geometry
+   * endpoint (the merge pipe's web view, on the session's first port). Sessions share the process, the
+   * stage pool and the delivery threads; the quotas keep a busy room from crowding out the others there.
+   * The session's ports are where its web views start looking: a big room runs on into the ports the next
+   * session would have used, and that session's views move on past them (takePort).
+   */
+  class Session {
+    final String name;
+    final String traceDir;
+    final MultiFrameStream combiner = new MultiFrameStream("combiner");
+    final Map<StreamHeader, PipeHandler> inHeaders = new HashMap<StreamHeader, PipeHandler>();
+    final StageScheduler.Quota cpu;  // null for no limit
+    final OfflineEngine engine;  // only with -offline
+    private final ReentrantLock deviceLock = new ReentrantLock();
+    private final int basePort;  // geometry; device views from basePort + 20, pair views from basePort + 40
+    private boolean started = false;
+    // device pipes added before start(), held back until every pair they feed is wired up
+    private final Map<PipeHandler, String> held = new LinkedHashMap<PipeHandler, String>();
+
+    Session(String name, int index) throws Exception {
+      this.name = name;
+      traceDir = name.equals(DEFAULT_SESSION) ? TRACE_DIR : TRACE_DIR + name + File.separator;
+      new File(traceDir).mkdirs();
+      basePort = BASE_PORT + index * SESSION_PORTS;
+      cpu = cpuQuota > 0 ? new StageScheduler.Quota(cpuQuota) : null;
+      engine = offlineThreads > 0 ? new OfflineEngine(graph, offlineThreads, traceDir) : null;
+      if (liveInput) {  // recordings wait for every pair, so replays don't depend on timing
+        combiner.setWatermark(COMBINER_LATENESS_MS);
+      }
+      combiner.setOverflow(getCapacity("merge"), overflow.get("merge"));
+    }
+
+    // the edge's capacity, within the session's queue quota
+    int getCapacity(String edge) {
+      return queueQuota > 0 ? Math.min(capacity.get(edge), queueQuota) : capacity.get(edge);
+    }
+
+    String prefix() {
+      return name.equals(DEFAULT_SESSION) ? "" : "[" + name + "] ";
+    }
+
+    // start the merge pipe and the devices added before this, which it all waits for
+    void start() throws Exception {
+      deviceLock.lock();
+      try {
+        if (started || engine != null) {
+          return;
+        }
+        started = true;
+        PipeHandler combpipe = new PipeHandler(this, combiner, graph.build("merge", traceDir),
+                new GeometryFileStream(traceDir + "output.txt", true), basePort, false);
+        combpipe.setPriority(StageScheduler.PRIORITY_MERGE);
+        int pairs = inHeaders.size() * (inHeaders.size() - 1) / 2;
+        if (pairs > 0) {
+          combpipe.requireInputs(pairs);  // devices known up front: don't merge until every pair is in
+        }
+        if (!name.equals(DEFAULT_SESSION)) {
+          System.out.println("Session " + name + ": geometry on port " + combpipe.getPort() + ", traces in " + traceDir);
+        }
+        startPipe(combpipe, prefix() + "combiner");
+        for (Map.Entry<PipeHandler, String> device : held.entrySet()) {
+          startPipe(device.getKey(), device.getValue());
+        }
+        held.clear();
+      } finally {
+        deviceLock.unlock();
+      }
+    }
+
+    void addDevice(FrameStream in) throws Exception {
+      if (engine != null) {
+        engine.addDevice(in);
+      } else {
+        activateNewDevice(in);
+      }
+    }
+
+    void activateNewDevice(FrameStream in) throws Exception {
+      deviceLock.lock();
+      try {
+        activateDevice(in);
+      } finally {
+        deviceLock.unlock();
+      }
+    }
+
+    private void activateDevice(FrameStream in) throws Exception {
+      StreamHeader inHeader = in.getHeader();
+      StreamModule pipeline = graph.build("device", traceDir);
+      FrameStream source = scheduler == null ? in : scheduler.pump(in, inHeader.id);
+      final PipeHandler pipe = new PipeHandler(this, source, pipeline, null, basePort + 20);
+      System.out.println(prefix() + "Activating device " + inHeader.id + " on " + pipe.getPort());
+      if (quality != null && quality.isAdaptive()) {
+        pipe.setMeter(quality.meter(inHeader.id));  // device pipes are the ones that must keep up
+      }
+      final StreamHeader deviceHeader = inHeader;
+      pipe.setLeaveListener(new Runnable() {
+        public void run() {
+          deviceLeft(deviceHeader);
+        }
+      });
+      synchronized (inHeaders) {
+        for (StreamHeader other : inHeaders.keySet()) {
+          final PipeHandler otherPipe = inHeaders.get(other);
+          if (otherPipe.isClosed()) {
+            continue;  // leaving right now, see deviceLeft
+          }
+          boolean swap = inHeader.id.compareTo(other.id) > 0;
+          StreamHeader a = swap ? other : inHeader;
+          StreamHeader b = swap ? inHeader : other;
+          String id = makeId(a, b);
+          final MultiFrameStream mixer = new MultiFrameStream(id);
+          mixer.setOverflow(getCapacity("join"), overflow.get("join"));
+          mixer.setMinInputs(Math.max(0, graph.getJoin("pair")));  // the first slice has both devices
+          if (swap) {
+            otherPipe.addOutput(mixer);
+            pipe.addOutput(mixer);
+          } else {
+            pipe.addOutput(mixer);
+            otherPipe.addOutput(mixer);
+          }
+
+          // sharded, only the join runs here and the rest of the pair tier on a worker
+          StreamModule pipeline2 = shards == null ? graph.build("pair", traceDir) : graph.buildJoin("pair");
+          FrameStream pairOut = shards == null ? combiner : shards.newPair(id, combiner);
+          final PipeHandler dualPipe = new PipeHandler(this, mixer, pipeline2, pairOut, basePort + 40);
+          dualPipe.requireInputs(Math.max(0, graph.getJoin("pair")));
+          dualPipe.setPriority(StageScheduler.PRIORITY_PAIR);
+          dualPipe.setLeaveListener(new Runnable() {
+            public void run() {
+              pairLeft(dualPipe, mixer, pipe, otherPipe);
+            }
+          });
+          startPipe(dualPipe, id);
+        }
+
+        if (!pipe.isClosed()) {
+          inHeaders.put(inHeader, pipe);  // else its input already ended and deviceLeft has run
+        }
+      }
+
+      // only once all of its outputs are wired up, and with the devices known up front, once all of
+      // theirs are: the first frames then reach every pair
+      if (started) {
+        startPipe(pipe, inHeader.id);
+      } else {
+        held.put(pipe, inHeader.id);
+      }
+    }
+
+    // a device's input ended: no new pairs with it; its pairs see the end through their mixers
+    private void deviceLeft(StreamHeader inHeader) {
+      synchronized (inHeaders) {
+        if (inHeaders.remove(inHeader) != null) {
+          System.out.println(prefix() + "Device " + inHeader.id + " left, " + inHeaders.size() + " remaining");
+        }
+      }
+    }
+
+    // a pair pipe ended, normally because one of its devices left: unhook it from both device pipes
+    // and take it out of the combiner, so the geometry carries on over the remaining devices. Runs
+    // before the pair pipe closes its outputs, which would otherwise include the shared combiner.
+    // Sharded pairs send to a RemotePair instead, which leaves the combiner itself once its worker is done.
+    private void pairLeft(PipeHandler dualPipe, MultiFrameStream mixer, PipeHandler a, PipeHandler b) {
+      a.removeOutput(mixer);
+      b.removeOutput(mixer);
+      dualPipe.removeOutput(combiner);
+      StreamHeader pairHeader = dualPipe.getOutHeader();
+      if (pairHeader != null) {
+        combiner.removeInput(pairHeader);
+      }
     }
   }
 
   // server thread, spawning off one client thread per connection
-  class AcceptClients extends Thread {
+  class AcceptClients implements Runnable {
     ServerSocket server;
 
     @Override
@@ -209,7 +653,16 @@ public class App {
         System.out.println("Server started at " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort());
 
         while (true) {
-          activateNewDevice(new SocketStream(server.accept()));
+          SocketStream client = new SocketStream(server.accept());
+          try {
+            String name = client.getHeader() == null ? null : client.getSession();
+            Session session = getSession(name == null ? DEFAULT_SESSION : name);
+            session.start();
+            session.activateNewDevice(client);
+          } catch (IllegalArgumentException e) {
+            System.out.println("Rejected client: " + e.getMessage());
+            client.close();
+          }
         }
       }
       catch (Exception e) {
@@ -219,22 +672,35 @@ public class App {
     }
   }
 
-  class PipeHandler implements Runnable {
+  class PipeHandler implements Runnable, StageScheduler.Stage {
+    private final Session session;
     private final FrameStream in;
-    private final List<FrameStream> outList = new ArrayList<FrameStream>();
+    // copy-on-write so frames go out without a lock; outLock only orders header setup against addOutput
+    private final List<OutputChannel> outList = new CopyOnWriteArrayList<OutputChannel>();
+    private final ReentrantLock outLock = new ReentrantLock();  // init can block on the input header
     private final StreamModule pipeline;
     private String id;
-    private StreamHeader outHeader;
-    private boolean closed = false;
+    private StreamHeader inHeader, outHeader;
+    private volatile boolean closed = false;
     private int count = 0;
     private boolean trace;
     private WebViewStream view;
+    private int requiredInputs = 0;
+    private int priority = StageScheduler.PRIORITY_DEVICE;
+    private final long created = System.currentTimeMillis();
+    private volatile Runnable unblockListener;
+    private volatile boolean awaitingInputs = false;  // a pooled stage asked its input header to wake it
+    private volatile Runnable leaveListener;
+    private CheckpointManager.Entry checkpoint;  // only touched by the thread running the pipeline
+    private QualityController.Meter meter;
 
-    PipeHandler(FrameStream in, StreamModule pipeline, FrameStream out, int port) throws Exception {
-      this(in, pipeline, out, port, false);
+    PipeHandler(Session session, FrameStream in, StreamModule pipeline, FrameStream out, int port) throws Exception {
+      this(session, in, pipeline, out, port, false);
     }
 
-    PipeHandler(FrameStream in, StreamModule pipeline, FrameStream out, int port, boolean trace) throws Exception {
+    PipeHandler(Session session, FrameStream in, StreamModule pipeline, FrameStream out, int port, boolean trace)
+            throws Exception {
+      this.session = session;
       id = "initializing";
       this.trace = trace;
       if (in == null)
@@ -242,15 +708,28 @@ public class App {
 
       this.in = in;
       if (out != null) {
-        outList.add(out);
+        outList.add(newOutput(session, out, out.getClass().getSimpleName()));
       }
       this.pipeline = pipeline;
-      view = new WebViewStream(port);
-      synchronized(App.this) {
+      view = openView(port);  // port is where to start looking
+      appLock.lock();
+      try {
         pipes_active++;
+      } finally {
+        appLock.unlock();
       }
     }
 
+    // of the pipe's web view
+    int getPort() {
+      return view.getPort();
+    }
+
+    // don't init the pipeline until the input MultiHeader has this many streams
+    public void requireInputs(int num) {
+      requiredInputs = num;
+    }
+
     public void addOutput(MultiFrameStream out) throws Exception {
       if (trace)
         System.out.println("Adding stream " + out.id + " to " + id);
@@ -258,74 +737,331 @@ public class App {
         throw new IllegalStateException("Pipeline closed");
       }
       String outId = out.id;
-      synchronized(outList) {
+      outLock.lock();
+      try {
         System.out.println("Adding output " + outId + " from pipe " + id + " at frame " + count);
-        outList.add(out);
+        OutputChannel channel = newOutput(session, out, outId);
+        channel.setSpaceListener(unblockListener);
+        outList.add(channel);
         if (outHeader != null)
           out.setHeader(outHeader);
+      } finally {
+        outLock.unlock();
+      }
+    }
+
+    // stop sending to target; frames already queued for it are still delivered
+    public void removeOutput(FrameStream target) {
+      for (OutputChannel out : outList) {
+        if (out.target == target) {
+          outList.remove(out);
+          System.out.println("Removed output " + out.name + " from pipe " + id + " at frame " + count);
+        }
+      }
+    }
+
+    // before the pipe is started
+    public void setMeter(QualityController.Meter meter) {
+      this.meter = meter;
+    }
+
+    // before the pipe is started
+    public void setPriority(int priority) {
+      this.priority = priority;
+    }
+
+    // run once the input has ended and the outputs have all frames, just before they are closed
+    public void setLeaveListener(Runnable listener) {
+      leaveListener = listener;
+    }
+
+    public boolean isClosed() {
+      return closed;
+    }
+
+    public StreamHeader getOutHeader() {
+      return outHeader;
+    }
+
+    @Override
+    public ReadyStream getInput() {
+      return (ReadyStream) in;
+    }
+
+    @Override
+    public boolean isBlocked() {
+      for (OutputChannel out : outList) {
+        if (out.isFull()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void setUnblockListener(Runnable listener) {
+      unblockListener = listener;
+      for (OutputChannel out : outList) {
+        out.setSpaceListener(listener);
+      }
+    }
+
+    @Override
+    public StageScheduler.Quota getQuota() {
+      return session.cpu;
+    }
+
+    @Override
+    public int getPriority() {
+      return priority;
+    }
+
+    @Override
+    public boolean canStart() throws Exception {
+      if (!getInput().isReady()) {
+        return false;
+      }
+      StreamHeader header = in.getHeader();
+      if (requiredInputs <= 0) {
+        return true;
+      }
+      if (header == null) {
+        return false;
+      }
+      MultiHeader mh = (MultiHeader) header;
+      if (mh.getRegistered() >= requiredInputs) {
+        return true;
+      }
+      if (!awaitingInputs && unblockListener != null) {
+        // the last input's header may come without new data, so have it reschedule us
+        awaitingInputs = true;
+        mh.whenRegistered(requiredInputs, unblockListener);
+      }
+      return false;
+    }
+
+    private void announce() throws Exception {
+      String pipeName = pipeline instanceof PipelineGraph.GraphPipeline ? pipeline.toString() :
+              pipeline.getClass().getSimpleName();
+      id = pipeName + '.' + in.getHeader().id;
+      if (trace)
+        System.out.println("Pipeline " + id + " created with " + outList.size());
+
+      System.out.println("Running stream " + id);
+    }
+
+    @Override
+    public void start() throws Exception {
+      if (id.equals("initializing")) {
+        announce();
+      }
+      System.out.println("Starting stream " + id + ", " + (System.currentTimeMillis() - created) +
+              "ms after it was set up");
+
+      outLock.lock();
+      try {
+        inHeader = in.getHeader();
+        outHeader = pipeline.init(inHeader);
+        for (OutputChannel out : outList) {
+          out.target.setHeader(outHeader);
+        }
+        view.setHeader(outHeader);
+      } finally {
+        outLock.unlock();
+      }
+      if (checkpoints != null && pipeline instanceof Checkpointable) {
+        String key = (session.name.equals(DEFAULT_SESSION) ? "" : session.name + ".") + pipeline + "." + inHeader.id;
+        checkpoint = checkpoints.open(key, (Checkpointable) pipeline);
+        checkpoint.restore();
+      }
+      if (quality != null && pipeline instanceof Degradable) {
+        quality.add((Degradable) pipeline);
+      }
+    }
+
+    @Override
+    public void handleBatch(StreamFrame[] frames) throws Exception {
+      if (trace) {
+        for (StreamFrame frame : frames) {
+          System.out.println(frame.toString());
+        }
+      }
+      long started = meter == null ? 0 : System.nanoTime();
+      StreamFrame[] outFrames = process(frames);
+      if (meter != null) {
+        meter.record(System.nanoTime() - started, (long) frames.length * inHeader.frameTime);
+      }
+      if (checkpoint != null) {
+        checkpoint.saveIfDue();
+      }
+      if (count == 0 && outFrames.length > 0 && priority == StageScheduler.PRIORITY_MERGE) {
+        System.out.println(session.prefix() + "First geometry frame " + sinceLaunch() + "ms after launch");
+      }
+      for (StreamFrame frame : outFrames) {
+        view.sendFrame(frame);
+        count++;
+        for (OutputChannel out : outList) {
+          out.send(frame);
+        }
+      }
+      releaseFrames(frames, outFrames);
+    }
+
+    // a pooled stage already holds a slot of its session's cpu quota; a pipe thread takes one only for
+    // the pipeline itself, not while it might wait for its outputs
+    private StreamFrame[] process(StreamFrame[] frames) throws Exception {
+      if (scheduler != null || session.cpu == null) {
+        return pipeline.processBatch(frames);
+      }
+      session.cpu.acquire();
+      try {
+        return pipeline.processBatch(frames);
+      } finally {
+        session.cpu.release();
+      }
+    }
+
+    // the pipe owns its input frames and the new frames its pipeline made; outputs hold their own references
+    private void releaseFrames(StreamFrame[] inFrames, StreamFrame[] outFrames) {
+      for (StreamFrame frame : outFrames) {
+        if (frame != null && !contains(inFrames, frame)) {
+          frame.release();
+        }
+      }
+      for (StreamFrame frame : inFrames) {
+        if (frame != null) {
+          frame.release();
+        }
+      }
+    }
+
+    private boolean contains(StreamFrame[] frames, StreamFrame frame) {
+      for (StreamFrame f : frames) {
+        if (f == frame) {
+          return true;  // passed straight through, e.g. a pipeline that only traces
+        }
+      }
+      return false;
+    }
+
+    // true if recvFrame will return without waiting; plain sources are never drained ahead, so a device
+    // reading from disk doesn't race ahead of the others into the joins
+    private boolean hasQueued() {
+      return in instanceof ReadyStream && ((ReadyStream) in).isReady();
+    }
+
+    // per-output delivery lag, to spot which consumer is falling behind
+    public String getOutputStats() {
+      StringBuilder sb = new StringBuilder();
+      for (OutputChannel out : outList) {
+        sb.append(sb.length() == 0 ? "" : ", ").append(out);
+      }
+      return sb.toString();
+    }
+
+    private void closeOutputs() throws InterruptedException {
+      outLock.lock();
+      try {
+        System.out.println("Done with pipe " + id + " count=" + count);
+        if (inHeader instanceof RawAudioHeader) {
+          System.out.println("Frame pool of " + id + ": " + ((RawAudioHeader) inHeader).getPoolStats());
+        }
+        closed = true;
+        for (OutputChannel out : outList) {
+          out.finish();  // let queued frames reach the outputs before they see the end
+        }
+        if (!outList.isEmpty()) {
+          System.out.println("Outputs of " + id + ": " + getOutputStats());
+        }
+        Runnable listener = leaveListener;
+        if (listener != null) {
+          listener.run();
+        }
+        outHeader.close();
+        for (OutputChannel out : outList) {
+          out.target.close();
+        }
+        if (checkpoint != null) {
+          checkpoint.save();
+        }
+        if (quality != null && pipeline instanceof Degradable) {
+          quality.remove((Degradable) pipeline);
+        }
+        if (meter != null) {
+          meter.close();
+        }
+        pipeline.close();
+      } finally {
+        outLock.unlock();
+      }
+    }
+
+    private void release() {
+      appLock.lock();
+      try {
+        pipes_active--;
+        pipesDone.signalAll();
+      } finally {
+        appLock.unlock();
+      }
+      if (view != null) {
+        int port = view.getPort();
+        view.close();
+        freePort(port);
+      }
+    }
+
+    @Override
+    public void finish() {
+      try {
+        if (outHeader != null) {
+          closeOutputs();
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      } finally {
+        release();
       }
     }
 
     @Override
     public void run() {
       try {
-        String pipeName = pipeline.getClass().getSimpleName();
-        id = pipeName + '.' + in.getHeader().id;
-        if (trace)
-          System.out.println("Pipeline " + id + " created with " + outList.size());
-
-        System.out.println("Running stream " + id);
-        Thread.sleep(STARTUP_DELAY);
-        System.out.println("Starting stream " + id);
-
-        synchronized(outList) {
-          outHeader = pipeline.init(in.getHeader());
-          for (FrameStream out : outList) {
-            out.setHeader(outHeader);
-          }
-          view.setHeader(outHeader);
+        announce();
+        if (requiredInputs > 0) {
+          ((MultiHeader) in.getHeader()).waitForHeaders(requiredInputs);
         }
+        start();
 
         try {
-          while (true) {
+          List<StreamFrame> batch = new ArrayList<StreamFrame>();
+          boolean done = false;
+          while (!done) {
             StreamFrame frame = in.recvFrame();
             if (frame == null)
               break;
-            if (trace) {
-              System.out.println(frame.toString());
-            }
-            frame = pipeline.process(frame);
-            view.sendFrame(frame);
-            count++;
-            synchronized(outList) {
-              for (FrameStream out : outList) {
-                out.sendFrame(frame);
+            batch.add(frame);
+            // take whatever else is already waiting, so the pipeline can work on it in one go
+            while (batch.size() < MAX_BATCH && hasQueued()) {
+              frame = in.recvFrame();
+              if (frame == null) {
+                done = true;
+                break;
               }
+              batch.add(frame);
             }
+            handleBatch(batch.toArray(new StreamFrame[batch.size()]));
+            batch.clear();
           }
         } catch (Exception e) {
           e.printStackTrace();
         }
 
-        synchronized(outList) {
-          System.out.println("Done with pipe " + id + " count=" + count);
-          closed = true;
-          outHeader.close();
-          for (FrameStream out : outList) {
-            out.close();
-          }
-          pipeline.close();
-        }
+        closeOutputs();
       } catch (Exception e) {
         e.printStackTrace();
       } finally {
-        synchronized(App.this) {
-          pipes_active--;
-          App.this.notifyAll();
-        }
-        if (view != null) {
-          view.close();
-        }
+        release();
       }
     }
   }
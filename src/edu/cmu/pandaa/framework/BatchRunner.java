@@ -0,0 +1,274 @@
+package edu.cmu.pandaa.framework;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import edu.cmu.pandaa.module.RMSModule;
+import edu.cmu.pandaa.stream.DistanceFileStream;
+import edu.cmu.pandaa.stream.GeometryFileStream;
+import edu.cmu.pandaa.stream.RawAudioFileStream;
+
+/*
+ * Replays many recorded sessions in one JVM, e.g. the whole archive after an algorithm change.
+ *
+ * Every session (a recordings directory, or a set of wav files like audio_src/name) gets its own
+ * OfflineEngine on one thread, so its output is the same as App -offline 1 gives, and the sessions
+ * run side by side on a work-stealing pool, biggest first so a large one doesn't start last. The
+ * pool has a thread per core, but no more than the heap holds: a session needs about DEVICE_BYTES
+ * per device and PAIR_BYTES per pair, and the pool is sized for the largest session.
+ *
+ * Each session writes its traces and output.txt to <out>/<name>/. If there's ground truth next to
+ * the recordings, <dir>.txt or <set>.txt in the geometry format of audio_src, the RMS error of the
+ * estimate goes to rms.txt there too. <out>/summary.txt lists, per session, the devices, geometry
+ * frames, audio seconds, run time, speed relative to real time and final RMS error, with totals.
+ *
+ * usage: BatchRunner [-graph name|file] [-threads N] [-out dir] <session|glob|@listfile>...
+ */
+public class BatchRunner {
+  static final long DEVICE_BYTES = 2 * 1024 * 1024;  // buffers, trace writers and frames of a device pipe
+  static final long PAIR_BYTES = 1024 * 1024;        // a pair join and its pipe
+
+  private String graphName = "mfcc";  // as App
+  private int threads = 0;  // 0: from the cores and the heap
+  private String outDir = "batch";
+  private final List<Session> sessions = new ArrayList<Session>();
+
+  class Session implements Callable<Session> {
+    final String path;
+    final int devices;
+    String name;
+    int frames, geometryFrames, frameTime;
+    long runMs;
+    double rms = Double.NaN;
+    String error;
+
+    Session(String path) {
+      this.path = path;
+      devices = countDevices(path);
+    }
+
+    long footprint() {
+      return devices * DEVICE_BYTES + devices * (devices - 1) / 2 * PAIR_BYTES;
+    }
+
+    public Session call() {
+      long start = System.currentTimeMillis();
+      try {
+        String dir = outDir + File.separator + name + File.separator;
+        new File(dir).mkdirs();
+        OfflineEngine engine = new OfflineEngine(PipelineGraph.load(graphName), 1, dir);
+        for (RawAudioFileStream in : App.openRecordings(new String[] { path })) {
+          frameTime = in.getHeader().frameTime;
+          engine.addDevice(in);
+        }
+        engine.run(new GeometryFileStream(dir + "output.txt", true));
+        frames = engine.getRounds();
+        geometryFrames = engine.getGeometryFrames();
+        String truth = groundTruth(path);
+        if (truth != null) {
+          RMSModule module = new RMSModule();
+          module.runModule(new GeometryFileStream(dir + "output.txt"), new GeometryFileStream(truth),
+                  new DistanceFileStream(dir + "rms.txt", true),
+                  new GeometryFileStream(dir + "rms-actual.txt", true, true));
+          rms = module.getLastRms();
+        }
+      } catch (Throwable e) {
+        error = e.toString();
+        e.printStackTrace();
+      }
+      runMs = System.currentTimeMillis() - start;
+      return this;
+    }
+
+    double audioSeconds() {
+      return frames * (double) frameTime / 1000;
+    }
+  }
+
+  // devices the session will have, without opening its recordings
+  static int countDevices(String path) {
+    String[] files = new File(path).isDirectory() ? App.processDirectory(path) : App.expandFiles(path);
+    return files.length;
+  }
+
+  // the ground truth geometry of a session, null if there is none
+  static String groundTruth(String path) {
+    String base = path;
+    while (base.endsWith(File.separator)) {
+      base = base.substring(0, base.length() - 1);
+    }
+    File truth = new File(base + ".txt");
+    return truth.isFile() ? truth.getPath() : null;
+  }
+
+  // a session, a glob of them (quote it) or @file with one per line
+  void addSessions(String arg) throws Exception {
+    if (arg.startsWith("@")) {
+      BufferedReader in = new BufferedReader(new FileReader(arg.substring(1)));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          line = line.trim();
+          if (line.length() > 0 && !line.startsWith("#")) {
+            addSessions(line);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } else if (arg.indexOf('*') >= 0 || arg.indexOf('?') >= 0) {
+      for (String path : expandGlob(arg)) {
+        sessions.add(new Session(path));
+      }
+    } else {
+      sessions.add(new Session(arg));
+    }
+  }
+
+  // matches the last path component only, like the shell does for dir/*
+  static SortedSet<String> expandGlob(String glob) {
+    File parent = new File(glob).getParentFile();
+    String dir = parent == null ? "." : parent.getPath();
+    String regex = new File(glob).getName().replace(".", "\\.").replace("?", ".").replace("*", ".*");
+    SortedSet<String> paths = new TreeSet<String>();
+    String[] flist = new File(dir).list();
+    if (flist == null) {
+      throw new IllegalArgumentException("No such directory: " + dir);
+    }
+    for (String file : flist) {
+      File match = new File(parent, file);
+      if (file.matches(regex) && (match.isDirectory() || file.endsWith(".wav"))) {
+        // a set of wav files is one session, named by what its files start with
+        paths.add(match.isDirectory() ? match.getPath() : match.getPath().replaceAll("(-[0-9]+)?\\.wav$", ""));
+      }
+    }
+    return paths;
+  }
+
+  // output directories are named after the sessions, made unique
+  private void nameSessions() {
+    Set<String> names = new HashSet<String>();
+    for (Session session : sessions) {
+      String name = new File(session.path).getName();
+      String unique = name;
+      for (int i = 2; !names.add(unique); i++) {
+        unique = name + "-" + i;
+      }
+      session.name = unique;
+    }
+  }
+
+  // a thread per core, as long as the heap has room for that many of the largest session
+  int poolSize() {
+    long largest = 1;
+    for (Session session : sessions) {
+      largest = Math.max(largest, session.footprint());
+    }
+    Runtime runtime = Runtime.getRuntime();
+    long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    int fits = (int) Math.max(1, available / largest);
+    int size = Math.min(runtime.availableProcessors(), fits);
+    System.out.println("Largest session needs about " + largest / 1024 + "KB of " + available / 1024 +
+            "KB free, " + size + " threads");
+    return Math.max(1, Math.min(size, sessions.size()));
+  }
+
+  public void run() throws Exception {
+    nameSessions();
+    Collections.sort(sessions, new Comparator<Session>() {
+      public int compare(Session a, Session b) {
+        return b.devices - a.devices;
+      }
+    });
+    int size = threads > 0 ? threads : poolSize();
+    ForkJoinPool pool = new ForkJoinPool(size);
+    long start = System.currentTimeMillis();
+    List<Session> done = new ArrayList<Session>();
+    try {
+      for (Future<Session> result : pool.invokeAll(sessions)) {
+        done.add(result.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+    summarize(done, size, System.currentTimeMillis() - start);
+  }
+
+  private void summarize(List<Session> done, int size, long wallMs) throws Exception {
+    new File(outDir).mkdirs();
+    PrintWriter out = new PrintWriter(new FileWriter(outDir + File.separator + "summary.txt"));
+    try {
+      String heading = String.format("%-24s %7s %9s %9s %9s %8s %10s", "session", "devices", "geometry",
+              "audio_s", "run_ms", "speed", "rms");
+      System.out.println(heading);
+      out.println(heading);
+      double audio = 0, rmsSum = 0;
+      int rmsCount = 0, failed = 0;
+      for (Session s : done) {
+        String line = String.format("%-24s %7d %9d %9.1f %9d %7.1fx %10s", s.name, s.devices,
+                s.geometryFrames, s.audioSeconds(), s.runMs, s.audioSeconds() * 1000 / Math.max(1, s.runMs),
+                Double.isNaN(s.rms) ? "-" : String.format("%.4f", s.rms));
+        if (s.error != null) {
+          line += " FAILED: " + s.error;
+          failed++;
+        }
+        System.out.println(line);
+        out.println(line);
+        audio += s.audioSeconds();
+        if (!Double.isNaN(s.rms)) {
+          rmsSum += s.rms;
+          rmsCount++;
+        }
+      }
+      String total = String.format("sessions=%d failed=%d threads=%d audio_s=%.1f wall_ms=%d speed=%.1fx " +
+              "mean_rms=%s", done.size(), failed, size, audio, wallMs, audio * 1000 / Math.max(1, wallMs),
+              rmsCount == 0 ? "-" : String.format("%.4f (%d sessions)", rmsSum / rmsCount, rmsCount));
+      System.out.println(total);
+      out.println(total);
+    } finally {
+      out.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    BatchRunner runner = new BatchRunner();
+    int arg = 0;
+    while (arg < args.length && args[arg].startsWith("-")) {
+      String opt = args[arg++];
+      if (arg == args.length) {
+        throw new IllegalArgumentException("Missing value for " + opt);
+      }
+      if (opt.equals("-graph")) {
+        runner.graphName = args[arg++];
+      } else if (opt.equals("-threads")) {
+        runner.threads = Integer.parseInt(args[arg++]);
+      } else if (opt.equals("-out")) {
+        runner.outDir = args[arg++];
+      } else {
+        throw new IllegalArgumentException("Unknown option " + opt);
+      }
+    }
+    for (; arg < args.length; arg++) {
+      runner.addSessions(args[arg]);
+    }
+    if (runner.sessions.isEmpty()) {
+      System.err.println("usage: BatchRunner [-graph name|file] [-threads N] [-out dir] <session|glob|@listfile>...");
+      System.exit(1);
+    }
+    runner.run();
+  }
+}
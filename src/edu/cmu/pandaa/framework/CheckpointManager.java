@@ -0,0 +1,168 @@
+package edu.cmu.pandaa.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.cmu.pandaa.module.Checkpointable;
+import edu.cmu.pandaa.utils.ThreadUtil;
+
+/*
+ * Snapshots of pipeline state on disk (see Checkpointable), so a restarted App starts from the
+ * converged calibration, filters and orientation instead of spending minutes of audio getting back there.
+ *
+ * Every interval the manager bumps a generation. Each pipe notices between batches, serializes its own
+ * pipeline on its own thread, so nothing has to lock against process(), and hands the bytes to the
+ * manager's single thread, which replaces DIR/<key>.ckpt through a temp file. Pipes also save as they
+ * close. Keys are the pipeline name plus its input's id, i.e. the ids of the device or pair it serves.
+ */
+public class CheckpointManager {
+  private final File dir;
+  private final ScheduledExecutorService writer;  // ticks and file writes
+  private volatile int generation = 0;
+  private final AtomicInteger saved = new AtomicInteger(), restored = new AtomicInteger(),
+          failed = new AtomicInteger();
+
+  public CheckpointManager(File dir, long intervalMs) {
+    this.dir = dir;
+    dir.mkdirs();
+    writer = Executors.newSingleThreadScheduledExecutor(ThreadUtil.daemonFactory("checkpoint"));
+    writer.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        generation++;
+      }
+    }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  // "dir" or "dir:seconds"
+  public static CheckpointManager parse(String spec, int defaultSeconds) {
+    int colon = spec.lastIndexOf(':');
+    int seconds = defaultSeconds;
+    if (colon > 0) {
+      seconds = Integer.parseInt(spec.substring(colon + 1));
+      spec = spec.substring(0, colon);
+    }
+    if (seconds <= 0) {
+      throw new IllegalArgumentException("Checkpoint interval must be positive: " + seconds);
+    }
+    return new CheckpointManager(new File(spec), seconds * 1000L);
+  }
+
+  public Entry open(String key, Checkpointable state) {
+    return new Entry(key, state);
+  }
+
+  private File fileFor(String key) {
+    return new File(dir, key.replaceAll("[^A-Za-z0-9._,-]", "_") + ".ckpt");
+  }
+
+  // one pipeline's checkpoint; only used by the pipe that owns the pipeline
+  public class Entry {
+    final String key;
+    final Checkpointable state;
+    private int seen = generation;
+
+    Entry(String key, Checkpointable state) {
+      this.key = key;
+      this.state = state;
+    }
+
+    // after the pipeline's init; false if there was nothing (usable) to restore
+    public boolean restore() {
+      File file = fileFor(key);
+      if (!file.exists()) {
+        return false;
+      }
+      try {
+        InputStream in = new FileInputStream(file);
+        try {
+          state.restoreState(new DataInputStream(in));
+        } finally {
+          in.close();
+        }
+        restored.incrementAndGet();
+        System.out.println("Restored checkpoint " + key);
+        return true;
+      } catch (IOException e) {
+        System.out.println("Ignoring checkpoint " + file + ": " + e);
+        return false;
+      }
+    }
+
+    // cheap enough to call after every batch
+    public void saveIfDue() {
+      if (seen != generation) {
+        save();
+      }
+    }
+
+    public void save() {
+      seen = generation;
+      final byte[] bytes;
+      try {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        state.saveState(out);
+        out.flush();
+        bytes = buf.toByteArray();
+      } catch (IOException e) {
+        failed.incrementAndGet();
+        return;
+      }
+      try {
+        writer.execute(new Runnable() {
+          public void run() {
+            write(key, bytes);
+          }
+        });
+      } catch (RuntimeException e) {
+        failed.incrementAndGet();  // already closed
+      }
+    }
+  }
+
+  private void write(String key, byte[] bytes) {
+    File file = fileFor(key);
+    File tmp = new File(dir, file.getName() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(bytes);
+      } finally {
+        out.close();
+      }
+      // never leave a half-written checkpoint where restore would find it
+      if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+        throw new IOException("can't replace " + file);
+      }
+      saved.incrementAndGet();
+    } catch (IOException e) {
+      failed.incrementAndGet();
+      System.out.println("Checkpoint " + key + " not saved: " + e);
+    }
+  }
+
+  public String getStats() {
+    return "saved=" + saved + " restored=" + restored + " failed=" + failed;
+  }
+
+  // waits for the queued writes, so the pipes' final saves make it to disk
+  public void close() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      // give up on what's left
+    }
+  }
+}
@@ -71,6 +71,15 @@ public class DualPipeline implements StreamModule {
     return frame;
   }
 
+  @Override
+  public StreamFrame[] processBatch(StreamFrame[] inFrames) throws Exception {
+    StreamFrame[] frames = tdoa.processBatch(inFrames);
+    for (StreamFrame frame : frames) {
+      trace.sendFrame(frame);
+    }
+    return distance.processBatch(frames);
+  }
+
   @Override
   public void close() {
     trace.close();
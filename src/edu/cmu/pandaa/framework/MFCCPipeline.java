@@ -53,6 +53,15 @@ public class MFCCPipeline implements StreamModule {
     return frame;
   }
 
+  @Override
+  public StreamFrame[] processBatch(StreamFrame[] inFrames) throws Exception {
+    StreamFrame[] frames = mfcc.processBatch(inFrames);
+    for (StreamFrame frame : frames) {
+      trace.sendFrame(frame);
+    }
+    return frames;
+  }
+
   @Override
   public void close() {
     trace.close();
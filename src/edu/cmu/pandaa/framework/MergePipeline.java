@@ -59,6 +59,15 @@ public class MergePipeline implements StreamModule {
     return frame;
   }
 
+  @Override
+  public StreamFrame[] processBatch(StreamFrame[] inFrames) throws Exception {
+    StreamFrame[] frames = matrix.processBatch(inFrames);
+    for (StreamFrame frame : frames) {
+      trace.sendFrame(frame);
+    }
+    return geometry.processBatch(frames);
+  }
+
   @Override
   public void close() {
     trace.close();
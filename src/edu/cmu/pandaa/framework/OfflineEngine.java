@@ -0,0 +1,228 @@
+package edu.cmu.pandaa.framework;
+
+import java.nio.channels.IllegalBlockingModeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.cmu.pandaa.header.StreamHeader;
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+import edu.cmu.pandaa.module.StreamModule;
+import edu.cmu.pandaa.stream.FrameStream;
+import edu.cmu.pandaa.stream.MultiFrameStream;
+import edu.cmu.pandaa.utils.ThreadUtil;
+
+/*
+ * Replays recorded sessions as fast as the CPU allows, with results that are the same on every run.
+ *
+ * Instead of a thread per pipe, the graph is built up front in topological order (devices, pairs,
+ * merge) and run in lockstep: each round reads one frame from every device and pushes it through the
+ * device pipelines, then each pair takes whatever slices its join has complete, then the merge does.
+ * The joins are the usual MultiFrameStreams in noblock mode, without a watermark, so nothing waits on
+ * the wall clock and there are no startup delays; sources should be read without time dilation.
+ *
+ * With threads > 1 the devices of a round, and then the pairs, run side by side on a fixed pool. Each
+ * one only touches its own pipeline and its own slot of the next join, and every tier finishes before
+ * the next one starts, so the output doesn't depend on the thread count either.
+ */
+public class OfflineEngine {
+  private final PipelineGraph graph;
+  private final int threads;
+  private final String traceDir;
+  private final List<FrameStream> sources = new ArrayList<FrameStream>();
+  private final List<Stage> devices = new ArrayList<Stage>();
+  private final List<Stage> pairs = new ArrayList<Stage>();
+  private final MultiFrameStream combiner;
+  private Stage merge;
+  private int rounds = 0;
+
+  public OfflineEngine(PipelineGraph graph, int threads, String traceDir) throws Exception {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Need at least one thread");
+    }
+    this.graph = graph;
+    this.threads = threads;
+    this.traceDir = traceDir;
+    combiner = new MultiFrameStream("combiner");
+    combiner.noblock = true;
+  }
+
+  public void addDevice(FrameStream in) {
+    sources.add(in);
+  }
+
+  // one pipeline with its input; the device tier reads one frame per round, joined tiers drain their join
+  class Stage implements Callable<Boolean> {
+    final String name;
+    final FrameStream in;
+    final StreamModule pipeline;
+    final List<FrameStream> outs = new ArrayList<FrameStream>();
+    final boolean joined;
+    StreamHeader outHeader;
+    boolean done = false;
+    int count = 0;
+
+    Stage(String name, FrameStream in, StreamModule pipeline, boolean joined) {
+      this.name = name;
+      this.in = in;
+      this.pipeline = pipeline;
+      this.joined = joined;
+    }
+
+    StreamHeader init() throws Exception {
+      outHeader = pipeline.init(in.getHeader());
+      return outHeader;
+    }
+
+    // false once there's nothing more to do this round
+    public Boolean call() throws Exception {
+      if (done) {
+        return false;
+      }
+      if (!joined) {
+        return step(in.recvFrame());
+      }
+      while (true) {
+        StreamFrame frame;
+        try {
+          frame = in.recvFrame();
+        } catch (IllegalBlockingModeException e) {
+          return true;  // no complete slice yet
+        }
+        if (!step(frame)) {
+          return false;
+        }
+      }
+    }
+
+    private boolean step(StreamFrame frame) throws Exception {
+      if (frame == null) {
+        finish();
+        return false;
+      }
+      StreamFrame out = pipeline.process(frame);
+      if (out != null) {
+        count++;
+        for (FrameStream target : outs) {
+          target.sendFrame(out);
+        }
+        if (out != frame) {
+          out.release();
+        }
+      }
+      frame.release();
+      return true;
+    }
+
+    void finish() throws Exception {
+      if (done) {
+        return;
+      }
+      done = true;
+      System.out.println("Done with pipe " + name + " count=" + count);
+      if (outs.contains(combiner)) {
+        combiner.removeInput(outHeader);  // the geometry carries on over the remaining pairs
+      }
+      outHeader.close();
+      for (FrameStream target : outs) {
+        if (!(target instanceof MultiFrameStream)) {
+          target.close();
+        }
+      }
+      pipeline.close();
+    }
+  }
+
+  // wire up and init the whole graph, producers before their consumers
+  private void build(FrameStream output) throws Exception {
+    for (FrameStream in : sources) {
+      StreamHeader header = in.getHeader();
+      Stage device = new Stage(graph.name + ".device." + header.id, in, graph.build("device", traceDir), false);
+      device.init();
+      devices.add(device);
+    }
+    for (int i = 0; i < devices.size(); i++) {
+      for (int j = i + 1; j < devices.size(); j++) {
+        Stage a = devices.get(i), b = devices.get(j);
+        if (a.outHeader.id.compareTo(b.outHeader.id) > 0) {
+          Stage t = a;
+          a = b;
+          b = t;
+        }
+        MultiFrameStream join = new MultiFrameStream(App.combineIds(a.in.getHeader().id, b.in.getHeader().id));
+        join.noblock = true;
+        a.outs.add(join);
+        b.outs.add(join);
+        join.setHeader(a.outHeader);
+        join.setHeader(b.outHeader);
+        Stage pair = new Stage(graph.name + ".pair." + join.id, join, graph.build("pair", traceDir), true);
+        pair.outs.add(combiner);
+        combiner.setHeader(pair.init());
+        pairs.add(pair);
+      }
+    }
+    merge = new Stage(graph.name + ".merge.combiner", combiner, graph.build("merge", traceDir), true);
+    merge.outs.add(output);
+    output.setHeader(merge.init());
+  }
+
+  public void run(FrameStream output) throws Exception {
+    if (sources.size() < 2) {
+      throw new IllegalArgumentException("Need at least two devices, got " + sources.size());
+    }
+    build(output);
+    ExecutorService pool = threads > 1 ?
+            Executors.newFixedThreadPool(threads, ThreadUtil.daemonFactory("offline")) : null;
+    try {
+      boolean reading = true;
+      while (reading) {
+        reading = runTier(devices, pool);
+        runTier(pairs, pool);
+        merge.call();
+        rounds++;
+      }
+      // every device has ended: slices the joins couldn't complete by now never will be
+      for (Stage pair : pairs) {
+        pair.finish();
+      }
+      merge.call();
+      merge.finish();
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  // true if any stage did something
+  private boolean runTier(List<Stage> tier, ExecutorService pool) throws Exception {
+    boolean any = false;
+    if (pool == null) {
+      for (Stage stage : tier) {
+        any |= stage.call();
+      }
+      return any;
+    }
+    for (Future<Boolean> result : pool.invokeAll(tier)) {
+      any |= result.get();  // rethrows a stage's exception
+    }
+    return any;
+  }
+
+  // rounds read so far, i.e. frames per device
+  public int getRounds() {
+    return rounds;
+  }
+
+  public int getGeometryFrames() {
+    return merge == null ? 0 : merge.count;
+  }
+
+  public String getStats() {
+    return "rounds=" + rounds + " devices=" + devices.size() + " pairs=" + pairs.size() +
+            " threads=" + threads + " geometry_frames=" + (merge == null ? 0 : merge.count);
+  }
+}
@@ -0,0 +1,246 @@
+package edu.cmu.pandaa.framework;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+import edu.cmu.pandaa.stream.BoundedStream;
+import edu.cmu.pandaa.stream.FrameStream;
+import edu.cmu.pandaa.stream.OverflowPolicy;
+
+/*
+ * One subscriber of a PipeHandler. Frames are queued here and delivered to the target stream by a
+ * task on the shared delivery executor, at most one task per channel at a time so the target still
+ * sees frames in order. A slow or blocked target only backs up its own queue. The executor is
+ * bounded, so a target that would make the drain wait for room (a BoundedStream, e.g. a join with BLOCK
+ * overflow) doesn't get to hold a delivery thread: the drain stops while it is full and the target
+ * calls it back once it has room.
+ *
+ * The queue holds at most capacity frames (0 for unbounded); past that the overflow policy applies.
+ * BLOCK makes send() wait, unless the channel belongs to a pooled stage: those must not park a
+ * worker, so the scheduler holds the whole stage back while isFull() instead (see PipeHandler).
+ */
+class OutputChannel {
+  final FrameStream target;
+  final String name;
+  private final Executor executor;
+  private final BoundedStream bounded;  // target, if it can say it's full
+  private final ConcurrentLinkedQueue<StreamFrame> queue = new ConcurrentLinkedQueue<StreamFrame>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final AtomicLong queued = new AtomicLong(), delivered = new AtomicLong(), dropped = new AtomicLong();
+  private final int capacity;
+  private final OverflowPolicy overflow;
+  private final boolean mayWait;
+  private final ReentrantLock spaceLock = new ReentrantLock();
+  private final Condition space = spaceLock.newCondition();
+  private volatile boolean waiting;
+  private volatile Runnable spaceListener;
+  private final AtomicBoolean stalled = new AtomicBoolean();  // a stage was held back by isFull()
+  private volatile long blocked, held;
+  private volatile long maxLag;
+  private volatile boolean finishing, failed;
+  private final CountDownLatch drained = new CountDownLatch(1);
+
+  private final Runnable drainTask = new Runnable() {
+    public void run() {
+      drain();
+    }
+  };
+
+  // the target has room again; the drain is still scheduled, see drain()
+  private final Runnable resumeTask = new Runnable() {
+    public void run() {
+      executor.execute(drainTask);
+    }
+  };
+
+  OutputChannel(FrameStream target, String name, Executor executor) {
+    this(target, name, executor, 0, OverflowPolicy.BLOCK, true);
+  }
+
+  OutputChannel(FrameStream target, String name, Executor executor, int capacity, OverflowPolicy overflow,
+                boolean mayWait) {
+    this.target = target;
+    this.name = name;
+    this.executor = executor;
+    bounded = target instanceof BoundedStream ? (BoundedStream) target : null;
+    this.capacity = capacity;
+    this.overflow = overflow;
+    this.mayWait = mayWait;
+  }
+
+  // run when a full BLOCK channel has room again
+  void setSpaceListener(Runnable listener) {
+    spaceListener = listener;
+  }
+
+  // a BLOCK channel at capacity; its stage shouldn't produce more until this clears
+  boolean isFull() {
+    if (capacity <= 0 || overflow != OverflowPolicy.BLOCK) {
+      return false;
+    }
+    stalled.set(true);  // before the check, so a drain that makes room right now still calls back
+    if (getLag() >= capacity) {
+      return true;
+    }
+    stalled.set(false);
+    return false;
+  }
+
+  void send(StreamFrame frame) {
+    if (frame == null) {
+      return;  // pipelines return null for "no output this time", which every stream ignores
+    }
+    if (finishing) {
+      throw new IllegalStateException("Output " + name + " already finished");
+    }
+    frame.retain();  // released once the target has it, see drain()
+    if (capacity > 0 && getLag() >= capacity && !makeRoom()) {
+      frame.release();
+      return;
+    }
+    queue.offer(frame);
+    queued.incrementAndGet();
+    long lag = getLag();
+    if (lag > maxLag) {
+      maxLag = lag;
+    }
+    schedule();
+  }
+
+  // the queue is at capacity: false if the new frame should be dropped
+  private boolean makeRoom() {
+    switch (overflow) {
+      case BLOCK:
+        if (mayWait) {
+          blocked++;
+          awaitSpace();
+        }
+        return true;  // a pooled stage overshoots by at most one batch, see isFull()
+      case DROP_NEWEST:
+        dropped.incrementAndGet();
+        return false;
+      default:
+        // DROP_OLDEST makes room for one, COALESCE clears the backlog; racing the drain task for
+        // the head is fine, whoever polls a frame accounts for it
+        long keep = overflow == OverflowPolicy.DROP_OLDEST ? capacity - 1 : 0;
+        StreamFrame old;
+        while (getLag() > keep && (old = queue.poll()) != null) {
+          old.release();
+          dropped.incrementAndGet();
+        }
+        return true;
+    }
+  }
+
+  private void awaitSpace() {
+    spaceLock.lock();
+    try {
+      waiting = true;
+      while (getLag() >= capacity && !failed) {
+        space.awaitUninterruptibly();
+      }
+      waiting = false;
+    } finally {
+      spaceLock.unlock();
+    }
+  }
+
+  private void signalSpace() {
+    if (waiting) {
+      spaceLock.lock();
+      try {
+        space.signalAll();
+      } finally {
+        spaceLock.unlock();
+      }
+    }
+    Runnable listener = spaceListener;
+    if (listener != null && getLag() < capacity && stalled.compareAndSet(true, false)) {
+      listener.run();
+    }
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(drainTask);
+    }
+  }
+
+  private void drain() {
+    StreamFrame frame;
+    while ((frame = queue.peek()) != null) {
+      if (!failed && bounded != null && bounded.isFull(frame, resumeTask)) {
+        held++;
+        return;  // stays scheduled, so sends don't start another drain before resumeTask does
+      }
+      frame = queue.poll();  // the head, or what an overflow policy left of the queue
+      if (frame == null) {
+        break;
+      }
+      if (!failed) {
+        try {
+          target.sendFrame(frame);
+        } catch (Exception e) {
+          e.printStackTrace();
+          failed = true;  // drop the rest for this subscriber only
+        }
+      }
+      frame.release();  // a target that keeps the frame retains it itself
+      delivered.incrementAndGet();
+      if (capacity > 0) {
+        signalSpace();
+      }
+    }
+    scheduled.set(false);
+    if (!queue.isEmpty()) {
+      schedule();  // raced with a send after our last poll
+    } else if (finishing && getLag() == 0) {
+      drained.countDown();
+    }
+  }
+
+  // stop accepting frames and wait until everything queued has been handed to the target
+  void finish() throws InterruptedException {
+    finishing = true;
+    if (queue.isEmpty() && !scheduled.get()) {
+      drained.countDown();
+    } else {
+      schedule();  // make sure someone is around to notice the end
+    }
+    drained.await();
+  }
+
+  // frames sent but not yet delivered or dropped
+  long getLag() {
+    return queued.get() - delivered.get() - dropped.get();
+  }
+
+  long getMaxLag() {
+    return maxLag;
+  }
+
+  long getDelivered() {
+    return delivered.get();
+  }
+
+  long getDropped() {
+    return dropped.get();
+  }
+
+  boolean isFailed() {
+    return failed;
+  }
+
+  public String toString() {
+    return name + " lag=" + getLag() + " max_lag=" + maxLag + " delivered=" + delivered.get() +
+            (dropped.get() > 0 ? " dropped=" + dropped.get() : "") + (blocked > 0 ? " blocked=" + blocked : "") +
+            (held > 0 ? " held=" + held : "") +
+            (failed ? " FAILED" : "");
+  }
+}
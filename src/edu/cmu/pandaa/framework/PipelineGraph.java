@@ -0,0 +1,540 @@
+package edu.cmu.pandaa.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import edu.cmu.pandaa.header.*;
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+import edu.cmu.pandaa.module.*;
+import edu.cmu.pandaa.stream.*;
+
+/*
+ * Declarative replacement for the hard-coded *Pipeline classes. A graph describes the module chain
+ * for each tier of App's topology in a properties file:
+ *
+ *   device = mfcc trace
+ *   pair   = join:2 vector trace distance:100
+ *   merge  = join:all matrix trace geometry
+ *
+ * Nodes are separated by whitespace, arguments follow a colon:
+ *   join:N|all      first node of a joined tier; waits until N inputs are registered (all: no wait)
+ *   trace[:name]    tap writing the frames at that point to <trace dir>/<input id>[-name].txt
+ *   mfcc, impulse[:augment], vector, tdoa, distance:weight, matrix, geometry
+ *
+ * Each tier compiles into a single StreamModule call chain. Runs of stateless nodes (taps, joins and
+ * StatelessModules, whose process() only looks at the frame passed in) are fused into one node. That
+ * is structural only: the run makes the same process() calls it would unfused, and every module still
+ * allocates its own output frames, since those frames outlive the call (traces, shards, the combiner).
+ * All it saves is the frame array each tap and join would otherwise copy per batch.
+ *
+ * A built pipeline is Checkpointable over the Checkpointable modules in it, in graph order, and
+ * Degradable over its Degradable modules.
+ *
+ * Traces are written on the pipe's own thread unless deferTraces hands them to a writer: then they
+ * are best effort, each tap lagging at most a backlog of frames behind and skipping frames past that,
+ * so trace files never hold up the geometry.
+ */
+public class PipelineGraph {
+  public static final String[] TIERS = { "device", "pair", "merge" };
+  public static final int JOIN_ALL = -1;
+
+  static final String MFCC_GRAPH =
+          "device = mfcc trace\n" +
+          "pair = join:2 vector trace distance:100\n" +
+          "merge = join:all matrix trace geometry\n";
+
+  static final String IMPULSE_GRAPH =
+          "device = impulse:augment trace\n" +
+          "pair = join:2 tdoa trace distance:100\n" +
+          "merge = join:all matrix trace geometry\n";
+
+  final String name;
+  private final Properties tiers = new Properties();
+  private Executor traceWriter;  // null writes traces synchronously
+  private int traceBacklog;
+
+  PipelineGraph(String name, Reader in) throws Exception {
+    this.name = name;
+    tiers.load(in);
+    for (String tier : TIERS) {
+      String[] nodes = getNodes(tier);
+      if (nodes.length == 0) {
+        throw new IllegalArgumentException("Graph " + name + " has no " + tier + " tier");
+      }
+      boolean joined = !tier.equals("device");
+      if (joined != nodes[0].startsWith("join")) {
+        throw new IllegalArgumentException("Graph " + name + ": " + tier + " tier " +
+                (joined ? "must start with a join" : "can't have a join"));
+      }
+      build(tier);  // fail on bad node names now rather than when the first device shows up
+    }
+  }
+
+  // one of the built-in graphs ("mfcc", "impulse") or a graph file
+  public static PipelineGraph load(String nameOrFile) throws Exception {
+    if (nameOrFile.equals("mfcc")) {
+      return new PipelineGraph(nameOrFile, new StringReader(MFCC_GRAPH));
+    } else if (nameOrFile.equals("impulse")) {
+      return new PipelineGraph(nameOrFile, new StringReader(IMPULSE_GRAPH));
+    }
+    String name = new File(nameOrFile).getName();
+    if (name.indexOf('.') > 0) {
+      name = name.substring(0, name.lastIndexOf('.'));
+    }
+    Reader in = new FileReader(nameOrFile);
+    try {
+      return new PipelineGraph(name, in);
+    } finally {
+      in.close();
+    }
+  }
+
+  // write traces of pipelines built from now on through writer, at most backlog frames behind per tap
+  public void deferTraces(Executor writer, int backlog) {
+    if (backlog <= 0) {
+      throw new IllegalArgumentException("Trace backlog must be > 0");
+    }
+    traceWriter = writer;
+    traceBacklog = backlog;
+  }
+
+  private String[] getNodes(String tier) {
+    String spec = tiers.getProperty(tier, "").trim();
+    return spec.length() == 0 ? new String[0] : spec.split("\\s+");
+  }
+
+  // number of inputs the tier's join waits for, JOIN_ALL if it takes whatever is registered
+  public int getJoin(String tier) {
+    String[] nodes = getNodes(tier);
+    if (nodes.length == 0 || !nodes[0].startsWith("join")) {
+      return 0;
+    }
+    String arg = argOf(nodes[0]);
+    return arg == null || arg.equals("all") ? JOIN_ALL : Integer.parseInt(arg);
+  }
+
+  private static String argOf(String node) {
+    int colon = node.indexOf(':');
+    return colon < 0 ? null : node.substring(colon + 1);
+  }
+
+  // a fresh pipeline for one instance of the tier
+  public StreamModule build(String tier) {
+    return build(tier, App.TRACE_DIR);
+  }
+
+  // traceDir (ending in a separator) takes the tier's trace and augment files
+  public StreamModule build(String tier, String traceDir) {
+    List<Node> nodes = new ArrayList<Node>();
+    for (String spec : getNodes(tier)) {
+      nodes.add(makeNode(spec));
+    }
+
+    // fuse runs of stateless nodes
+    List<Node> fused = new ArrayList<Node>();
+    List<Node> run = new ArrayList<Node>();
+    for (Node node : nodes) {
+      if (node.isStateless()) {
+        run.add(node);
+        continue;
+      }
+      flush(run, fused);
+      fused.add(node);
+    }
+    flush(run, fused);
+    return new GraphPipeline(name + "." + tier, fused.toArray(new Node[fused.size()]), traceDir);
+  }
+
+  // only the tier's join, for when the rest of the tier runs somewhere else (see ShardCoordinator)
+  public StreamModule buildJoin(String tier) {
+    if (getJoin(tier) == 0) {
+      throw new IllegalArgumentException("Graph " + name + ": " + tier + " tier has no join");
+    }
+    return new GraphPipeline(name + "." + tier + "-join", new Node[] { makeNode(getNodes(tier)[0]) }, App.TRACE_DIR);
+  }
+
+  private static void flush(List<Node> run, List<Node> out) {
+    if (run.size() == 1) {
+      out.add(run.get(0));
+    } else if (run.size() > 1) {
+      out.add(new FusedNode(run.toArray(new Node[run.size()])));
+    }
+    run.clear();
+  }
+
+  private Node makeNode(String spec) {
+    String kind = spec.indexOf(':') < 0 ? spec : spec.substring(0, spec.indexOf(':'));
+    String arg = argOf(spec);
+    if (kind.equals("join")) {
+      return new JoinNode(arg == null || arg.equals("all") ? JOIN_ALL : Integer.parseInt(arg));
+    } else if (kind.equals("trace")) {
+      return new TraceNode(arg, traceWriter, traceBacklog);
+    } else if (kind.equals("mfcc")) {
+      return new ModuleNode(new MFCCModule());
+    } else if (kind.equals("impulse")) {
+      final FeatureStreamModule impulse = new FeatureStreamModule();
+      if ("augment".equals(arg)) {
+        return new ModuleNode(impulse) {
+          StreamHeader init(StreamHeader in) throws Exception {
+            impulse.augmentedAudio(traceDir + in.id + "-%d-augment.wav");
+            return super.init(in);
+          }
+        };
+      }
+      return new ModuleNode(impulse);
+    } else if (kind.equals("vector")) {
+      return new ModuleNode(new VectorCrossModule());
+    } else if (kind.equals("tdoa")) {
+      final TDOACrossModule tdoa = new TDOACrossModule();
+      return new ModuleNode(tdoa) {
+        StreamHeader init(StreamHeader in) throws Exception {
+          StreamHeader[] headers = ((MultiHeader) in).getHeaders();
+          tdoa.setCalibrationManager(new CalibrationManager(headers[0].id, headers[1].id, DualPipeline.calMethod));
+          return super.init(in);
+        }
+      };
+    } else if (kind.equals("distance")) {
+      return new ModuleNode(new DistanceFilter(arg == null ? 100 : Double.parseDouble(arg)));
+    } else if (kind.equals("matrix")) {
+      return new ModuleNode(new DistanceMatrixModule());
+    } else if (kind.equals("geometry")) {
+      return new ModuleNode(new GeometryMatrixModule());
+    }
+    throw new IllegalArgumentException("Unknown pipeline node " + spec + " in graph " + name);
+  }
+
+  abstract static class Node {
+    String traceDir = App.TRACE_DIR;  // set by the pipeline before init
+
+    abstract StreamHeader init(StreamHeader in) throws Exception;
+
+    abstract StreamFrame process(StreamFrame frame) throws Exception;
+
+    StreamFrame[] processBatch(StreamFrame[] frames) throws Exception {
+      StreamFrame[] out = new StreamFrame[frames.length];
+      for (int i = 0; i < frames.length; i++) {
+        out[i] = process(frames[i]);
+      }
+      return out;
+    }
+
+    abstract boolean isStateless();
+
+    void close() {
+    }
+  }
+
+  static class ModuleNode extends Node {
+    final StreamModule module;
+
+    ModuleNode(StreamModule module) {
+      this.module = module;
+    }
+
+    StreamHeader init(StreamHeader in) throws Exception {
+      return module.init(in);
+    }
+
+    StreamFrame process(StreamFrame frame) throws Exception {
+      return module.process(frame);
+    }
+
+    StreamFrame[] processBatch(StreamFrame[] frames) throws Exception {
+      return module.processBatch(frames);
+    }
+
+    boolean isStateless() {
+      return module instanceof StatelessModule;
+    }
+
+    void close() {
+      module.close();
+    }
+  }
+
+  static class JoinNode extends Node {
+    final int inputs;
+
+    JoinNode(int inputs) {
+      this.inputs = inputs;
+    }
+
+    StreamHeader init(StreamHeader in) throws Exception {
+      if (!(in instanceof MultiHeader)) {
+        throw new IllegalArgumentException("join needs a MultiHeader input");
+      }
+      if (inputs > 0) {
+        ((MultiHeader) in).waitForHeaders(inputs);
+      }
+      return in;
+    }
+
+    StreamFrame process(StreamFrame frame) {
+      return frame;
+    }
+
+    boolean isStateless() {
+      return true;
+    }
+  }
+
+  // the trace file name comes from the tier's input, like the old per-pipeline traces
+  static class TraceNode extends Node {
+    final String suffix;
+    final Executor writer;
+    final int backlog;
+    String baseId;
+    FileStream trace;
+    private OutputChannel channel;  // deferred traces only
+
+    TraceNode(String suffix, Executor writer, int backlog) {
+      this.suffix = suffix;
+      this.writer = writer;
+      this.backlog = backlog;
+    }
+
+    StreamHeader init(StreamHeader in) throws Exception {
+      String file = traceDir + baseId + (suffix == null ? "" : "-" + suffix) + ".txt";
+      if (in instanceof MatrixHeader) {
+        trace = new MatrixFileStream(file, true);
+      } else if (in instanceof DistanceHeader) {
+        trace = new DistanceFileStream(file, true);
+      } else if (in instanceof ImpulseHeader) {
+        trace = new ImpulseFileStream(file, true);
+      } else if (in instanceof GeometryHeader) {
+        trace = new GeometryFileStream(file, true, false);
+      } else {
+        throw new IllegalArgumentException("Can't trace " + in.getClass().getSimpleName());
+      }
+      trace.setHeader(in);
+      if (writer != null) {
+        channel = new OutputChannel(trace, file, writer, backlog, OverflowPolicy.DROP_NEWEST, false);
+      }
+      return in;
+    }
+
+    StreamFrame process(StreamFrame frame) throws Exception {
+      if (channel != null) {
+        channel.send(frame);
+      } else {
+        trace.sendFrame(frame);
+      }
+      return frame;
+    }
+
+    boolean isStateless() {
+      return true;
+    }
+
+    void close() {
+      if (channel != null) {
+        try {
+          channel.finish();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (channel.getDropped() > 0) {
+          System.out.println("Trace " + channel.name + " skipped " + channel.getDropped() + " frames");
+        }
+      }
+      if (trace != null) {
+        trace.close();
+      }
+    }
+  }
+
+  static class FusedNode extends Node {
+    final Node[] run;
+
+    FusedNode(Node[] run) {
+      this.run = run;
+    }
+
+    StreamHeader init(StreamHeader in) throws Exception {
+      for (Node node : run) {
+        in = node.init(in);
+      }
+      return in;
+    }
+
+    StreamFrame process(StreamFrame frame) throws Exception {
+      for (Node node : run) {
+        frame = node.process(frame);
+      }
+      return frame;
+    }
+
+    // modules get the whole batch; taps and joins pass the frames on in place, in one copy of the
+    // caller's array (the pipe still releases its input frames from that)
+    StreamFrame[] processBatch(StreamFrame[] frames) throws Exception {
+      StreamFrame[] in = frames;
+      for (Node node : run) {
+        if (node instanceof ModuleNode) {
+          frames = node.processBatch(frames);
+          continue;
+        }
+        if (frames == in) {
+          frames = in.clone();
+        }
+        for (int i = 0; i < frames.length; i++) {
+          frames[i] = node.process(frames[i]);
+        }
+      }
+      return frames;
+    }
+
+    boolean isStateless() {
+      return true;
+    }
+
+    void close() {
+      for (Node node : run) {
+        node.close();
+      }
+    }
+  }
+
+  static class GraphPipeline implements StreamModule, Checkpointable, Degradable {
+    final String name;
+    final Node[] nodes;
+    final String traceDir;
+
+    GraphPipeline(String name, Node[] nodes, String traceDir) {
+      this.name = name;
+      this.nodes = nodes;
+      this.traceDir = traceDir;
+    }
+
+    @Override
+    public StreamHeader init(StreamHeader inHeader) throws Exception {
+      setTrace(nodes, inHeader.id);
+      StreamHeader header = inHeader;
+      for (Node node : nodes) {
+        header = node.init(header);
+      }
+      return header;
+    }
+
+    private void setTrace(Node[] nodes, String id) {
+      for (Node node : nodes) {
+        node.traceDir = traceDir;
+        if (node instanceof TraceNode) {
+          ((TraceNode) node).baseId = id;
+        } else if (node instanceof FusedNode) {
+          setTrace(((FusedNode) node).run, id);
+        }
+      }
+    }
+
+    @Override
+    public StreamFrame process(StreamFrame frame) throws Exception {
+      if (frame == null) {
+        return null;
+      }
+      for (Node node : nodes) {
+        frame = node.process(frame);
+      }
+      return frame;
+    }
+
+    @Override
+    public StreamFrame[] processBatch(StreamFrame[] frames) throws Exception {
+      for (Node node : nodes) {
+        frames = node.processBatch(frames);
+      }
+      return frames;
+    }
+
+    // each module's state tagged with its class, so a checkpoint from a different graph is skipped
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+      List<Checkpointable> modules = getCheckpointables(nodes, new ArrayList<Checkpointable>());
+      out.writeInt(modules.size());
+      for (Checkpointable module : modules) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream state = new DataOutputStream(buf);
+        module.saveState(state);
+        state.flush();
+        out.writeUTF(module.getClass().getName());
+        out.writeInt(buf.size());
+        out.write(buf.toByteArray());
+      }
+    }
+
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+      List<Checkpointable> modules = getCheckpointables(nodes, new ArrayList<Checkpointable>());
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String className = in.readUTF();
+        byte[] state = new byte[in.readInt()];
+        in.readFully(state);
+        if (i < modules.size() && modules.get(i).getClass().getName().equals(className)) {
+          modules.get(i).restoreState(new DataInputStream(new ByteArrayInputStream(state)));
+        }
+      }
+    }
+
+    @Override
+    public int getMaxLevel() {
+      int max = 0;
+      for (Degradable module : getDegradables(nodes, new ArrayList<Degradable>())) {
+        max = Math.max(max, module.getMaxLevel());
+      }
+      return max;
+    }
+
+    @Override
+    public void setLevel(int level) {
+      for (Degradable module : getDegradables(nodes, new ArrayList<Degradable>())) {
+        module.setLevel(Math.min(level, module.getMaxLevel()));
+      }
+    }
+
+    private static List<Degradable> getDegradables(Node[] nodes, List<Degradable> list) {
+      for (Node node : nodes) {
+        if (node instanceof ModuleNode && ((ModuleNode) node).module instanceof Degradable) {
+          list.add((Degradable) ((ModuleNode) node).module);
+        } else if (node instanceof FusedNode) {
+          getDegradables(((FusedNode) node).run, list);
+        }
+      }
+      return list;
+    }
+
+    private static List<Checkpointable> getCheckpointables(Node[] nodes, List<Checkpointable> list) {
+      for (Node node : nodes) {
+        if (node instanceof ModuleNode && ((ModuleNode) node).module instanceof Checkpointable) {
+          list.add((Checkpointable) ((ModuleNode) node).module);
+        } else if (node instanceof FusedNode) {
+          getCheckpointables(((FusedNode) node).run, list);
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void close() {
+      for (Node node : nodes) {
+        node.close();
+      }
+    }
+
+    public String toString() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package edu.cmu.pandaa.framework;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.cmu.pandaa.module.Degradable;
+import edu.cmu.pandaa.utils.ThreadUtil;
+
+/*
+ * Keeps the device pipelines up with live audio by lowering quality when they fall behind.
+ *
+ * Each device pipe reports how long its pipeline took for how much audio. Every interval the
+ * controller takes the worst pipe's real-time factor (processing time / audio time), and the box's:
+ * all pipes' processing time against the audio time times the cores they share. When the larger one
+ * is above HIGH_RTF the pipes are about to fall behind and every Degradable module goes one level down. Levels come
+ * back up one at a time once the factor the next better level would need, estimated from the current
+ * one, is under LOW_RTF; the gap between the two keeps the level from flapping.
+ *
+ * Each change is logged, getStats() has the counts. A fixed level (see -quality N) just pins every
+ * module to it.
+ */
+public class QualityController {
+  static final double HIGH_RTF = 0.8;
+  static final double LOW_RTF = 0.5;
+
+  private final List<Meter> meters = new CopyOnWriteArrayList<Meter>();
+  private final List<Degradable> targets = new CopyOnWriteArrayList<Degradable>();
+  private final boolean adaptive;
+  private final int cores = Runtime.getRuntime().availableProcessors();
+  private final ScheduledExecutorService timer;
+  private volatile int level;
+  // written by the timer thread only
+  private volatile int maxLevel = 0, worstLevel = 0;
+  private volatile int downs = 0, ups = 0;
+  private volatile double lastRtf = 0, maxRtf = 0;
+
+  // adapt every intervalMs
+  public QualityController(long intervalMs) {
+    adaptive = true;
+    timer = Executors.newSingleThreadScheduledExecutor(ThreadUtil.daemonFactory("quality"));
+    timer.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        adjust();
+      }
+    }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  // always run at this level
+  public QualityController(int fixedLevel) {
+    if (fixedLevel < 0) {
+      throw new IllegalArgumentException("Quality level must be >= 0");
+    }
+    adaptive = false;
+    timer = null;
+    level = fixedLevel;
+  }
+
+  // "auto", or a fixed level
+  public static QualityController parse(String spec, long intervalMs) {
+    return spec.equals("auto") ? new QualityController(intervalMs) : new QualityController(Integer.parseInt(spec));
+  }
+
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  // processing time per audio time of one device pipe
+  public class Meter {
+    final String name;
+    private final AtomicLong busyNanos = new AtomicLong(), audioMs = new AtomicLong();
+
+    Meter(String name) {
+      this.name = name;
+    }
+
+    public void record(long nanos, long audio) {
+      busyNanos.addAndGet(nanos);
+      audioMs.addAndGet(audio);
+    }
+
+    private long lastBusy, lastAudio;  // taken by take(), timer thread only
+
+    void take() {
+      lastAudio = audioMs.getAndSet(0);
+      lastBusy = busyNanos.getAndSet(0);
+    }
+
+    public void close() {
+      meters.remove(this);
+    }
+  }
+
+  public Meter meter(String name) {
+    Meter meter = new Meter(name);
+    meters.add(meter);
+    return meter;
+  }
+
+  public void add(Degradable target) {
+    target.setLevel(Math.min(level, target.getMaxLevel()));
+    targets.add(target);
+  }
+
+  public void remove(Degradable target) {
+    targets.remove(target);
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  private void adjust() {
+    double rtf = -1;
+    String worst = null;
+    long busy = 0, audio = 0;
+    int running = 0;
+    for (Meter meter : meters) {
+      meter.take();
+      if (meter.lastAudio <= 0) {
+        continue;
+      }
+      double r = meter.lastBusy / 1e6 / meter.lastAudio;
+      if (r > rtf) {
+        rtf = r;
+        worst = meter.name;
+      }
+      busy += meter.lastBusy;
+      audio += meter.lastAudio;
+      running++;
+    }
+    if (running == 0) {
+      return;  // nothing ran
+    }
+    double boxRtf = busy / 1e6 / (Math.min(cores, running) * ((double) audio / running));
+    if (boxRtf > rtf) {
+      rtf = boxRtf;
+      worst = running + " pipes on " + Math.min(cores, running) + " cores";
+    }
+    int max = 0;
+    for (Degradable target : targets) {
+      max = Math.max(max, target.getMaxLevel());
+    }
+    lastRtf = rtf;
+    maxRtf = Math.max(maxRtf, rtf);
+    maxLevel = max;
+    int next = level;
+    if (rtf > HIGH_RTF && level < max) {
+      next = level + 1;
+    } else if (level > 0 && rtf * (level + 1) / level < LOW_RTF) {
+      next = level - 1;  // the skipped work grows back roughly in proportion to the level
+    }
+    if (next == level) {
+      return;
+    }
+    System.out.println(String.format("Quality level %d -> %d: real-time factor %.2f on %s", level, next, rtf, worst));
+    setLevel(next);
+  }
+
+  private void setLevel(int next) {
+    int old = level;
+    level = next;
+    for (Degradable target : targets) {
+      target.setLevel(Math.min(next, target.getMaxLevel()));
+    }
+    if (next > old) {
+      downs++;
+      worstLevel = Math.max(worstLevel, next);
+    } else {
+      ups++;
+    }
+  }
+
+  public String getStats() {
+    if (!adaptive) {
+      return "fixed level=" + level;
+    }
+    return String.format("level=%d max_level=%d of %d lowered=%d raised=%d last_rtf=%.2f max_rtf=%.2f",
+            level, worstLevel, maxLevel, downs, ups, lastRtf, maxRtf);
+  }
+
+  public void close() {
+    if (timer != null) {
+      timer.shutdown();
+    }
+  }
+}
@@ -0,0 +1,491 @@
+package edu.cmu.pandaa.framework;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.cmu.pandaa.header.DistanceHeader;
+import edu.cmu.pandaa.header.DistanceHeader.DistanceFrame;
+import edu.cmu.pandaa.header.MultiHeader;
+import edu.cmu.pandaa.header.StreamHeader;
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+import edu.cmu.pandaa.stream.FrameStream;
+import edu.cmu.pandaa.stream.MultiFrameStream;
+import edu.cmu.pandaa.stream.SocketStream;
+import edu.cmu.pandaa.utils.ThreadUtil;
+
+/*
+ * Runs the pair tier on ShardWorker processes instead of inside App (App -shard PORT).
+ *
+ * App still joins each pair's feature frames locally; the joined MultiFrames go to a RemotePair,
+ * which ships them over a SocketStream to the worker currently assigned to that pair, and a reader
+ * per connection feeds the DistanceFrames coming back into the combiner. The combiner always sees
+ * the same DistanceHeader for a pair, whichever worker computed the frames.
+ *
+ * Workers connect to PORT and announce the port they take pair connections on. Pairs go to the
+ * worker with the fewest; a new worker takes pairs over from the busiest ones until the load is
+ * even, and the pairs of a worker that goes away (or of a connection that breaks) move to the
+ * others. A moved pair restarts its pipeline on the new worker, so rolling state (distance windows,
+ * calibration) starts over and the frames in flight on a broken connection are lost. Without any
+ * worker, sends wait for one to connect.
+ */
+public class ShardCoordinator implements Runnable {
+  private final int port;
+  private ServerSocket server;
+  private final ThreadFactory threads = ThreadUtil.daemonFactory("shard");
+  // lock order: coordinator, then pair
+  private final ReentrantLock lock = new ReentrantLock();
+  private final List<Worker> workers = new ArrayList<Worker>();
+  private final List<RemotePair> pending = new ArrayList<RemotePair>();
+  private int workerCount, moved, failedOver;
+
+  public ShardCoordinator(int port) {
+    this.port = port;
+  }
+
+  class Worker {
+    final String name;
+    final Socket control;
+    final String host;
+    final int dataPort;
+    final List<RemotePair> pairs = new ArrayList<RemotePair>();
+
+    Worker(Socket control, int dataPort) {
+      this.control = control;
+      this.host = control.getInetAddress().getHostAddress();
+      this.dataPort = dataPort;
+      this.name = "worker" + (++workerCount) + "@" + host + ":" + dataPort;
+    }
+
+    public String toString() {
+      return name;
+    }
+  }
+
+  // one pair's frames on one worker; a RemotePair has several only while a move drains the old one
+  class Connection implements Runnable {
+    final RemotePair pair;
+    final Worker worker;
+    final SocketStream stream;
+
+    Connection(RemotePair pair, Worker worker) throws IOException {
+      this.pair = pair;
+      this.worker = worker;
+      stream = new SocketStream(new Socket(worker.host, worker.dataPort));
+    }
+
+    public void run() {
+      try {
+        StreamHeader remote = stream.getHeader();
+        if (remote != null) {
+          pair.remoteHeader((DistanceHeader) remote);
+          StreamFrame frame;
+          while ((frame = stream.recvFrame()) != null) {
+            pair.deliver((DistanceFrame) frame);
+          }
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      } finally {
+        stream.close();
+        pair.connectionDone(this);
+      }
+    }
+  }
+
+  // the output of a pair's join pipe in App, standing in for the pair's pipeline
+  public class RemotePair implements FrameStream {
+    final String id;
+    final MultiFrameStream combiner;  // of the pair's App session
+    private final ReentrantLock pairLock = new ReentrantLock();
+    private final Condition connected = pairLock.newCondition();
+    private MultiHeader header;        // what each worker gets first
+    private DistanceHeader localHeader;  // what the combiner sees
+    private Worker worker;
+    private Connection current;
+    private Connection writing;  // the connection sendFrame is writing to, outside pairLock
+    private int readers;  // connections that may still deliver frames
+    private boolean closing, removed;
+    private long sent;
+    private int nextSeq;  // of the next MultiFrame, where a pipeline started on another worker picks up
+
+    RemotePair(String id, MultiFrameStream combiner) {
+      this.id = id;
+      this.combiner = combiner;
+    }
+
+    @Override
+    public void setHeader(StreamHeader h) throws Exception {
+      pairLock.lock();
+      try {
+        header = (MultiHeader) h;
+        if (worker != null) {
+          connect(worker);
+        }
+      } finally {
+        pairLock.unlock();
+      }
+    }
+
+    @Override
+    public void sendFrame(StreamFrame m) throws Exception {
+      if (m == null) {
+        return;
+      }
+      Connection conn;
+      pairLock.lock();
+      try {
+        while (current == null && !closing) {
+          connected.await();  // no worker yet, or a failed one being replaced
+        }
+        if (current == null) {
+          return;
+        }
+        conn = current;
+        writing = conn;
+        nextSeq = m.seqNum + 1;  // the frame is this connection's, a replacement starts after it
+      } finally {
+        pairLock.unlock();
+      }
+      // not under pairLock: a socket write can block, and assign() needs pairLock under the coordinator lock
+      conn.stream.sendFrame(m);
+      boolean swapped, lost;
+      pairLock.lock();
+      try {
+        writing = null;
+        sent++;
+        swapped = conn != current;
+        lost = !swapped && !conn.stream.isOpen();
+      } finally {
+        pairLock.unlock();
+      }
+      if (swapped) {
+        conn.stream.finishSending();  // reassigned while we were writing, assign() left this to us
+      } else if (lost) {
+        connectionLost(this, conn);
+      }
+    }
+
+    // with the coordinator lock held
+    void assign(Worker w) {
+      pairLock.lock();
+      try {
+        Connection old = current;
+        worker = w;
+        current = null;
+        if (w != null && header != null && !closing) {
+          connect(w);
+        }
+        if (old != null && old != writing) {
+          old.stream.finishSending();  // the old worker finishes what it has, its reader forwards the rest
+        }
+      } finally {
+        pairLock.unlock();
+      }
+    }
+
+    // with pairLock held; on failure the pair waits for the next reassignment
+    private void connect(Worker w) {
+      try {
+        Connection conn = new Connection(this, w);
+        // pair modules number their frames from the header they are given rather than from the input
+        header.nextSeq = nextSeq;
+        conn.stream.setHeader(header);
+        current = conn;
+        readers++;
+        threads.newThread(conn).start();
+        connected.signalAll();
+      } catch (IOException e) {
+        System.out.println("Shard " + id + ": can't reach " + w + ": " + e);
+      }
+    }
+
+    boolean isCurrent(Connection conn) {
+      pairLock.lock();
+      try {
+        return conn == current;
+      } finally {
+        pairLock.unlock();
+      }
+    }
+
+    private void remoteHeader(DistanceHeader remote) throws Exception {
+      pairLock.lock();
+      try {
+        if (localHeader == null) {
+          localHeader = remote;
+          combiner.setHeader(localHeader);
+        }
+      } finally {
+        pairLock.unlock();
+      }
+    }
+
+    private void deliver(DistanceFrame remote) throws Exception {
+      DistanceFrame frame = remote.getHeader() == localHeader ? remote :
+              localHeader.makeFrame(remote.seqNum, remote.peakDeltas, remote.peakMagnitudes, remote.rawValues);
+      combiner.sendFrame(frame);
+      frame.release();
+      if (frame != remote) {
+        remote.release();
+      }
+    }
+
+    private void connectionDone(Connection conn) {
+      boolean unexpected, finished;
+      pairLock.lock();
+      try {
+        readers--;
+        unexpected = conn == current && !closing;
+        finished = closing && readers == 0 && !removed;
+        removed |= finished;
+      } finally {
+        pairLock.unlock();
+      }
+      if (unexpected) {
+        connectionLost(this, conn);
+      } else if (finished) {
+        pairDone(this);
+      }
+    }
+
+    @Override
+    public StreamHeader getHeader() {
+      return header;
+    }
+
+    @Override
+    public StreamFrame recvFrame() {
+      throw new UnsupportedOperationException("RemotePair only sends");
+    }
+
+    // the pair's input ended: let the worker finish, the last reader takes the pair out of the combiner
+    @Override
+    public void close() {
+      boolean finished;
+      pairLock.lock();
+      try {
+        closing = true;
+        if (current != null) {
+          current.stream.finishSending();
+        }
+        finished = readers == 0 && !removed;
+        removed |= finished;
+        connected.signalAll();
+      } finally {
+        pairLock.unlock();
+      }
+      if (finished) {
+        pairDone(this);
+      }
+    }
+
+    public String toString() {
+      return id + "->" + worker + " sent=" + sent;
+    }
+  }
+
+  public RemotePair newPair(String id, MultiFrameStream combiner) {
+    RemotePair pair = new RemotePair(id, combiner);
+    lock.lock();
+    try {
+      Worker w = leastLoaded();
+      if (w == null) {
+        pending.add(pair);
+      } else {
+        w.pairs.add(pair);
+        pair.assign(w);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return pair;
+  }
+
+  private Worker leastLoaded() {
+    return leastLoaded(null);
+  }
+
+  // ignoring avoid unless it's the only worker left
+  private Worker leastLoaded(Worker avoid) {
+    Worker best = null;
+    for (Worker w : workers) {
+      if (best == null || best == avoid || (w != avoid && w.pairs.size() < best.pairs.size())) {
+        best = w;
+      }
+    }
+    return best;
+  }
+
+  private Worker mostLoaded() {
+    Worker best = null;
+    for (Worker w : workers) {
+      if (best == null || w.pairs.size() > best.pairs.size()) {
+        best = w;
+      }
+    }
+    return best;
+  }
+
+  private void addWorker(Worker w) {
+    lock.lock();
+    try {
+      workers.add(w);
+      System.out.println("Shard " + w + " joined, " + workers.size() + " workers");
+      for (RemotePair pair : pending) {
+        w.pairs.add(pair);
+        pair.assign(w);
+      }
+      pending.clear();
+      // even out the load; a moved pair restarts on the new worker
+      Worker busiest;
+      while ((busiest = mostLoaded()).pairs.size() - w.pairs.size() > 1) {
+        RemotePair pair = busiest.pairs.remove(busiest.pairs.size() - 1);
+        w.pairs.add(pair);
+        pair.assign(w);
+        moved++;
+        System.out.println("Shard " + pair.id + " moved from " + busiest + " to " + w);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void removeWorker(Worker w) {
+    lock.lock();
+    try {
+      if (!workers.remove(w)) {
+        return;
+      }
+      System.out.println("Shard " + w + " lost, " + workers.size() + " workers left");
+      for (RemotePair pair : w.pairs) {
+        reassign(pair, null);
+      }
+      w.pairs.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // with the lock held: give pair to the least loaded live worker, or park it until one connects
+  private void reassign(RemotePair pair, Worker avoid) {
+    Worker w = leastLoaded(avoid);
+    if (w == null) {
+      pending.add(pair);
+    } else {
+      w.pairs.add(pair);
+    }
+    pair.assign(w);
+    failedOver++;
+  }
+
+  private void connectionLost(RemotePair pair, Connection conn) {
+    lock.lock();
+    try {
+      if (pair.isCurrent(conn)) {  // else already replaced, through the other end noticing
+        conn.worker.pairs.remove(pair);
+        System.out.println("Shard " + pair.id + " lost its connection to " + conn.worker);
+        reassign(pair, conn.worker);  // a reset usually means the worker died, its control socket just hasn't said so yet
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void pairDone(RemotePair pair) {
+    lock.lock();
+    try {
+      pending.remove(pair);
+      for (Worker w : workers) {
+        w.pairs.remove(pair);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (pair.localHeader != null) {
+      pair.combiner.removeInput(pair.localHeader);
+    }
+  }
+
+  // accept workers; each one's control connection only carries its data port, then stays open so we
+  // notice when the worker goes away
+  @Override
+  public void run() {
+    try {
+      server = new ServerSocket(port);
+      System.out.println("Waiting for shard workers on port " + server.getLocalPort());
+      while (true) {
+        final Socket control = server.accept();
+        threads.newThread(new Runnable() {
+          public void run() {
+            watch(control);
+          }
+        }).start();
+      }
+    } catch (IOException e) {
+      if (server == null || !server.isClosed()) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void watch(Socket control) {
+    Worker w = null;
+    try {
+      DataInputStream in = new DataInputStream(control.getInputStream());
+      w = new Worker(control, in.readInt());
+      addWorker(w);
+      while (in.read() >= 0) {
+        // nothing else is sent, read() returns -1 when the worker is gone
+      }
+    } catch (IOException e) {
+      // worker gone
+    }
+    if (w != null) {
+      removeWorker(w);
+    }
+  }
+
+  public String getStats() {
+    lock.lock();
+    try {
+      StringBuilder sb = new StringBuilder("workers=" + workers.size() + " moved=" + moved +
+              " failed_over=" + failedOver + " pending=" + pending.size());
+      for (Worker w : workers) {
+        sb.append(", ").append(w).append(" pairs=").append(w.pairs.size());
+      }
+      return sb.toString();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // stop taking workers; they see their control connection close and exit once idle
+  public void close() {
+    lock.lock();
+    try {
+      for (Worker w : workers) {
+        try {
+          w.control.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    try {
+      if (server != null) {
+        server.close();
+      }
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
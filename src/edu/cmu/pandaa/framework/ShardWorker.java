@@ -0,0 +1,134 @@
+package edu.cmu.pandaa.framework;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.cmu.pandaa.header.MultiHeader;
+import edu.cmu.pandaa.header.StreamHeader;
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+import edu.cmu.pandaa.module.StreamModule;
+import edu.cmu.pandaa.stream.SocketStream;
+import edu.cmu.pandaa.utils.ThreadUtil;
+
+/*
+ * Runs pair pipelines for an App started with -shard PORT (see ShardCoordinator):
+ *
+ *   ShardWorker [-graph mfcc|impulse|file] host PORT
+ *
+ * Each pair arrives on its own connection as the joined MultiHeader plus MultiFrames; the worker
+ * runs the graph's pair tier on it and sends the DistanceHeader and frames back on the same socket.
+ * The worker exits once the coordinator has gone away and its last pair is done.
+ */
+public class ShardWorker implements Runnable {
+  private final PipelineGraph graph;
+  private final ServerSocket data;
+  private final AtomicInteger running = new AtomicInteger();
+
+  public ShardWorker(PipelineGraph graph) throws IOException {
+    this.graph = graph;
+    data = new ServerSocket(0);
+  }
+
+  public int getDataPort() {
+    return data.getLocalPort();
+  }
+
+  // accept pair connections
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        final SocketStream stream = new SocketStream(data.accept());
+        running.incrementAndGet();
+        ThreadUtil.start(new Runnable() {
+          public void run() {
+            try {
+              runPair(stream);
+            } catch (Exception e) {
+              e.printStackTrace();
+            } finally {
+              stream.close();
+              running.decrementAndGet();
+            }
+          }
+        }, "pair");
+      }
+    } catch (IOException e) {
+      if (!data.isClosed()) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void runPair(SocketStream stream) throws Exception {
+    MultiHeader in = (MultiHeader) stream.getHeader();
+    if (in == null) {
+      return;
+    }
+    StreamModule pipeline = graph.build("pair");
+    System.out.println("Starting pair " + in.id);
+    int count = 0;
+    try {
+      stream.setHeader(pipeline.init(in));
+      StreamFrame frame;
+      while ((frame = stream.recvFrame()) != null) {
+        StreamFrame out = pipeline.process(frame);
+        stream.sendFrame(out);
+        count++;
+        if (out != null && out != frame) {
+          out.release();
+        }
+        frame.release();
+      }
+    } finally {
+      pipeline.close();
+      stream.finishSending();
+      System.out.println("Done with pair " + in.id + " count=" + count);
+    }
+  }
+
+  public void close() {
+    try {
+      data.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String graphName = "mfcc";
+    int i = 0;
+    if (args.length > 1 && args[0].equals("-graph")) {
+      graphName = args[1];
+      i = 2;
+    }
+    if (args.length - i != 2) {
+      throw new IllegalArgumentException("Usage: ShardWorker [-graph name] host port");
+    }
+    new File(App.TRACE_DIR).mkdir();
+
+    ShardWorker worker = new ShardWorker(PipelineGraph.load(graphName));
+    Socket control = new Socket(args[i], Integer.parseInt(args[i + 1]));
+    DataOutputStream out = new DataOutputStream(control.getOutputStream());
+    out.writeInt(worker.getDataPort());
+    out.flush();
+    Thread accept = ThreadUtil.newThread(worker, "accept-pairs");
+    accept.setDaemon(true);
+    accept.start();
+    System.out.println("Shard worker for " + args[i] + ":" + args[i + 1] + " taking pairs on port " +
+            worker.getDataPort());
+
+    // the coordinator never sends anything, so this returns when it goes away
+    while (control.getInputStream().read() >= 0) {
+    }
+    worker.close();
+    while (worker.running.get() > 0) {
+      Thread.sleep(100);
+    }
+    System.out.println("Coordinator gone, shard worker exiting");
+  }
+}
@@ -51,6 +51,15 @@ public class SinglePipeline implements StreamModule {
     return frame;
   }
 
+  @Override
+  public StreamFrame[] processBatch(StreamFrame[] inFrames) throws Exception {
+    StreamFrame[] frames = impulse.processBatch(inFrames);
+    for (StreamFrame frame : frames) {
+      trace.sendFrame(frame);
+    }
+    return frames;
+  }
+
   @Override
   public void close() {
     trace.close();
@@ -0,0 +1,377 @@
+package edu.cmu.pandaa.framework;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.nio.channels.IllegalBlockingModeException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+import edu.cmu.pandaa.stream.FrameStream;
+import edu.cmu.pandaa.stream.ReadyStream;
+import edu.cmu.pandaa.stream.RingBufferStream;
+import edu.cmu.pandaa.utils.ThreadUtil;
+
+/*
+ * Runs pipeline stages as tasks on a bounded worker pool instead of one thread per PipeHandler.
+ *
+ * A stage is only queued once its input signals that data is available, and at most one task per
+ * stage is queued or running at a time, so each stage still sees its frames in order. Blocking
+ * sources (files, sockets, live audio) are copied into a RingBufferStream by a small pump thread
+ * so the stage that consumes them can be pooled as well. The ring has the source's header from the
+ * start, so its stage inits right away, and the pump only starts reading once it has: output headers
+ * pick up the input's sequence numbers at init, and sources whose stages start together stay in step.
+ *
+ * Stages may share a Quota (one per App session), which caps how many of them run at once; the rest
+ * wait for a slot of their own group rather than for a worker, so one busy group can't take the pool.
+ *
+ * Queued stages run in priority order rather than in the order they became ready: the pool is handed
+ * one token per queued stage, and whichever worker takes a token runs the most urgent stage waiting.
+ * Stages nearer the geometry output go first, so when the box is busy the backlog is worked off at
+ * the merge instead of more input being piled up for it.
+ *
+ * Inputs are put in noblock mode: a stage only runs when its input says it is ready, and if that was
+ * wrong, recvFrame throws instead of parking the worker (with a pool the size of the cores, possibly
+ * the only one). The stage then goes idle until the next signal or sweep, and the miss is counted.
+ */
+public class StageScheduler {
+  static final int MAX_FRAMES_PER_RUN = 32;  // give the worker back after this many frames
+  static final int SWEEP_MS = 100;           // re-check idle stages, e.g. for watermark deadlines
+
+  // lower runs first
+  static final int PRIORITY_MERGE = 0, PRIORITY_PAIR = 1, PRIORITY_DEVICE = 2;
+  static final String[] PRIORITY_NAMES = { "merge", "pair", "device" };
+
+  interface Stage {
+    ReadyStream getInput();
+
+    // true once the input carries everything init needs
+    boolean canStart() throws Exception;
+
+    void start() throws Exception;
+
+    // true while an output can't take more; the stage is held back until the unblock listener runs
+    boolean isBlocked();
+
+    void setUnblockListener(Runnable listener);
+
+    // consecutive frames in arrival order
+    void handleBatch(StreamFrame[] frames) throws Exception;
+
+    // called exactly once, after the input ended or the stage failed
+    void finish();
+
+    // null for no limit
+    Quota getQuota();
+
+    // one of the PRIORITY_ constants
+    int getPriority();
+  }
+
+  // at most limit holders at a time; pooled tasks queue for a slot, threads block in acquire
+  public static class Quota {
+    final int limit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition free = lock.newCondition();
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+    private int running;
+    private long deferred;
+
+    public Quota(int limit) {
+      if (limit <= 0) {
+        throw new IllegalArgumentException("Quota must be > 0");
+      }
+      this.limit = limit;
+    }
+
+    // run task on pool now, or once a slot is handed back through done
+    void submit(Runnable task, Executor pool) {
+      lock.lock();
+      try {
+        if (running >= limit) {
+          deferred++;
+          waiting.add(task);
+          return;
+        }
+        running++;
+      } finally {
+        lock.unlock();
+      }
+      pool.execute(task);
+    }
+
+    // a submitted task is done with its slot; the next waiting task gets it
+    void done(Executor pool) {
+      Runnable next;
+      lock.lock();
+      try {
+        next = waiting.poll();
+        if (next == null) {
+          running--;
+          free.signal();
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (next != null) {
+        pool.execute(next);
+      }
+    }
+
+    public void acquire() throws InterruptedException {
+      lock.lock();
+      try {
+        if (running >= limit) {
+          deferred++;
+        }
+        while (running >= limit) {
+          free.await();
+        }
+        running++;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public void release() {
+      lock.lock();
+      try {
+        running--;
+        free.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public String toString() {
+      return "limit=" + limit + " deferred=" + deferred;
+    }
+  }
+
+  private final ScheduledThreadPoolExecutor pool;
+  private final Set<Task> tasks = ConcurrentHashMap.newKeySet();
+  private final Map<ReadyStream, Thread> pumps = new ConcurrentHashMap<ReadyStream, Thread>();  // not started yet
+  private final List<ConcurrentLinkedQueue<Runnable>> ready = new ArrayList<ConcurrentLinkedQueue<Runnable>>();
+  private final AtomicLongArray maxWaitNs = new AtomicLongArray(PRIORITY_NAMES.length);
+  private final AtomicLongArray runs = new AtomicLongArray(PRIORITY_NAMES.length);
+  private final AtomicLong falseReady = new AtomicLong();  // recvFrame would have blocked after isReady
+
+  // what quotas and signals submit to; see the class comment
+  private final Executor prioritized = new Executor() {
+    public void execute(Runnable r) {
+      int priority = r instanceof Task ? ((Task) r).priority : PRIORITY_DEVICE;
+      ready.get(priority).add(r);
+      pool.execute(dispatch);
+    }
+  };
+
+  private final Runnable dispatch = new Runnable() {
+    public void run() {
+      for (ConcurrentLinkedQueue<Runnable> queue : ready) {
+        Runnable next = queue.poll();
+        if (next != null) {
+          next.run();
+          return;
+        }
+      }
+    }
+  };
+
+  public StageScheduler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public StageScheduler(int workers) {
+    for (int i = 0; i < PRIORITY_NAMES.length; i++) {
+      ready.add(new ConcurrentLinkedQueue<Runnable>());
+    }
+    pool = new ScheduledThreadPoolExecutor(workers, new ThreadFactory() {
+      final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "stage-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    pool.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        for (Task task : tasks) {
+          task.signal();
+        }
+      }
+    }, SWEEP_MS, SWEEP_MS, TimeUnit.MILLISECONDS);
+  }
+
+  void start(Stage stage) {
+    final Task task = new Task(stage);
+    tasks.add(task);
+    Runnable signal = new Runnable() {
+      public void run() {
+        task.signal();
+      }
+    };
+    stage.getInput().setNoBlock(true);
+    stage.getInput().setReadyListener(signal);
+    stage.setUnblockListener(signal);
+    task.signal();
+  }
+
+  // decouple a blocking source from the pool: a pump thread copies it into a ring buffer, starting
+  // once the stage reading the ring has been initialized
+  public RingBufferStream pump(final FrameStream source, String name) throws Exception {
+    final RingBufferStream ring = new RingBufferStream(name);
+    ring.setHeader(source.getHeader());
+    Thread pump = ThreadUtil.newThread(new Runnable() {
+      public void run() {
+        try {
+          StreamFrame frame;
+          while ((frame = source.recvFrame()) != null) {
+            ring.sendFrame(frame);
+          }
+        } catch (Exception e) {
+          e.printStackTrace();
+        } finally {
+          ring.close();
+        }
+      }
+    }, name + "-source");
+    pumps.put(ring, pump);
+    return ring;
+  }
+
+  public String getStats() {
+    StringBuilder stats = new StringBuilder();
+    for (int i = 0; i < PRIORITY_NAMES.length; i++) {
+      stats.append(i == 0 ? "" : " ").append(PRIORITY_NAMES[i]).append(" runs=").append(runs.get(i))
+              .append(" max_wait_ms=").append(maxWaitNs.get(i) / 1000000);
+    }
+    if (falseReady.get() > 0) {
+      stats.append(" false_ready=").append(falseReady.get());
+    }
+    return stats.toString();
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  private class Task implements Runnable {
+    static final int IDLE = 0, QUEUED = 1, RUNNING = 2, DONE = 3;
+    final Stage stage;
+    final int priority;
+    final AtomicInteger state = new AtomicInteger(IDLE);
+    boolean started = false;
+    private volatile long queuedAt;
+
+    Task(Stage stage) {
+      this.stage = stage;
+      priority = stage.getPriority();
+    }
+
+    void signal() {
+      if (state.compareAndSet(IDLE, QUEUED)) {
+        queuedAt = System.nanoTime();
+        Quota quota = stage.getQuota();
+        if (quota == null) {
+          prioritized.execute(this);
+        } else {
+          quota.submit(this, prioritized);
+        }
+      }
+    }
+
+    public void run() {
+      long wait = System.nanoTime() - queuedAt;
+      long max;
+      while (wait > (max = maxWaitNs.get(priority)) && !maxWaitNs.compareAndSet(priority, max, wait)) {
+        // lost a race with another stage of this priority, try again
+      }
+      runs.incrementAndGet(priority);
+      try {
+        runStage();
+      } finally {
+        Quota quota = stage.getQuota();
+        if (quota != null) {
+          quota.done(prioritized);
+        }
+      }
+    }
+
+    private void runStage() {
+      state.set(RUNNING);
+      boolean done = false, missed = false;
+      ReadyStream in = stage.getInput();
+      try {
+        if (!started) {
+          Thread pump = pumps.remove(in);
+          if (pump == null && !stage.canStart()) {
+            state.set(IDLE);  // the next frame, header or sweep will try again
+            return;
+          }
+          stage.start();
+          started = true;
+          if (pump != null) {
+            pump.start();
+          }
+        }
+        if (stage.isBlocked()) {
+          state.set(IDLE);  // backpressure: wait for the unblock listener (or the sweep)
+          return;
+        }
+        List<StreamFrame> batch = new ArrayList<StreamFrame>();
+        while (batch.size() < MAX_FRAMES_PER_RUN && in.isReady()) {
+          StreamFrame frame;
+          try {
+            frame = in.recvFrame();
+          } catch (IllegalBlockingModeException e) {
+            falseReady.incrementAndGet();  // isReady was wrong: give the worker back, see the class comment
+            missed = true;
+            break;
+          }
+          if (frame == null) {
+            done = true;
+            break;
+          }
+          batch.add(frame);
+        }
+        if (!batch.isEmpty()) {
+          stage.handleBatch(batch.toArray(new StreamFrame[batch.size()]));
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+        done = true;
+      }
+
+      if (done) {
+        state.set(DONE);
+        tasks.remove(this);
+        // finishing waits for the outputs to drain, which with bounded outputs can need other
+        // stages to run first, so don't do it on a worker
+        ThreadUtil.start(new Runnable() {
+          public void run() {
+            stage.finish();
+          }
+        }, "finish-" + Thread.currentThread().getName());
+        return;
+      }
+
+      state.set(IDLE);
+      if (!missed && in.isReady()) {
+        signal();  // data arrived while we were running, or we hit the per-run limit
+      }
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package edu.cmu.pandaa.framework;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.cmu.pandaa.header.StreamHeader;
+import edu.cmu.pandaa.module.DistanceFilter;
+import edu.cmu.pandaa.module.DistanceMatrixModule;
+import edu.cmu.pandaa.module.FeatureStreamModule;
+import edu.cmu.pandaa.module.GeometryMatrixModule;
+import edu.cmu.pandaa.module.RMSModule;
+import edu.cmu.pandaa.module.TDOACrossModule;
+import edu.cmu.pandaa.stream.CalibrationManager;
+import edu.cmu.pandaa.stream.DistanceFileStream;
+import edu.cmu.pandaa.stream.FrameListStream;
+import edu.cmu.pandaa.stream.FrameStream;
+import edu.cmu.pandaa.stream.GeometryFileStream;
+import edu.cmu.pandaa.stream.ImpulseFileStream;
+import edu.cmu.pandaa.stream.MultiFrameStream;
+import edu.cmu.pandaa.stream.RawAudioFileStream;
+import edu.cmu.pandaa.utils.ThreadUtil;
+
+/*
+ * test_set.sh in one JVM: the same chain of modules (FeatureStreamModule, TDOACrossModule,
+ * DistanceFilter, DistanceMatrixModule, GeometryMatrixModule, RMSModule) over an audio_src set, with
+ * the frames handed from one stage to the next in memory instead of through text files.
+ *
+ * The files of the set, and then the pairs of files, run side by side; the stages that see all of
+ * them run once the ones before are done. With -traces every stage also writes the file test_set.sh
+ * would have, under the same name in the trace directory, so grid_anim.sh and test_all.sh still work.
+ * File N of the set is read as device sync-N, as test_set.sh names its copies, since the device order
+ * the geometry comes out in, and so what the ground truth is compared to, follows the ids.
+ *
+ * Like the script, the second pass adjusts the distances by the first geometry but builds the second
+ * geometry from the unadjusted ones, so the adjusted distances only matter as traces.
+ *
+ * usage: TestSetRunner [-traces] [-dir test] [-threads N] [-smooth W] [-length S] [set], set defaulting
+ * to 1m_triangle in audio_src/ (or a path to a set)
+ */
+public class TestSetRunner {
+  static final int MAX_FILES = 9;  // sets are name-1.wav .. name-9.wav
+
+  private String traceDir = null;  // no traces
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private double smooth = 100;  // DISTANCE_SMOOTH
+  private int length = 300;     // TARGET_LEN, seconds the recordings are looped to
+  private double rms1 = Double.NaN, rms2 = Double.NaN;
+
+  // an in-memory stream, tracing to file (given the test_set.sh name) when traces are on
+  private FrameListStream stage(String file, int type) throws Exception {
+    if (traceDir == null) {
+      return new FrameListStream();
+    }
+    String path = traceDir + file;
+    FrameStream trace;
+    switch (type) {
+      case 'i':
+        trace = new ImpulseFileStream(path, true);
+        break;
+      case 'd':
+        trace = new DistanceFileStream(path, true);
+        break;
+      case 'g':
+        trace = new GeometryFileStream(path, true, false);
+        break;
+      default:
+        trace = new GeometryFileStream(path, true, true);  // a file per frame, as GeometryMatrixModule writes
+    }
+    return new FrameListStream(trace);
+  }
+
+  private FrameListStream[] readers(List<FrameListStream> streams) {
+    FrameListStream[] readers = new FrameListStream[streams.size()];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = streams.get(i).reader();
+    }
+    return readers;
+  }
+
+  public void run(String set) throws Exception {
+    final List<String> files = new ArrayList<String>();
+    final List<Integer> numbers = new ArrayList<Integer>();
+    for (int n = 1; n <= MAX_FILES; n++) {
+      if (new File(set + "-" + n + ".wav").isFile()) {
+        files.add(set + "-" + n + ".wav");
+        numbers.add(n);
+      }
+    }
+    if (files.size() < 2) {
+      throw new IllegalArgumentException("Need at least two files in set " + set + ", got " + files.size());
+    }
+    if (traceDir != null) {
+      new File(traceDir).mkdirs();
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads, ThreadUtil.daemonFactory("testset"));
+    try {
+      // impulses of every file, looped to the length of the first
+      final List<FrameListStream> impulses = new ArrayList<FrameListStream>();
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for (int i = 0; i < files.size(); i++) {
+        final String file = files.get(i);
+        final int n = numbers.get(i);
+        final FrameListStream out = stage("impulses-" + n + ".txt", 'i');
+        impulses.add(out);
+        tasks.add(new Callable<Object>() {
+          public Object call() throws Exception {
+            FeatureStreamModule module = new FeatureStreamModule();
+            if (traceDir != null) {
+              module.augmentedAudio(traceDir + "sync-" + n + "-impulse.wav");
+            }
+            RawAudioFileStream in = new RawAudioFileStream(file, files.get(0), length);
+            in.setDeviceId("sync-" + n);
+            in.setMapped(true);
+            module.runModule(in, out);
+            return null;
+          }
+        });
+      }
+      runAll(pool, tasks);
+
+      // time differences and then distances of every pair
+      final List<FrameListStream> tdoas = new ArrayList<FrameListStream>();
+      final List<FrameListStream> distances = new ArrayList<FrameListStream>();
+      final List<String> pairs = new ArrayList<String>();
+      tasks.clear();
+      for (int a = 0; a < files.size(); a++) {
+        for (int b = a + 1; b < files.size(); b++) {
+          final String pair = "" + numbers.get(a) + numbers.get(b);
+          final FrameListStream in1 = impulses.get(a).reader(), in2 = impulses.get(b).reader();
+          final FrameListStream tdoa = stage("tdoa3-" + pair + ".txt", 'd');
+          final FrameListStream distance = stage("distance-" + pair + ".txt", 'd');
+          pairs.add(pair);
+          tdoas.add(tdoa);
+          distances.add(distance);
+          tasks.add(new Callable<Object>() {
+            public Object call() throws Exception {
+              MultiFrameStream mfs = new MultiFrameStream("tdoa");
+              StreamHeader h1, h2;
+              mfs.setHeader(h1 = in1.getHeader());
+              mfs.setHeader(h2 = in2.getHeader());
+              CalibrationManager cf = new CalibrationManager(h1.id, h2.id, 1);
+              if (traceDir != null) {
+                cf.writeCalibration(traceDir + "calibration_" + h1.id + "_" + h2.id + ".txt", h1);
+              }
+              TDOACrossModule module = new TDOACrossModule();
+              module.setCalibrationManager(cf);
+              module.runModule(mfs, in1, in2, tdoa);
+              new DistanceFilter(smooth).runModule(tdoa.reader(), distance, null);
+              return null;
+            }
+          });
+        }
+      }
+      runAll(pool, tasks);
+
+      final FrameListStream geometry = geometry(readers(distances), "geometryAll.txt", "geometryOut.txt");
+      rms1 = rms(set, geometry, "rmsOut.txt");
+
+      if (traceDir != null) {
+        tasks.clear();
+        for (int i = 0; i < pairs.size(); i++) {
+          final FrameListStream tdoa = tdoas.get(i).reader();
+          final FrameListStream adjusted = stage("adjusted-" + pairs.get(i) + ".txt", 'd');
+          tasks.add(new Callable<Object>() {
+            public Object call() throws Exception {
+              new DistanceFilter(smooth).runModule(tdoa, adjusted, geometry.reader());
+              return null;
+            }
+          });
+        }
+        runAll(pool, tasks);
+      }
+
+      FrameListStream geometry2 = geometry(readers(distances), "geometryAll2.txt", "geometryOut2.txt");
+      rms2 = rms(set, geometry2, "rmsOut2.txt");
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  // runs the tasks in parallel, rethrowing the first failure
+  private void runAll(ExecutorService pool, List<Callable<Object>> tasks) throws Exception {
+    for (Future<Object> result : pool.invokeAll(tasks)) {
+      result.get();
+    }
+  }
+
+  // the distance matrix and its geometry
+  private FrameListStream geometry(FrameListStream[] distances, String allFile, String outFile) throws Exception {
+    FrameListStream all = stage(allFile, 'g');
+    new DistanceMatrixModule().runModule(distances, all);
+    FrameListStream out = stage(outFile, 'm');
+    new GeometryMatrixModule().runModule(all.reader(), out);
+    return out;
+  }
+
+  // against the set's ground truth, if it has one
+  private double rms(String set, FrameListStream geometry, String rmsFile) throws Exception {
+    if (!new File(set + ".txt").isFile()) {
+      return Double.NaN;
+    }
+    RMSModule module = new RMSModule();
+    String actualFile = rmsFile.substring(0, rmsFile.lastIndexOf('.')) + "-actual.txt";
+    try {
+      module.runModule(geometry.reader(), new GeometryFileStream(set + ".txt"), stage(rmsFile, 'd'),
+              stage(actualFile, 'm'));
+    } catch (Exception e) {
+      System.err.println("No RMS for " + set + ": " + e);  // the script carries on too
+    }
+    return module.getLastRms();
+  }
+
+  public static void main(String[] args) throws Exception {
+    TestSetRunner runner = new TestSetRunner();
+    int arg = 0;
+    boolean traces = false;
+    String dir = "test";
+    while (arg < args.length && args[arg].startsWith("-")) {
+      String opt = args[arg++];
+      if (opt.equals("-traces")) {
+        traces = true;
+      } else if (arg == args.length) {
+        throw new IllegalArgumentException("Missing value for " + opt);
+      } else if (opt.equals("-dir")) {
+        dir = args[arg++];
+      } else if (opt.equals("-threads")) {
+        runner.threads = Integer.parseInt(args[arg++]);
+      } else if (opt.equals("-smooth")) {
+        runner.smooth = Double.parseDouble(args[arg++]);
+      } else if (opt.equals("-length")) {
+        runner.length = Integer.parseInt(args[arg++]);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + opt);
+      }
+    }
+    String set = arg < args.length ? args[arg++] : "1m_triangle";
+    if (arg != args.length) {
+      throw new IllegalArgumentException("Extra arguments");
+    }
+    if (!new File(set + "-1.wav").isFile() && !new File(set).isAbsolute()) {
+      set = "audio_src" + File.separator + set;
+    }
+    if (traces) {
+      runner.traceDir = dir.endsWith(File.separator) ? dir : dir + File.separator;
+    }
+
+    long start = System.currentTimeMillis();
+    runner.run(set);
+    System.out.println("Set " + set + " in " + (System.currentTimeMillis() - start) + "ms");
+    System.out.println(runner.rms1 + " " + runner.rms2);
+  }
+}
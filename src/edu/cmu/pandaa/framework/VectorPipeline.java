@@ -71,6 +71,15 @@ public class VectorPipeline implements StreamModule {
     return frame;
   }
 
+  @Override
+  public StreamFrame[] processBatch(StreamFrame[] inFrames) throws Exception {
+    StreamFrame[] frames = vector.processBatch(inFrames);
+    for (StreamFrame frame : frames) {
+      trace.sendFrame(frame);
+    }
+    return distance.processBatch(frames);
+  }
+
   @Override
   public void close() {
     trace.close();
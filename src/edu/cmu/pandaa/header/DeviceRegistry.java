@@ -0,0 +1,104 @@
+package edu.cmu.pandaa.header;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Dense integer indexes for the devices this process has seen, and for the streams built from them.
+ *
+ * A device is registered the first time a header names it and keeps its index for the life of the
+ * process, so per-device state can live in arrays instead of maps keyed by id strings. Streams are
+ * numbered by the set of devices they carry (a device, a pair, ...), which lets a join find the slot of
+ * an incoming frame with an array lookup. The id strings stay what is shown, logged and written to
+ * trace files; the indexes are per process and never sent anywhere.
+ *
+ * Registration happens when headers are made, lookups by index never take the lock.
+ */
+public final class DeviceRegistry {
+  private static final ReentrantLock lock = new ReentrantLock();
+  private static final Map<String, Integer> devices = new HashMap<String, Integer>();
+  private static final Map<List<Integer>, Integer> streams = new HashMap<List<Integer>, Integer>();
+  private static volatile String[] names = new String[0];  // replaced on every new device
+
+  private DeviceRegistry() {
+  }
+
+  // the device's index, registering it if it's new
+  public static int register(String id) {
+    lock.lock();
+    try {
+      Integer index = devices.get(id);
+      if (index == null) {
+        index = devices.size();
+        devices.put(id, index);
+        String[] nnames = Arrays.copyOf(names, index + 1);
+        nnames[index] = id;
+        names = nnames;
+      }
+      return index;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // the device's index, -1 if no header named it yet
+  public static int lookup(String id) {
+    lock.lock();
+    try {
+      Integer index = devices.get(id);
+      return index == null ? -1 : index;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public static String getName(int device) {
+    return names[device];
+  }
+
+  public static String[] getNames(int[] devices) {
+    String[] current = names;
+    String[] ids = new String[devices.length];
+    for (int i = 0; i < devices.length; i++) {
+      ids[i] = current[devices[i]];
+    }
+    return ids;
+  }
+
+  // devices ever registered; device indexes are below this
+  public static int size() {
+    return names.length;
+  }
+
+  // the index of the stream over these devices, in any order
+  public static int streamIndex(int[] devices) {
+    int[] sorted = devices.clone();
+    Arrays.sort(sorted);
+    List<Integer> key = new ArrayList<Integer>(sorted.length);
+    for (int d : sorted) {
+      key.add(d);
+    }
+    lock.lock();
+    try {
+      Integer index = streams.get(key);
+      if (index == null) {
+        index = streams.size();
+        streams.put(key, index);
+      }
+      return index;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // the devices' ids in name order, the order id strings list them in
+  public static String[] sortedNames(int[] devices) {
+    String[] ids = getNames(devices);
+    Arrays.sort(ids);
+    return ids;
+  }
+}
@@ -4,13 +4,12 @@ import edu.cmu.pandaa.stream.FileStream;
 import edu.cmu.pandaa.stream.GeometryFileStream;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class GeometryHeader extends StreamHeader implements Serializable {
   public int rows, cols;
   private double[] prevX;
-  Map<String,Integer> indexMap;
+  private transient int[] positions;  // row of each device, by DeviceRegistry index; -1 if not here
 
   public GeometryHeader(String[] deviceIds, long startTime, int frameTime, int rows, int cols) {
     super(makeId("geom",deviceIds), startTime, frameTime);
@@ -18,6 +17,7 @@ public class GeometryHeader extends StreamHeader implements Serializable {
     this.cols = cols;
     if (deviceIds.length != rows)
       throw new IllegalArgumentException("Mismatched array dimensions");
+    setDevices(deviceIds);
   }
 
   public GeometryHeader(StreamHeader prototype, int rows, int cols) {
@@ -38,15 +38,43 @@ public class GeometryHeader extends StreamHeader implements Serializable {
     this.cols = header.getHeaders().length;
   }
 
+  // x coordinates of the last adjusted frame, which later frames are flipped to match; null before the first
+  public double[] getOrientation() {
+    return prevX;
+  }
+
+  public void setOrientation(double[] x) {
+    if (x != null && x.length != rows) {
+      throw new IllegalArgumentException("Orientation has " + x.length + " devices, header " + rows);
+    }
+    prevX = x;
+  }
+
   public int indexOf(String id) {
-    if (indexMap == null) {
-      String[] ids = getIds();
-      indexMap = new HashMap<String, Integer>(ids.length);
-      for (int i = 0;i < ids.length;i++) {
-        indexMap.put(ids[i], i);
+    int device = DeviceRegistry.lookup(id);
+    if (device < 0) {
+      throw new IllegalArgumentException("Unknown device " + id);
+    }
+    return indexOf(device);
+  }
+
+  // row of the device with this DeviceRegistry index, -1 if it's not in this header
+  public int indexOf(int device) {
+    int[] pos = positions;
+    if (pos == null) {
+      int[] devices = getDevices();
+      int max = -1;
+      for (int d : devices) {
+        max = Math.max(max, d);
+      }
+      pos = new int[max + 1];
+      Arrays.fill(pos, -1);
+      for (int i = 0; i < devices.length; i++) {
+        pos[devices[i]] = i;
       }
+      positions = pos;
     }
-    return indexMap.get(id);
+    return device < pos.length ? pos[device] : -1;
   }
 
   public class GeometryFrame extends StreamFrame implements Serializable {
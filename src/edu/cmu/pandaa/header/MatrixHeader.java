@@ -4,13 +4,12 @@ import edu.cmu.pandaa.stream.FileStream;
 import edu.cmu.pandaa.stream.GeometryFileStream;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class MatrixHeader extends StreamHeader implements Serializable {
   public int rows, cols;
   private double[] prevX;
-  Map<String,Integer> indexMap;
+  private transient int[] positions;  // row of each device, by DeviceRegistry index; -1 if not here
 
   public MatrixHeader(String[] deviceIds, long startTime, int frameTime, int rows, int cols) {
     super(makeId("x",deviceIds), startTime, frameTime);
@@ -18,6 +17,7 @@ public class MatrixHeader extends StreamHeader implements Serializable {
     this.cols = cols;
     if (deviceIds.length != rows)
       throw new IllegalArgumentException("Mismatched array dimensions");
+    setDevices(deviceIds);
   }
 
   public MatrixHeader(StreamHeader prototype, int rows, int cols) {
@@ -33,14 +33,30 @@ public class MatrixHeader extends StreamHeader implements Serializable {
   }
 
   public int indexOf(String id) {
-    if (indexMap == null) {
-      String[] ids = getIds();
-      indexMap = new HashMap<String, Integer>(ids.length);
-      for (int i = 0;i < ids.length;i++) {
-        indexMap.put(ids[i], i);
+    int device = DeviceRegistry.lookup(id);
+    if (device < 0) {
+      throw new IllegalArgumentException("Unknown device " + id);
+    }
+    return indexOf(device);
+  }
+
+  // row of the device with this DeviceRegistry index, -1 if it's not in this header
+  public int indexOf(int device) {
+    int[] pos = positions;
+    if (pos == null) {
+      int[] devices = getDevices();
+      int max = -1;
+      for (int d : devices) {
+        max = Math.max(max, d);
       }
+      pos = new int[max + 1];
+      Arrays.fill(pos, -1);
+      for (int i = 0; i < devices.length; i++) {
+        pos[devices[i]] = i;
+      }
+      positions = pos;
     }
-    return indexMap.get(id);
+    return device < pos.length ? pos[device] : -1;
   }
 
   public class MatrixFrame extends StreamFrame implements Serializable {
@@ -81,6 +97,15 @@ public class MatrixHeader extends StreamHeader implements Serializable {
     return new MatrixFrame(data);
   }
 
+  // each frame gets its own rows, so a module can hand out the same result twice
+  public MatrixFrame makeCopiedFrame(double[][] data) {
+    double[][] ndata = new double[data.length][];
+    for (int i = 0;i < data.length; i++) {
+      ndata[i] = data[i].clone();
+    }
+    return new MatrixFrame(ndata);
+  }
+
   public MatrixFrame makeTransposedFrame(double[][] data) {
     double[][] ndata = new double[data[0].length][data.length];
     for (int i = 0;i < data.length; i++) {
@@ -1,6 +1,8 @@
 package edu.cmu.pandaa.header;
 
 import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by IntelliJ IDEA.
@@ -9,8 +11,15 @@ import java.util.*;
  * Time: 9:26 PM
  */
 public class MultiHeader extends StreamHeader {
-  private final Map<StreamHeader, Integer> hmap = new HashMap<StreamHeader, Integer>();
   public final StreamHeader first;
+  // a lock rather than the monitor, so pipes parked in waitForHeaders don't pin virtual thread carriers
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition added = lock.newCondition();
+  // the headers in position order, replaced (never modified) on every add/remove; MultiFrames keep the
+  // one they were made with, so a frame always knows which input each of its entries came from
+  private volatile StreamHeader[] layout = new StreamHeader[0];
+  private volatile int registered;  // headers ever added, including removed ones
+  private final List<Waiter> waiters = new ArrayList<Waiter>();  // guarded by lock
 
   public MultiHeader(String id, StreamHeader header) {
     super(id, header.startTime, header.frameTime);
@@ -26,49 +35,164 @@ public class MultiHeader extends StreamHeader {
     }
   }
 
-  public synchronized void addHeader(StreamHeader header) {
+  public void addHeader(StreamHeader header) {
     if (header.getClass() != first.getClass()) {
       throw new IllegalArgumentException("StreamHeaders should match for multi-header");
     }
-    hmap.put(header, hmap.size());
-    notifyAll();
+    List<Waiter> due;
+    lock.lock();
+    try {
+      StreamHeader[] nlayout = Arrays.copyOf(layout, layout.length + 1);
+      nlayout[layout.length] = header;
+      layout = nlayout;
+      registered++;
+      added.signalAll();
+      due = takeWaiters();
+    } finally {
+      lock.unlock();
+    }
+    for (Waiter w : due) {
+      w.listener.run();
+    }
+  }
+
+  // drop an input; the ones after it move up a position
+  public void removeHeader(StreamHeader header) {
+    lock.lock();
+    try {
+      int pos = indexOf(header);
+      if (pos < 0) {
+        return;
+      }
+      StreamHeader[] nlayout = new StreamHeader[layout.length - 1];
+      System.arraycopy(layout, 0, nlayout, 0, pos);
+      System.arraycopy(layout, pos + 1, nlayout, pos, nlayout.length - pos);
+      layout = nlayout;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized void waitForHeaders(int num) throws InterruptedException {
-    while (hmap.size() != num) {
-      wait();
+  // wait until num headers were added; ones removed since still count, their input has come and gone
+  public void waitForHeaders(int num) throws InterruptedException {
+    lock.lock();
+    try {
+      while (registered < num) {
+        added.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // run listener once num headers were added, on the thread adding the last of them, or right away if they
+  // already were; the non-blocking counterpart of waitForHeaders, for stages that must not park
+  public void whenRegistered(int num, Runnable listener) {
+    lock.lock();
+    try {
+      if (registered < num) {
+        waiters.add(new Waiter(num, listener));
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    listener.run();
+  }
+
+  private List<Waiter> takeWaiters() {
+    List<Waiter> due = new ArrayList<Waiter>();
+    for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+      Waiter w = it.next();
+      if (w.num <= registered) {
+        due.add(w);
+        it.remove();
+      }
+    }
+    return due;
+  }
+
+  private static class Waiter {
+    final int num;
+    final Runnable listener;
+
+    Waiter(int num, Runnable listener) {
+      this.num = num;
+      this.listener = listener;
     }
   }
 
   protected String getMetaId() {
-    StreamHeader[] headers = getHeaders();
-    Set<String> set = new TreeSet<String>();
-    for (int i = 0;i < headers.length;i++) {
-      String[] ids = headers[i].getIds();
-      for (int j = 0;j < ids.length;j++) {
-        set.add(ids[j]);
+    return makeId(id, DeviceRegistry.getNames(getMetaDevices()));
+  }
+
+  // every input's devices, once each, ordered by id as the meta id lists them
+  protected int[] getMetaDevices() {
+    String[] ids = DeviceRegistry.sortedNames(getDevices());
+    int[] sorted = new int[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      sorted[i] = DeviceRegistry.lookup(ids[i]);
+    }
+    return sorted;
+  }
+
+  // the union of the current inputs' devices; follows the layout, so not cached
+  @Override
+  public int[] getDevices() {
+    StreamHeader[] headers = layout;
+    int[][] inputs = new int[headers.length][];
+    for (int i = 0; i < headers.length; i++) {
+      inputs[i] = headers[i].getDevices();  // registers them first, so they fit in seen
+    }
+    boolean[] seen = new boolean[DeviceRegistry.size()];
+    int[] union = new int[seen.length];
+    int n = 0;
+    for (int[] devices : inputs) {
+      for (int d : devices) {
+        if (!seen[d]) {
+          seen[d] = true;
+          union[n++] = d;
+        }
+      }
+    }
+    return Arrays.copyOf(union, n);
+  }
+
+  @Override
+  public int getStreamIndex() {
+    return DeviceRegistry.streamIndex(getDevices());
+  }
+
+  public int indexOf(StreamHeader h) {
+    StreamHeader[] current = layout;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] == h) {
+        return i;
       }
     }
-    return makeId(id, set.toArray(new String[0]));
+    return -1;
   }
 
   public boolean contains(StreamHeader h) {
-    return hmap.containsKey(h);
+    return indexOf(h) >= 0;
   }
 
   public StreamHeader[] getHeaders(StreamHeader[] target) {
-    for (StreamHeader key : hmap.keySet())
-      target[hmap.get(key)] = key;
+    StreamHeader[] current = layout;
+    System.arraycopy(current, 0, target, 0, current.length);
     return target;
   }
 
   public StreamHeader[] getHeaders() {
-    StreamHeader[] sh = new StreamHeader[hmap.size()];
-    return getHeaders(sh);
+    return layout.clone();
+  }
+
+  public int getRegistered() {
+    return registered;
   }
 
   public int size() {
-    return hmap.size();
+    return layout.length;
   }
 
   public StreamHeader getOne() {
@@ -77,23 +201,45 @@ public class MultiHeader extends StreamHeader {
 
   public class MultiFrame extends StreamFrame {
     private final StreamFrame[] frames;
+    private final StreamHeader[] headers;
 
     public MultiFrame() {
-      frames = new StreamFrame[hmap.size()];
+      headers = layout;
+      frames = new StreamFrame[headers.length];
     }
 
     public MultiFrame(int seqNum) {
       super(seqNum);
-      frames = new StreamFrame[hmap.size()];
+      headers = layout;
+      frames = new StreamFrame[headers.length];
+    }
+
+    // the input for each position of getFrames(), as of when the frame was made; shared, don't modify
+    public StreamHeader[] getInputHeaders() {
+      return headers;
     }
 
     public void setFrame(StreamFrame f) {
-      int pos = hmap.get(f.getHeader());
+      frames[positionOf(f.getHeader())] = f;
+    }
+
+    // caller already knows the position, see indexOf()
+    public void setFrame(int pos, StreamFrame f) {
       frames[pos] = f;
     }
 
     public StreamFrame getFrame(StreamHeader h) {
-      return frames[hmap.get(h)];
+      return frames[positionOf(h)];
+    }
+
+    // positions may have moved since this frame was made, so look in its own layout
+    private int positionOf(StreamHeader h) {
+      for (int i = 0; i < headers.length; i++) {
+        if (headers[i] == h) {
+          return i;
+        }
+      }
+      throw new IllegalArgumentException("No input " + h.id + " in frame of " + id);
     }
 
     public StreamFrame getFrame(int index) {
@@ -103,6 +249,15 @@ public class MultiHeader extends StreamHeader {
     public StreamFrame[] getFrames() {
       return frames;
     }
+
+    @Override
+    protected void recycle() {
+      for (StreamFrame f : frames) {
+        if (f != null) {
+          f.release();
+        }
+      }
+    }
   }
 
   @Override
@@ -1,6 +1,10 @@
 package edu.cmu.pandaa.header;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.cmu.pandaa.utils.DataConversionUtil;
 
@@ -40,9 +44,15 @@ public class RawAudioHeader extends StreamHeader implements Serializable {
   private short[] prev, stage;
   private int prev_seqNum, stage_seqNum = -1;
   public String comment;
+  // sample buffers of released frames; a buffer is handed out again by the next makeFrame of that length
+  private transient ConcurrentLinkedQueue<short[]> pool;
+  private transient AtomicInteger pooled;
+  private transient AtomicLong allocated, reused;
 
 	public static final int DEFAULT_FRAMETIME = 100;
 	public static final int WAV_FILE_HEADER_LENGTH = 44;
+	public static final int MAX_POOLED = 64;  // per header, beyond that released buffers go to the GC
+	static final short POISON = (short) 0xdead;  // fill for pooled buffers under debugFrameRefs
 
 	public RawAudioHeader(String id, long startTime, int frameTime) {
 		super(id, startTime, frameTime);
@@ -91,24 +101,36 @@ public class RawAudioHeader extends StreamHeader implements Serializable {
     int dindex = 0;
 
     public RawAudioFrame(int frameLength) {
-      audioData = new short[frameLength];
+      audioData = takeBuffer(frameLength);
     }
 
     public RawAudioFrame(int frameLength, int seqNum) {
       super(seqNum);
-      audioData = new short[frameLength];
+      audioData = takeBuffer(frameLength);
     }
 
     public RawAudioFrame(RawAudioFrame clone) {
       super(clone.seqNum);
-      audioData = clone.audioData.clone();
+      short[] data = clone.getAudioData();
+      audioData = takeBuffer(data.length);
+      System.arraycopy(data, 0, audioData, 0, data.length);
       dindex = clone.dindex;
     }
 
 		public short[] getAudioData() {
+      checkLive();
 			return audioData;
 		}
 
+    @Override
+    protected void recycle() {
+      short[] data = audioData;
+      audioData = null;  // stale users fail instead of reading someone else's samples
+      if (data != null) {
+        giveBuffer(data);
+      }
+    }
+
 		public String toString() {
 			String result = " Length = " + audioData.length + " Data: ";
 			for (int i = 0; i < 100; i++) {
@@ -129,6 +151,11 @@ public class RawAudioHeader extends StreamHeader implements Serializable {
     }
 
     public double[] smooth(int window) {
+      return smooth(window, new double[audioData.length]);
+    }
+
+    // same as smooth(window), but fills in the caller's array (at least audioData.length long)
+    public double[] smooth(int window, double[] data) {
       if (prev_seqNum != seqNum-1) {
         prev = stage;
         prev_seqNum = stage_seqNum;
@@ -137,12 +164,11 @@ public class RawAudioHeader extends StreamHeader implements Serializable {
       }
 
       // first time through this will point back to us, but that's OK
-      double[] data = new double[audioData.length];
       double avg = 0;
       for (int i = 0;i < window; i++) {
         avg += getSampleSq(i-window);
       }
-      for (int i = 0; i < data.length; i++) {
+      for (int i = 0; i < audioData.length; i++) {
         avg -= getSampleSq(i-window);
         avg += getSampleSq(i);
         data[i] = Math.sqrt(avg / window);
@@ -187,6 +213,65 @@ public class RawAudioHeader extends StreamHeader implements Serializable {
     }
   }
 
+  private ConcurrentLinkedQueue<short[]> getPool() {
+    if (pool == null) {
+      synchronized (this) {  // lazily, headers also arrive deserialized from sockets
+        if (pool == null) {
+          pooled = new AtomicInteger();
+          allocated = new AtomicLong();
+          reused = new AtomicLong();
+          pool = new ConcurrentLinkedQueue<short[]>();
+        }
+      }
+    }
+    return pool;
+  }
+
+  private short[] takeBuffer(int length) {
+    ConcurrentLinkedQueue<short[]> buffers = getPool();
+    short[] data = buffers.poll();
+    if (data != null) {
+      pooled.decrementAndGet();
+      if (data.length == length) {
+        if (debugFrameRefs) {
+          checkPoison(data);
+        }
+        Arrays.fill(data, (short) 0);
+        reused.incrementAndGet();
+        return data;
+      }
+      // odd sized leftovers (short last frames) are not worth keeping
+    }
+    allocated.incrementAndGet();
+    return new short[length];
+  }
+
+  private void giveBuffer(short[] data) {
+    getPool();
+    if (pooled.incrementAndGet() > MAX_POOLED) {
+      pooled.decrementAndGet();
+      return;
+    }
+    if (debugFrameRefs) {
+      Arrays.fill(data, POISON);
+    }
+    pool.offer(data);
+  }
+
+  // a released buffer must come back untouched, otherwise someone kept writing to it
+  private void checkPoison(short[] data) {
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] != POISON) {
+        throw new IllegalStateException("Frame buffer of " + id + " written after release at sample " + i);
+      }
+    }
+  }
+
+  public String getPoolStats() {
+    getPool();
+    return "allocated=" + allocated.get() + " reused=" + reused.get() + " pooled=" + pooled.get();
+  }
+
   public void initFilters(int win, int der) {
     smooth_save = new int[(int) getSamplingRate()*win/22050];
     derrive_save = new short[der];
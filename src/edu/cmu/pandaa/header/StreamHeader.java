@@ -4,6 +4,7 @@ import edu.cmu.pandaa.framework.App;
 import edu.cmu.pandaa.stream.FileStream;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class StreamHeader implements Serializable {
   public final String id; // device ID (hostname, IP address, whatever)
@@ -12,6 +13,16 @@ public class StreamHeader implements Serializable {
   public int nextSeq; // next sequence number to use by frame constructor
   private final String targetClass;
   public boolean closed = false;
+  // DeviceRegistry indexes of the devices in id, in getIds() order, and of the stream over them;
+  // resolved on first use, they only mean something in this process
+  private transient volatile int[] devices;
+  private transient int streamIndex;
+
+  // fail loudly on retain/release after a frame was released and on access to recycled buffers
+  public static volatile boolean debugFrameRefs = false;
+
+  private static final AtomicIntegerFieldUpdater<StreamFrame> REFS =
+          AtomicIntegerFieldUpdater.newUpdater(StreamFrame.class, "refs");
 
   public StreamHeader(StreamHeader prototype) {
     this.id = prototype.getMetaId();
@@ -19,6 +30,7 @@ public class StreamHeader implements Serializable {
     this.frameTime = prototype.frameTime;
     this.targetClass = prototype.targetClass;
     this.nextSeq = prototype.nextSeq;
+    setDevices(prototype.getMetaDevices());
     if (targetClass != null && !this.getClass().getSimpleName().equals(targetClass)) {
       throw new RuntimeException("Mismatching target class");
     }
@@ -32,6 +44,11 @@ public class StreamHeader implements Serializable {
     return id;
   }
 
+  // the devices of getMetaId(), in its order
+  protected int[] getMetaDevices() {
+    return getDevices();
+  }
+
   public StreamHeader(String id, long startTime, int frameTime) {
     this(id, startTime, frameTime, 0, null);
   }
@@ -50,8 +67,15 @@ public class StreamHeader implements Serializable {
     this.nextSeq = nextSeq;
   }
 
+  /*
+   * Frames are reference counted so headers can recycle their buffers (see RawAudioHeader). Whoever
+   * creates or receives a frame owns one reference and release()s it when done; anyone keeping the
+   * frame beyond that, e.g. a module holding history or a queue, retain()s it first.
+   */
   public class StreamFrame implements Serializable {
     public final int seqNum;
+    transient volatile int refs;  // references beyond the owner's, -1 once released
+    private transient Throwable releasedAt;  // debugFrameRefs only
 
     public StreamFrame() {
       seqNum = nextSeq++;
@@ -69,6 +93,41 @@ public class StreamHeader implements Serializable {
       return StreamHeader.this;
     }
 
+    public StreamFrame retain() {
+      int r = REFS.getAndIncrement(this);
+      if (r < 0 && debugFrameRefs) {
+        throw new IllegalStateException(this + " retained after release", releasedAt);
+      }
+      return this;
+    }
+
+    public void release() {
+      int r = REFS.getAndDecrement(this);
+      if (r == 0) {
+        if (debugFrameRefs) {
+          releasedAt = new Throwable("released here");
+        }
+        recycle();
+      } else if (r < 0 && debugFrameRefs) {
+        throw new IllegalStateException(this + " released twice", releasedAt);
+      }
+    }
+
+    public boolean isReleased() {
+      return refs < 0;
+    }
+
+    // throws if the frame was already released, for accessors of recycled data
+    protected void checkLive() {
+      if (refs < 0) {
+        throw new IllegalStateException(this + " used after release", releasedAt);
+      }
+    }
+
+    // the last reference is gone; return pooled data to the header
+    protected void recycle() {
+    }
+
     public String toString() {
       return id + "#" + seqNum;
     }
@@ -90,6 +149,40 @@ public class StreamHeader implements Serializable {
     return new StreamFrame(seqNum);
   }
 
+  // the device indexes, for array lookups instead of parsing id
+  public int[] getDevices() {
+    int[] d = devices;
+    if (d == null) {
+      String[] ids = parseIds();
+      d = new int[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+        d[i] = DeviceRegistry.register(ids[i]);
+      }
+      setDevices(d);
+    }
+    return d;
+  }
+
+  // for headers made from device ids, so they don't have to be parsed back out of the combined id
+  protected void setDevices(String[] ids) {
+    int[] d = new int[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      d[i] = DeviceRegistry.register(ids[i]);
+    }
+    setDevices(d);
+  }
+
+  protected void setDevices(int[] d) {
+    streamIndex = DeviceRegistry.streamIndex(d);
+    devices = d;  // volatile write last, after streamIndex
+  }
+
+  // dense index of the device set this stream carries, see DeviceRegistry
+  public int getStreamIndex() {
+    getDevices();
+    return streamIndex;
+  }
+
   public static String makeId(String base,String[] ids) {
     String nid = ids[0];
     for (int i = 1;i < ids.length;i++) {
@@ -99,6 +192,10 @@ public class StreamHeader implements Serializable {
   }
 
   public String[] getIds() {
+    return DeviceRegistry.getNames(getDevices());
+  }
+
+  private String[] parseIds() {
     int list = id.indexOf(',');
     if (list < 0) {
       String[] parts = { id };
@@ -106,6 +203,9 @@ public class StreamHeader implements Serializable {
     }
     int prefix = id.substring(0, list).lastIndexOf('-');
     int postfix = id.indexOf('_', list);
+    if (postfix < 0) {
+      postfix = id.length();  // no _timestamp, like the test sets' name-N devices
+    }
     String lstr = id.substring(prefix + 1, postfix);
     String[] parts = lstr.split(",");
     for (int i = 0; i < parts.length; i++) {
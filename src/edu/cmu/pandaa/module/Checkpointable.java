@@ -0,0 +1,52 @@
+package edu.cmu.pandaa.module;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// a module with converged state worth keeping over a restart (see CheckpointManager); both calls are
+// made by the pipe's own thread between frames, restoreState right after init
+public interface Checkpointable {
+  void saveState(DataOutput out) throws IOException;
+
+  // state saved by an earlier run over the same inputs; ignore what no longer fits
+  void restoreState(DataInput in) throws IOException;
+
+  static void writeArray(DataOutput out, double[] a) throws IOException {
+    out.writeInt(a == null ? -1 : a.length);
+    for (int i = 0; a != null && i < a.length; i++) {
+      out.writeDouble(a[i]);
+    }
+  }
+
+  static double[] readArray(DataInput in) throws IOException {
+    int len = in.readInt();
+    if (len < 0) {
+      return null;
+    }
+    double[] a = new double[len];
+    for (int i = 0; i < len; i++) {
+      a[i] = in.readDouble();
+    }
+    return a;
+  }
+
+  static void writeIds(DataOutput out, String[] ids) throws IOException {
+    out.writeInt(ids == null ? -1 : ids.length);
+    for (int i = 0; ids != null && i < ids.length; i++) {
+      out.writeUTF(ids[i]);
+    }
+  }
+
+  static String[] readIds(DataInput in) throws IOException {
+    int len = in.readInt();
+    if (len < 0) {
+      return null;
+    }
+    String[] ids = new String[len];
+    for (int i = 0; i < len; i++) {
+      ids[i] = in.readUTF();
+    }
+    return ids;
+  }
+}
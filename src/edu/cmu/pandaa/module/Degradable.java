@@ -0,0 +1,10 @@
+package edu.cmu.pandaa.module;
+
+// a module that can trade accuracy for time when the pipelines fall behind live audio (see
+// QualityController); level 0 is full quality, every level up is cheaper and coarser. setLevel may be
+// called from another thread at any time, the module picks the new level up at its next frame
+public interface Degradable {
+  int getMaxLevel();
+
+  void setLevel(int level);
+}
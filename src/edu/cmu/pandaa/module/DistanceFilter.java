@@ -10,6 +10,10 @@ import edu.cmu.pandaa.stream.DistanceFileStream;
 import edu.cmu.pandaa.stream.FrameStream;
 import edu.cmu.pandaa.stream.GeometryFileStream;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * Created by IntelliJ IDEA.
  * User: peringknife
@@ -17,7 +21,7 @@ import edu.cmu.pandaa.stream.GeometryFileStream;
  * Time: 8:25 AM
  */
 
-public class DistanceFilter implements StreamModule {
+public class DistanceFilter implements StreamModule, Checkpointable {
   double average = 0, magnitude = 1, weight;
   DistanceHeader header;
   public static final double speedOfSound = 340.29; // m/s at sea level
@@ -26,6 +30,8 @@ public class DistanceFilter implements StreamModule {
   int numDevices = 4;  // default unless we know otherwise
   int d1index = -1, d2index = -1;
   int seqBase = 0;
+  private double scaleGuess = Double.NaN;  // only depends on numDevices while there's no position frame
+  private int scaleGuessDevices = -1;
 
   public DistanceFilter(double weight) {
     this.weight = weight;
@@ -76,6 +82,9 @@ public class DistanceFilter implements StreamModule {
   }
 
   private double getScaleGuess() {
+    if (posFrame == null && scaleGuessDevices == numDevices) {
+      return scaleGuess;
+    }
     double scale = 0;
 
     for (int i = 0; i < numDevices; i++)
@@ -84,6 +93,10 @@ public class DistanceFilter implements StreamModule {
           scale += distanceAdjustment(i, j);  // TODO: use accurate gHeader
     scale /= numDevices*(numDevices - 1);
 
+    if (posFrame == null) {
+      scaleGuess = scale;
+      scaleGuessDevices = numDevices;
+    }
     return scale;
   }
 
@@ -98,15 +111,9 @@ public class DistanceFilter implements StreamModule {
     GeometryHeader gh = (GeometryHeader) posStream.getHeader();
     numDevices = gh.rows;
 
-    String d1id = header.getDeviceIds()[0];
-    String d2id = header.getDeviceIds()[1];
-    String[] did = gh.getIds();
-    for (int i = 0;i < numDevices;i++) {
-      if (d1id.equals(did[i]))
-        d1index = i;
-      if (d2id.equals(did[i]))
-        d2index = i;
-    }
+    int[] pair = header.getDevices();
+    d1index = gh.indexOf(pair[0]);
+    d2index = gh.indexOf(pair[1]);
 
     if ((d1index < 0)||(d2index < 0)||(d1index == d2index))
       throw new IllegalArgumentException("Could not find matching deviceIds");
@@ -119,11 +126,13 @@ public class DistanceFilter implements StreamModule {
     if (inFrame == null) {
       return null;
     }
-    DistanceFrame din = (DistanceFrame) inFrame;
-    double scale = getScale();
+    return filter((DistanceFrame) inFrame, getScale());
+  }
+
+  private DistanceFrame filter(DistanceFrame din, double scale) {
     double distSum = 0;
     int count = din.peakDeltas == null ? 0 : din.peakDeltas.length;
-    if (count == 0 && inFrame.seqNum > 0)
+    if (count == 0 && din.seqNum > 0)
       return null;
 
     for (int i = 0;i < count; i++) {
@@ -141,13 +150,38 @@ public class DistanceFilter implements StreamModule {
     double[] magnitudes = { magnitude };
     double[] values = { count > 0 ? distSum / count : 0 };
 
-    return this.header.makeFrame(inFrame.seqNum + seqBase, deltas, magnitudes, values);
+    return this.header.makeFrame(din.seqNum + seqBase, deltas, magnitudes, values);
+  }
+
+  public void saveState(DataOutput out) throws IOException {
+    out.writeDouble(average);
+    out.writeDouble(magnitude);
+  }
+
+  public void restoreState(DataInput in) throws IOException {
+    average = in.readDouble();
+    magnitude = in.readDouble();
   }
 
   public void close() {
 
   }
 
+  // all of in to out, scaled by the positions in pos if there are any
+  public void runModule(FrameStream in, FrameStream out, FrameStream pos) throws Exception {
+    out.setHeader(init(in.getHeader()));
+    if (pos != null) {
+      setPositionStream(pos);
+    }
+
+    StreamFrame frameIn;
+    while ((frameIn = in.recvFrame()) != null) {
+      out.sendFrame(process(frameIn));
+    }
+    out.close();
+    close();
+  }
+
   public static void main(String[] args) throws Exception
   {
     int arg = 0;
@@ -164,30 +198,13 @@ public class DistanceFilter implements StreamModule {
     System.out.println("Distance Filter: " + wString + " " + outArg + " " + inArg + " " + " " + distArg);
 
     try {
-      DistanceFileStream out = null;
       DistanceFilter df = new DistanceFilter(Double.parseDouble(wString));
-      StreamFrame frameIn;
-
       DistanceFileStream in = new DistanceFileStream(inArg);
-      StreamHeader inH = in.getHeader();
-      if (out == null) {
-        out = new DistanceFileStream(outArg, true);
-        out.setHeader(df.init(inH));
-      }
-
       GeometryFileStream pos = distArg == null ? null : new GeometryFileStream(distArg);
-      if (pos != null) {
-        df.setPositionStream(pos);
-      }
-
-      while ((frameIn = in.recvFrame()) != null) {
-        out.sendFrame(df.process(frameIn));
-      }
+      df.runModule(in, new DistanceFileStream(outArg, true), pos);
       in.close();
       if (pos != null)
         pos.close();
-      out.close();
-      df.close();
     }catch(Exception e){
       e.printStackTrace();
     }
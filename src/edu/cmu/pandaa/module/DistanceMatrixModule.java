@@ -1,8 +1,13 @@
 package edu.cmu.pandaa.module;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.channels.IllegalBlockingModeException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import edu.cmu.pandaa.header.DistanceHeader.DistanceFrame;
@@ -15,15 +20,26 @@ import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
 import edu.cmu.pandaa.stream.DistanceFileStream;
 import edu.cmu.pandaa.stream.FileStream;
+import edu.cmu.pandaa.stream.FrameStream;
 import edu.cmu.pandaa.stream.GeometryFileStream;
 import edu.cmu.pandaa.stream.MultiFrameStream;
 
 
-public class DistanceMatrixModule implements StreamModule {
+/*
+ * Combines the pairwise distances into one symmetric matrix over all devices. Each input's cell comes
+ * from the device ids of its DistanceHeader. The set of inputs can change while running (devices
+ * joining or leaving, see MultiFrameStream.removeInput): MultiFrames carry the layout they were made
+ * with, and when that changes the matrix is laid out again, keeping the surviving devices in their
+ * old order, and a new GeometryHeader goes out with the next frame.
+ */
+public class DistanceMatrixModule implements StreamModule, Checkpointable {
   GeometryHeader gHeader;
   DistanceHeader[] distanceHeaders;
   double[][] previous;
   int numDevices;
+  private String[] deviceIds;     // matrix rows/columns
+  private StreamHeader[] layout;  // input layout the cells were computed for
+  private int[] rowOf, colOf;     // matrix cell of each input position
 
   public DistanceMatrixModule()
   {
@@ -35,18 +51,71 @@ public class DistanceMatrixModule implements StreamModule {
       throw new IllegalArgumentException("Input multiheader should contain Distance Headers");
     }
 
-    distanceHeaders = (DistanceHeader[]) multiHeader.getHeaders(new DistanceHeader[multiHeader.size()]);
+    relayout(multiHeader.getHeaders());
+    return gHeader;
+  }
 
+  // map every input to its matrix cell; a new header only if the set of devices changed
+  private void relayout(StreamHeader[] inputs) {
+    distanceHeaders = Arrays.copyOf(inputs, inputs.length, DistanceHeader[].class);
     for (int j = 1; j < distanceHeaders.length; j++) {
       if(distanceHeaders[0].frameTime != distanceHeaders[j].frameTime)
         throw new IllegalArgumentException("Frame duration must be equal for all input frames");
     }
-    /*generate unique device id array*/
-    String[] deviceIds = generateDeviceIds(distanceHeaders);
-    setNumDevices(deviceIds.length);
-    gHeader = new GeometryHeader(deviceIds, distanceHeaders[0].startTime,
-            distanceHeaders[0].frameTime, numDevices, numDevices);
-    return gHeader;
+
+    String[] ids;
+    if (gHeader == null) {
+      /*generate unique device id array*/
+      ids = generateDeviceIds(distanceHeaders);
+    } else {
+      Set<String> present = new HashSet<String>(Arrays.asList(generateDeviceIds(distanceHeaders)));
+      List<String> kept = new ArrayList<String>();
+      for (String id : deviceIds) {
+        if (present.remove(id)) {
+          kept.add(id);
+        }
+      }
+      kept.addAll(present);
+      ids = kept.toArray(new String[kept.size()]);
+    }
+
+    if (gHeader == null || !Arrays.equals(ids, deviceIds)) {
+      boolean changed = gHeader != null;
+      previous = remap(previous, deviceIds, ids);
+      deviceIds = ids;
+      setNumDevices(deviceIds.length);
+      gHeader = new GeometryHeader(deviceIds, distanceHeaders[0].startTime,
+              distanceHeaders[0].frameTime, numDevices, numDevices);
+      if (changed) {
+        System.out.println("Distance matrix now over " + numDevices + " devices: " + gHeader.id);
+      }
+    }
+
+    rowOf = new int[inputs.length];
+    colOf = new int[inputs.length];
+    for (int k = 0; k < inputs.length; k++) {
+      int[] pair = distanceHeaders[k].getDevices();
+      rowOf[k] = gHeader.indexOf(pair[0]);
+      colOf[k] = gHeader.indexOf(pair[pair.length - 1]);
+    }
+    layout = inputs;
+  }
+
+  // carry the last known distances of the surviving devices over to the new layout
+  private static double[][] remap(double[][] prev, String[] oldIds, String[] ids) {
+    if (prev == null || oldIds == null) {
+      return null;
+    }
+    List<String> oldList = Arrays.asList(oldIds);
+    double[][] next = new double[ids.length][ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      int oi = oldList.indexOf(ids[i]);
+      for (int j = 0; j < ids.length; j++) {
+        int oj = oldList.indexOf(ids[j]);
+        next[i][j] = oi < 0 || oj < 0 ? 0.0 : prev[oi][oj];
+      }
+    }
+    return next;
   }
 
   public void setNumDevices(int num)
@@ -77,8 +146,12 @@ public class DistanceMatrixModule implements StreamModule {
     if (inFrame == null) {
       return null;
     }
+    MultiFrame mf = (MultiFrame) inFrame;
+    if (mf.getInputHeaders() != layout) {
+      relayout(mf.getInputHeaders());
+    }
     int numDevices = getNumDevices();
-    StreamFrame[] frames = ((MultiFrame) inFrame).getFrames();
+    StreamFrame[] frames = mf.getFrames();
     for(int i = 0; i < frames.length; i++){
       if (frames[i] != null && !(frames[i] instanceof DistanceFrame)) {
         throw new IllegalArgumentException("Input multiframe should contain DistanceFrames");
@@ -87,29 +160,25 @@ public class DistanceMatrixModule implements StreamModule {
 
     DistanceFrame[] dfIn = Arrays.copyOf(frames, frames.length, DistanceFrame[].class);
     double[][] distanceMatrix = new double[numDevices][numDevices];
-    int count = 0;
-
-    for(int i = 0; i < numDevices; i++) {
-      for(int j = 0; j < numDevices; j++) {
-        if(i == j)
-          distanceMatrix[i][j] = 0.0; //distance of device with itself
-        else if (j < i)
-          distanceMatrix[i][j] = distanceMatrix[j][i]; //symmetric element
-        else if (count < dfIn.length) { // catch transitional case of array sizes adjusting
-          if ((dfIn[count] == null || dfIn[count].peakDeltas.length == 0) && previous != null)
-            distanceMatrix[i][j] = previous[i][j];
-          else if (dfIn[count] != null) {
-            distanceMatrix[i][j] = 0;
-            for (int k = 0; k < dfIn[count].peakDeltas.length; k++)
-              distanceMatrix[i][j] += dfIn[count].peakDeltas[k];
-            distanceMatrix[i][j] /= dfIn[count].peakDeltas.length;
-          }
-          // TODO: Try to find a better way to do this because it seems very unstable through code changes
-          count++; // only increment for the "active" half of the matrix we're populating
-        }
+    if (previous != null) {
+      for (int i = 0; i < numDevices; i++) {
+        distanceMatrix[i] = previous[i].clone();  // pairs that are gone keep their last distance
       }
     }
 
+    for (int k = 0; k < dfIn.length; k++) {
+      int i = rowOf[k], j = colOf[k];
+      if ((dfIn[k] == null || dfIn[k].peakDeltas.length == 0) && previous != null)
+        distanceMatrix[i][j] = previous[i][j];
+      else if (dfIn[k] != null) {
+        distanceMatrix[i][j] = 0;
+        for (int p = 0; p < dfIn[k].peakDeltas.length; p++)
+          distanceMatrix[i][j] += dfIn[k].peakDeltas[p];
+        distanceMatrix[i][j] /= dfIn[k].peakDeltas.length;
+      }
+      distanceMatrix[j][i] = distanceMatrix[i][j]; //symmetric element
+    }
+
     if (compareMatrix(distanceMatrix, previous))
       return null;
 
@@ -118,6 +187,28 @@ public class DistanceMatrixModule implements StreamModule {
     return gfOut;
   }
 
+  // the last matrix, by device id: a restart over the same devices picks up where this one left off
+  public void saveState(DataOutput out) throws IOException {
+    Checkpointable.writeIds(out, previous == null ? null : deviceIds);
+    for (int i = 0; previous != null && i < previous.length; i++) {
+      Checkpointable.writeArray(out, previous[i]);
+    }
+  }
+
+  public void restoreState(DataInput in) throws IOException {
+    String[] ids = Checkpointable.readIds(in);
+    if (ids == null) {
+      return;
+    }
+    double[][] saved = new double[ids.length][];
+    for (int i = 0; i < ids.length; i++) {
+      saved[i] = Checkpointable.readArray(in);
+    }
+    if (deviceIds != null) {  // devices missing from the checkpoint start at 0, like a new pair
+      previous = remap(saved, ids, deviceIds);
+    }
+  }
+
   public void close() {
   }
 
@@ -141,29 +232,10 @@ public class DistanceMatrixModule implements StreamModule {
   }
 
 
-  public static void main(String[] args) throws Exception {
-    int i = 0;
-    int numDev = args.length - 1;
-    String[] inArg = new String[numDev];
-    String outArg = args[i];
-    for(i = 0; i < numDev; i++){
-      inArg[i] = args[i+1];
-    }
-    if (i != numDev)
-      throw new IllegalArgumentException("Invalid number of arguments");
-
-    System.out.print("DistanceMatrix: " + outArg);
-    for(i = 0; i < numDev; i++) {
-      System.out.print(" " + inArg[i]);
-    }
-    System.out.println();
-
-    FileStream[] ifs = new DistanceFileStream[numDev];
-
-    for(i = 0; i < numDev; i++){
-      ifs[i] = new DistanceFileStream(inArg[i]);
-    }
-
+  // the distance streams, joined by sequence number, to out
+  public void runModule(FrameStream[] ifs, FrameStream ofs) throws Exception {
+    int i;
+    int numDev = ifs.length;
     MultiFrameStream mfs = new MultiFrameStream("tdoa123");
 
     StreamHeader[] ifh = new StreamHeader[numDev];
@@ -173,11 +245,7 @@ public class DistanceMatrixModule implements StreamModule {
       mfs.setHeader(ifh[i]);
     }
 
-    FileStream ofs = new GeometryFileStream(outArg, true, false);
-
-    DistanceMatrixModule ppd = new DistanceMatrixModule();
-    ofs.setHeader(ppd.init(mfs.getHeader()));
-
+    ofs.setHeader(init(mfs.getHeader()));
 
     try {
       mfs.noblock = true;
@@ -200,7 +268,7 @@ public class DistanceMatrixModule implements StreamModule {
         StreamFrame frameIn = mfs.recvFrame();
         if (frameIn == null)
           break;
-        StreamFrame frameOut = ppd.process(frameIn);
+        StreamFrame frameOut = process(frameIn);
         if(frameOut != null)
           ofs.sendFrame(frameOut);
       }
@@ -211,4 +279,31 @@ public class DistanceMatrixModule implements StreamModule {
     }
     ofs.close();
   }
+
+  public static void main(String[] args) throws Exception {
+    int i = 0;
+    int numDev = args.length - 1;
+    String[] inArg = new String[numDev];
+    String outArg = args[i];
+    for(i = 0; i < numDev; i++){
+      inArg[i] = args[i+1];
+    }
+    if (i != numDev)
+      throw new IllegalArgumentException("Invalid number of arguments");
+
+    System.out.print("DistanceMatrix: " + outArg);
+    for(i = 0; i < numDev; i++) {
+      System.out.print(" " + inArg[i]);
+    }
+    System.out.println();
+
+    FileStream[] ifs = new DistanceFileStream[numDev];
+
+    for(i = 0; i < numDev; i++){
+      ifs[i] = new DistanceFileStream(inArg[i]);
+    }
+
+    DistanceMatrixModule ppd = new DistanceMatrixModule();
+    ppd.runModule(ifs, new GeometryFileStream(outArg, true, false));
+  }
 }
@@ -6,6 +6,7 @@ import edu.cmu.pandaa.header.RawAudioHeader;
 import edu.cmu.pandaa.header.RawAudioHeader.RawAudioFrame;
 import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+import edu.cmu.pandaa.stream.FrameStream;
 import edu.cmu.pandaa.stream.ImpulseFileStream;
 import edu.cmu.pandaa.stream.RawAudioFileStream;
 
@@ -24,11 +25,13 @@ public class FeatureStreamModule implements StreamModule {
   private double peakValue;
   private LinkedList<Double> peakOffsets = new LinkedList<Double>();
   private LinkedList<Short> peakMagnitudes = new LinkedList<Short>();
+  // the augmented audio of frames whose impulses aren't known yet, null entries when not augmenting
   private LinkedList<RawAudioFrame> ras = new LinkedList<RawAudioFrame>();
   private int saveFrames = -1;
   private RawAudioFileStream rafs;
   private String augmentFile;
   private long expectedDataSamples;
+  private double[] slowFrame, fastFrame;  // smoothing scratch, reused across frames
 
   /* parameters we may want/need to tweak */
   static int derive = 0;  // non-zero to use 1st derivative
@@ -40,13 +43,14 @@ public class FeatureStreamModule implements StreamModule {
   public FeatureStreamModule() {
   }
 
-  private ImpulseFrame pushResult(RawAudioFrame in) {
+  // augmented is our own copy of in for the augmented audio, if any: the markers go there and never into
+  // in, whose pooled buffer other outputs and deferred trace writes may still be reading
+  private ImpulseFrame pushResult(RawAudioFrame in, RawAudioFrame augmented) {
     if (in == null && ras.size() == 0)
       return null;
 
     if (in != null) {
-      in = in.clone();
-      ras.addLast(in);
+      ras.addLast(augmented);  // until its impulses are known, released below
       if (in.seqNum < saveFrames) {
         return null;
       }
@@ -67,12 +71,16 @@ public class FeatureStreamModule implements StreamModule {
     ImpulseFrame impulses = header.makeFrame(newOffsets, newMagnitudes);
 
     RawAudioFrame audioFrame = ras.removeFirst();
-    if (ensureRafs(audioFrame) != null) {
+    if (audioFrame != null) {
       try {
-        augmentAudio(audioFrame, impulses);
-        rafs.sendFrame(audioFrame);
+        if (ensureRafs(audioFrame) != null) {
+          augmentAudio(audioFrame, impulses);
+          rafs.sendFrame(audioFrame);
+        }
       } catch (Exception e) {
         throw new RuntimeException(e);
+      } finally {
+        audioFrame.release();
       }
     }
 
@@ -131,6 +139,8 @@ public class FeatureStreamModule implements StreamModule {
     saveFrames = (peakWindowMs + inHeader.frameTime - 1)/ inHeader.frameTime;
 
     expectedDataSamples = (long) rah.frameTime * rah.getSamplingRate() / 1000;
+    slowFrame = new double[(int) expectedDataSamples];
+    fastFrame = new double[(int) expectedDataSamples];
 
     return header;
   }
@@ -169,22 +179,24 @@ public class FeatureStreamModule implements StreamModule {
   @Override
   public ImpulseFrame process(StreamFrame inFrame) {
     if (inFrame == null) {
-      return pushResult(null);
+      return pushResult(null, null);
     }
 
     if (!(inFrame instanceof RawAudioFrame))
       throw new RuntimeException("Wrong frame type");
-    RawAudioFrame raf = (RawAudioFrame) inFrame;
+    return processAudio((RawAudioFrame) inFrame);
+  }
 
-    double[] slowFrame = raf.smooth(slowWindow);
-    double[] fastFrame = raf.smooth(fastWindow);
+  private ImpulseFrame processAudio(RawAudioFrame raf) {
     short[] data = raf.getAudioData();
     int frameSampleStart = raf.seqNum * data.length;
 
-
     if (data.length != expectedDataSamples) {
       throw new IllegalArgumentException("Incorrect packet length " + data.length + " != " + expectedDataSamples);
     }
+    RawAudioFrame augmented = augmentFile != null ? raf.clone() : null;
+    raf.smooth(slowWindow, slowFrame);
+    raf.smooth(fastWindow, fastFrame);
     for (int i = 0; i < data.length;i ++) {
       double slow = slowFrame[i];
       double fast = fastFrame[i];
@@ -203,10 +215,10 @@ public class FeatureStreamModule implements StreamModule {
       }
 
       if (rafs != null)
-        data[i] = (short) value;
+        augmented.audioData[i] = (short) value;
     }
 
-    return pushResult(raf);
+    return pushResult(raf, augmented);
   }
 
   public double sampleToTimeOffset(int sample) {
@@ -235,6 +247,45 @@ public class FeatureStreamModule implements StreamModule {
     if (rafs != null) {
       rafs.close();
     }
+    for (RawAudioFrame frame : ras) {
+      if (frame != null) {
+        frame.release();
+      }
+    }
+    ras.clear();
+  }
+
+  // all of in to out; the augmented audio, if any, covers the first pass over a looped input
+  public void runModule(RawAudioFileStream in, FrameStream out) throws Exception {
+    int startLoopCount = in.loopCount;
+
+    RawAudioHeader header = (RawAudioHeader) in.getHeader();
+    ImpulseHeader iHeader = (ImpulseHeader) init(header);
+
+    if (out != null)
+      out.setHeader(iHeader);
+
+    RawAudioFrame audioFrame;
+    ImpulseFrame impulses = null;
+    while (true) {
+      audioFrame = (RawAudioFrame) in.recvFrame();
+
+      impulses = process(audioFrame);
+
+      if (impulses == null && audioFrame == null)
+        break;
+
+      if (out != null && impulses != null)
+        out.sendFrame(impulses);
+
+      if ((augmentFile != null)&&(in.loopCount < startLoopCount)) {
+        augmentedAudio(null);
+      }
+    }
+
+    close();
+    if (out != null)
+      out.close();
   }
 
   public static void main(String[] args) throws Exception {
@@ -275,36 +326,7 @@ public class FeatureStreamModule implements StreamModule {
       ism.augmentedAudio(outFile);
 
       System.out.println("FeatureStream: " + outFilename + " " + inFilename + " for " + length + " (" + rfs.loopCount + ")");
-      int startLoopCount = rfs.loopCount;
-
-      RawAudioHeader header = (RawAudioHeader) rfs.getHeader();
-      ImpulseHeader iHeader = (ImpulseHeader) ism.init(header);
-
-      if (iout != null)
-        iout.setHeader(iHeader);
-
-      RawAudioFrame audioFrame;
-      ImpulseFrame impulses = null;
-      while (true) {
-        audioFrame = (RawAudioFrame) rfs.recvFrame();
-
-        impulses = ism.process(audioFrame);
-
-        if (impulses == null && audioFrame == null)
-          break;
-
-        if (iout != null && impulses != null)
-          iout.sendFrame(impulses);
-
-        if ((outFile != null)&&(rfs.loopCount < startLoopCount)) {
-          ism.augmentedAudio(null);
-          outFile = null;
-        }
-      }
-
-      ism.close();
-      if (iout != null)
-        iout.close();
+      ism.runModule(rfs, iout);
     }
   }
 }
\ No newline at end of file
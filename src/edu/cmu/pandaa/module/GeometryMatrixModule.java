@@ -6,10 +6,22 @@ import edu.cmu.pandaa.header.GeometryHeader;
 import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.GeometryHeader.GeometryFrame;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
-import mdsj.*;
 
-public class GeometryMatrixModule implements StreamModule {
-  GeometryHeader hOut;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class GeometryMatrixModule implements StreamModule, Checkpointable, Degradable {
+  static final int MAX_LEVEL = 3;
+  static final double SKIP_TOLERANCE = 0.01;  // per level, relative to the largest distance
+  GeometryHeader hIn, hOut;
+  // above level 0 MDS is skipped while the distances stay within level * SKIP_TOLERANCE of the ones
+  // it last ran on, repeating its result instead
+  private volatile int level = 0;
+  private double[][] lastDist, lastGeom;
+  private long skipped = 0;
 
   public GeometryMatrixModule()
   {
@@ -36,8 +48,9 @@ public class GeometryMatrixModule implements StreamModule {
       throw new RuntimeException("Wrong header type");
 
     /*compute new header*/
-    GeometryHeader hIn = (GeometryHeader)inHeader ;
+    hIn = (GeometryHeader)inHeader ;
     hOut = new GeometryHeader(hIn.getIds(), hIn.startTime, hIn.frameTime, hIn.rows, 2);
+    lastDist = null;
     return hOut;
   }
 
@@ -48,13 +61,167 @@ public class GeometryMatrixModule implements StreamModule {
     if (!(inFrame instanceof GeometryFrame))
       throw new RuntimeException("Wrong frame type");
     GeometryFrame gfIn = (GeometryFrame) inFrame ;
-    double[][] geom = MDSJ.classicalScaling(gfIn.geometry); // apply MDS
+    if (gfIn.getHeader() != hIn) {
+      init(gfIn.getHeader());  // the device set changed upstream, see DistanceMatrixModule
+    }
+    double[][] geom;
+    int skip = level;
+    if (skip > 0 && isClose(gfIn.geometry, lastDist, skip * SKIP_TOLERANCE)) {
+      geom = copy(lastGeom);
+      skipped++;
+    } else {
+      geom = classicalScaling(gfIn.geometry, 2); // apply MDS
+      lastDist = copy(gfIn.geometry);
+      lastGeom = copy(geom);  // adjustAxes works in place
+    }
     GeometryFrame gfOut = hOut.makeFrame(gfIn.seqNum, geom);
     gfOut.adjustAxes();
     return gfOut ;
   }
 
+  private static boolean isClose(double[][] dist, double[][] prev, double tolerance) {
+    if (prev == null || prev.length != dist.length) {
+      return false;
+    }
+    double max = 0, diff = 0;
+    for (int i = 0; i < dist.length; i++) {
+      for (int j = 0; j < dist.length; j++) {
+        max = Math.max(max, Math.abs(prev[i][j]));
+        diff = Math.max(diff, Math.abs(dist[i][j] - prev[i][j]));
+      }
+    }
+    return diff <= max * tolerance;  // false on NaN
+  }
+
+  private static double[][] copy(double[][] a) {
+    double[][] c = new double[a.length][];
+    for (int i = 0; i < a.length; i++) {
+      c[i] = a[i].clone();
+    }
+    return c;
+  }
+
+  public int getMaxLevel() {
+    return MAX_LEVEL;
+  }
+
+  public void setLevel(int level) {
+    this.level = Math.max(0, Math.min(level, MAX_LEVEL));
+  }
+
+  /*
+   * Classical MDS: the top eigenvectors of the double-centered squared distances, scaled by the roots of
+   * their eigenvalues, as MDSJ.classicalScaling computes it. MDSJ gets there by power iteration from a
+   * Math.random() start, so the same distances came out slightly different on every run; Jacobi
+   * rotations solve the (devices x devices) matrix exactly and repeatably, which offline replays need.
+   */
+  static double[][] classicalScaling(double[][] dist, int dims) {
+    int n = dist.length;
+    double[][] b = new double[n][n];
+    double[] rowMean = new double[n];
+    double mean = 0;
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        b[i][j] = dist[i][j] * dist[i][j];
+        rowMean[i] += b[i][j] / n;
+      }
+      mean += rowMean[i] / n;
+    }
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        b[i][j] = -0.5 * (b[i][j] - rowMean[i] - rowMean[j] + mean);
+      }
+    }
+
+    double[][] v = new double[n][n];
+    for (int i = 0; i < n; i++) {
+      v[i][i] = 1;
+    }
+    for (int sweep = 0; sweep < 100; sweep++) {
+      double off = 0, total = 0;
+      for (int i = 0; i < n; i++) {
+        for (int j = 0; j < n; j++) {
+          total += b[i][j] * b[i][j];
+          if (i != j) {
+            off += b[i][j] * b[i][j];
+          }
+        }
+      }
+      if (!(off > total * 1e-30)) {
+        break;  // also stops on NaN distances
+      }
+      for (int p = 0; p < n; p++) {
+        for (int q = p + 1; q < n; q++) {
+          if (b[p][q] != 0) {
+            rotate(b, v, p, q);
+          }
+        }
+      }
+    }
+
+    // eigenvalues are left on the diagonal; take the largest ones
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    final double[][] eig = b;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer x, Integer y) {
+        return Double.compare(eig[y][y], eig[x][x]);
+      }
+    });
+    double[][] coords = new double[dims][n];
+    for (int d = 0; d < dims && d < n; d++) {
+      int k = order[d];
+      double scale = Math.sqrt(b[k][k]);
+      for (int i = 0; i < n; i++) {
+        coords[d][i] = v[i][k] * scale;
+      }
+    }
+    return coords;
+  }
+
+  // one Jacobi rotation zeroing b[p][q], accumulated into the eigenvectors v
+  private static void rotate(double[][] b, double[][] v, int p, int q) {
+    int n = b.length;
+    double theta = (b[q][q] - b[p][p]) / (2 * b[p][q]);
+    double t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+    double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+    for (int k = 0; k < n; k++) {
+      double bkp = b[k][p], bkq = b[k][q];
+      b[k][p] = c * bkp - s * bkq;
+      b[k][q] = s * bkp + c * bkq;
+    }
+    for (int k = 0; k < n; k++) {
+      double bpk = b[p][k], bqk = b[q][k];
+      b[p][k] = c * bpk - s * bqk;
+      b[q][k] = s * bpk + c * bqk;
+    }
+    for (int k = 0; k < n; k++) {
+      double vkp = v[k][p], vkq = v[k][q];
+      v[k][p] = c * vkp - s * vkq;
+      v[k][q] = s * vkp + c * vkq;
+    }
+  }
+
+  // which way round the devices were, so a restart doesn't come up mirrored
+  public void saveState(DataOutput out) throws IOException {
+    Checkpointable.writeIds(out, hOut == null ? null : hOut.getIds());
+    Checkpointable.writeArray(out, hOut == null ? null : hOut.getOrientation());
+  }
+
+  public void restoreState(DataInput in) throws IOException {
+    String[] ids = Checkpointable.readIds(in);
+    double[] x = Checkpointable.readArray(in);
+    if (hOut != null && x != null && Arrays.equals(ids, hOut.getIds())) {
+      hOut.setOrientation(x);
+    }
+  }
+
   public void close() {
+    if (skipped > 0) {
+      System.out.println("Geometry reused the last MDS result for " + skipped + " frames");
+    }
   }
 
   public static void main(String[] args) throws Exception
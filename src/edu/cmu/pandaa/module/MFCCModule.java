@@ -9,7 +9,12 @@ import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
 import edu.cmu.pandaa.stream.MatrixFileStream;
 import edu.cmu.pandaa.stream.RawAudioFileStream;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 /**
  * Created by IntelliJ IDEA.
@@ -18,15 +23,23 @@ import java.util.LinkedList;
  * Time: 8:15 AM
  */
 
-public class MFCCModule implements StreamModule {
+public class MFCCModule implements StreamModule, Checkpointable, Degradable {
+  static final int MAX_LEVEL = 3;
   MatrixHeader header;
   private final int coeficients = 24;
   MFCC mfcc;
   LinkedList<ShortArray> prevFrames = new LinkedList<ShortArray>();
+  private int prevLen = 0; // total samples in prevFrames
+  // MFCC input buffers by length; shortLen only takes a few values (multiples of windowSize/2)
+  private final Map<Integer, double[]> buffers = new HashMap<Integer, double[]>();
   private int windowTime = 1000; // target window size, in ms.
   private int windowSize; // size in samples, must be 2^n
   double[] vectorMeans, vectorSqr;
   final double meanWeight = 20.0;
+  // at level n only every (n+1)th frame gets new coefficients, the ones between repeat the last; by
+  // sequence number, so the two devices of a pair refresh on the same frames
+  private volatile int level = 0;
+  private double[][] lastOut;
 
   public StreamHeader init(StreamHeader inHeader) throws Exception {
     RawAudioHeader rah = (RawAudioHeader) inHeader;
@@ -49,24 +62,27 @@ public class MFCCModule implements StreamModule {
     if (inFrame == null) {
       return null;
     }
-    RawAudioFrame audioFrame = (RawAudioFrame) inFrame;
-    short[] audioShort = audioFrame.getAudioData();
+    return processAudio(((RawAudioFrame) inFrame).getAudioData(), inFrame.seqNum);
+  }
 
+  private StreamFrame processAudio(short[] audioShort, int seq) throws Exception {
     int newDataLen = audioShort.length;
-    int prevLen = 0;
-    for (int p = 0;p < prevFrames.size();p++) {
-      prevLen += prevFrames.get(p).data.length;
-    }
+    ShortArray spare = null;
     if (prevLen + newDataLen > (windowSize * 3/2)) {
-      prevLen -= prevFrames.removeFirst().data.length;
+      spare = prevFrames.removeFirst();
+      prevLen -= spare.data.length;
     }
     int dataLen = newDataLen + prevLen;
     int truncLen = (dataLen % (windowSize / 2));
     int shortLen = dataLen - truncLen;
-    double[] audioData = new double[shortLen];
+    double[] audioData = buffers.get(shortLen);
+    if (audioData == null) {
+      audioData = new double[shortLen];
+      buffers.put(shortLen, audioData);
+    }
     int c = 0;
-    for (int p = 0; p < prevFrames.size();p++) {
-      short[] prevData = prevFrames.get(p).data;
+    for (ShortArray prev : prevFrames) {
+      short[] prevData = prev.data;
       int i = truncLen;
       truncLen -= Math.min(prevData.length, truncLen);
       for (; i < prevData.length; i++) {
@@ -81,11 +97,21 @@ public class MFCCModule implements StreamModule {
     if (c != audioData.length) {
       throw new RuntimeException("Array length does not add up");
     }
-    prevFrames.addLast(new ShortArray(audioShort));
+    // keep a copy, the frame's buffer goes back to its header's pool once the pipe is done with it
+    if (spare == null || spare.data.length != newDataLen) {
+      spare = new ShortArray(new short[newDataLen]);
+    }
+    System.arraycopy(audioShort, 0, spare.data, 0, newDataLen);
+    prevFrames.addLast(spare);
+    prevLen += newDataLen;
 
     if (shortLen == 0) {
       return header.makeFrame();
     }
+    int skip = level;
+    if (skip > 0 && lastOut != null && seq % (skip + 1) != 0) {
+      return header.makeCopiedFrame(lastOut);
+    }
     // Input requirements for MFCC are that the data is a multiple of windowSize/2
     double[][] mfccOut = mfcc.process(audioData);
     if (mfccOut.length == 0) {
@@ -94,7 +120,17 @@ public class MFCCModule implements StreamModule {
     for (int i = 0;i < mfccOut.length;i++) {
       applyAveraging(mfccOut[i]);
     }
-    return header.makeTransposedFrame(mfccOut);
+    MatrixHeader.MatrixFrame out = header.makeTransposedFrame(mfccOut);
+    lastOut = out.data;
+    return out;
+  }
+
+  public int getMaxLevel() {
+    return MAX_LEVEL;
+  }
+
+  public void setLevel(int level) {
+    this.level = Math.max(0, Math.min(level, MAX_LEVEL));
   }
 
   private void applyAveraging(double[] vector) {
@@ -114,6 +150,21 @@ public class MFCCModule implements StreamModule {
     }
   }
 
+  // the running coefficient means; the audio overlap is not worth keeping
+  public void saveState(DataOutput out) throws IOException {
+    Checkpointable.writeArray(out, vectorMeans);
+    Checkpointable.writeArray(out, vectorSqr);
+  }
+
+  public void restoreState(DataInput in) throws IOException {
+    double[] means = Checkpointable.readArray(in);
+    double[] sqr = Checkpointable.readArray(in);
+    if (means != null && sqr != null && means.length == coeficients && sqr.length == coeficients) {
+      vectorMeans = means;
+      vectorSqr = sqr;
+    }
+  }
+
   public void close() {
     header = null;
   }
@@ -14,6 +14,7 @@ public class RMSModule implements StreamModule{
   DistanceHeader dOut;
   GeometryFrame actual;
   int flipped = 0;
+  double lastRms = Double.NaN;  // of the latest estimate, what test_set.sh reports
 
   public void extractActual(FrameStream inStream, FrameStream outGS) throws Exception
   {
@@ -81,12 +82,17 @@ public class RMSModule implements StreamModule{
     flipped += rmsA < rmsB ? 1 : (rmsB < rmsA ? -1 : 0);
 
     double[] rms = {  Math.sqrt((flipped > 0 ? rmsA : rmsB) )/ numDevices };
+    lastRms = rms[0];
     double[] magnitudes = { 0.0 };
     DistanceFrame dfOut = dOut.makeFrame(rms,magnitudes);
 
     return dfOut ;
   }
 
+  public double getLastRms() {
+    return lastRms;
+  }
+
   public static void main(String[] args) throws Exception
   {
     int arg = 0;
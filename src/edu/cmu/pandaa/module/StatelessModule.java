@@ -0,0 +1,5 @@
+package edu.cmu.pandaa.module;
+
+// marker: process() only looks at the frame passed in, so a pipeline graph may fuse it with its neighbours
+public interface StatelessModule extends StreamModule {
+}
@@ -6,5 +6,15 @@ import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
 public interface StreamModule {
   StreamHeader init(StreamHeader inHeader) throws Exception;
   StreamFrame process(StreamFrame inFrame) throws Exception;
+
+  // process consecutive frames in one call, result[i] is the output for inFrames[i] (may be null)
+  default StreamFrame[] processBatch(StreamFrame[] inFrames) throws Exception {
+    StreamFrame[] outFrames = new StreamFrame[inFrames.length];
+    for (int i = 0; i < inFrames.length; i++) {
+      outFrames[i] = process(inFrames[i]);
+    }
+    return outFrames;
+  }
+
   void close();
-}
\ No newline at end of file
+}
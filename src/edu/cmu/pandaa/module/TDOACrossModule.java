@@ -9,10 +9,13 @@ import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
 import edu.cmu.pandaa.stream.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.channels.IllegalBlockingModeException;
 import java.util.*;
 
-public class TDOACrossModule implements StreamModule {
+public class TDOACrossModule implements StreamModule, Checkpointable {
   DistanceHeader header;
   final double speedOfSoundMpS = 340.3;   // m/s at sea level
 
@@ -170,9 +173,45 @@ public class TDOACrossModule implements StreamModule {
     return header.makeFrame(peakDeltas, peakMagnitudes, peakRaw);
   }
 
+  // the narrowed search window and the pair's clock offset; sequence numbers start over after a restart
+  public void saveState(DataOutput out) throws IOException {
+    out.writeDouble(weightWindowUs);
+    out.writeBoolean(cf != null);
+    if (cf != null) {
+      cf.saveState(out);
+    }
+  }
+
+  public void restoreState(DataInput in) throws IOException {
+    weightWindowUs = in.readDouble();
+    if (in.readBoolean() && cf != null) {
+      cf.restoreState(in);
+    }
+  }
+
   public void close() {
   }
 
+  // both impulse streams, a frame of each at a time through mfs (which has their headers), to out
+  public void runModule(MultiFrameStream mfs, FrameStream in1, FrameStream in2, FrameStream out) throws Exception {
+    out.setHeader(init(mfs.getHeader()));
+
+    try {
+      mfs.noblock = true;
+      while (true) {
+        mfs.sendFrame(in1.recvFrame());
+        mfs.sendFrame(in2.recvFrame());
+        out.sendFrame(process(mfs.recvFrame()));
+      }
+    } catch (IllegalBlockingModeException e) {
+      // normal termination due to no more data
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    close();
+    out.close();
+  }
+
   public static void main(String[] args) throws Exception {
     int arg = 0;
     boolean calibrated = false;
@@ -207,23 +246,6 @@ public class TDOACrossModule implements StreamModule {
 
     TDOACrossModule tdoa = new TDOACrossModule();
     tdoa.setCalibrationManager(cf);
-
-    FileStream ofs = new DistanceFileStream(outf, true);
-    ofs.setHeader(tdoa.init(mfs.getHeader()));
-
-    try {
-      mfs.noblock = true;
-      while (true) {
-        mfs.sendFrame(ifs1.recvFrame());
-        mfs.sendFrame(ifs2.recvFrame());
-        ofs.sendFrame(tdoa.process(mfs.recvFrame()));
-      }
-    } catch (IllegalBlockingModeException e) {
-      // normal termination due to no more data
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-    tdoa.close();
-    ofs.close();
+    tdoa.runModule(mfs, ifs1, ifs2, new DistanceFileStream(outf, true));
   }
 }
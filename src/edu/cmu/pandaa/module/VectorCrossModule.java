@@ -9,6 +9,8 @@ import edu.cmu.pandaa.header.MultiHeader.MultiFrame;
 import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
 
+import java.util.Arrays;
+
 /**
  * Created by IntelliJ IDEA.
  * User: peringknife
@@ -16,7 +18,7 @@ import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
  * Time: 5:29 PM
  */
 
-public class VectorCrossModule implements StreamModule {
+public class VectorCrossModule implements StatelessModule {
   DistanceHeader header;
 
   @Override
@@ -34,13 +36,17 @@ public class VectorCrossModule implements StreamModule {
       throw new RuntimeException("Should be two frames");
     }
     double[] offsets = getCorrelations((MatrixFrame) frames[0], (MatrixFrame) frames[1]);
-    double[] magnitudes = offsets == null ? null : new double[offsets.length];
-    if (magnitudes != null) {
-      for (int i = 0;i < magnitudes.length;i++) {
-        magnitudes[i] = 1.0;
-      }
+    return header.makeFrame(offsets, getMagnitudes(offsets));
+  }
+
+  // a frame's own, frames go on to traces, shards and the combiner after we're done with them
+  private double[] getMagnitudes(double[] offsets) {
+    if (offsets == null) {
+      return null;
     }
-    return header.makeFrame(offsets, magnitudes);
+    double[] magnitudes = new double[offsets.length];
+    Arrays.fill(magnitudes, 1.0);
+    return magnitudes;
   }
 
   @Override
@@ -56,12 +62,12 @@ public class VectorCrossModule implements StreamModule {
     }
     int len = a.data[0].length;
     double[] result = new double[len];
-    for (int j = 0; j < len; j++) {
-      double cross = 0;
-      for (int i = 0; i < a.data.length; i++) {
-        cross += a.data[i][j] * b.data[i][j];
+    // walk the rows in order so each row is read sequentially; sums still accumulate in row order
+    for (int i = 0; i < a.data.length; i++) {
+      double[] arow = a.data[i], brow = b.data[i];
+      for (int j = 0; j < len; j++) {
+        result[j] += arow[j] * brow[j];
       }
-      result[j] = cross;
     }
     return result;
   }
@@ -0,0 +1,10 @@
+package edu.cmu.pandaa.stream;
+
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+
+// a FrameStream whose sendFrame can wait for room, so a sender that must not wait can hold back instead
+public interface BoundedStream extends FrameStream {
+  // true if sendFrame(f) would wait for room now; onSpace then runs once, on the consumer's thread, when
+  // there may be room (or the stream ended). Keep it cheap
+  public boolean isFull(StreamFrame f, Runnable onSpace);
+}
@@ -4,6 +4,9 @@ import edu.cmu.pandaa.header.DistanceHeader;
 import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 
 /**
@@ -59,6 +62,21 @@ public class CalibrationManager {
     return calibration;
   }
 
+  // for TDOACrossModule's checkpoints
+  public void saveState(DataOutput out) throws IOException {
+    out.writeDouble(calibration);
+    out.writeDouble(sumWeight);
+    out.writeDouble(sumDiff);
+    out.writeInt(sumCount);
+  }
+
+  public void restoreState(DataInput in) throws IOException {
+    calibration = in.readDouble();
+    sumWeight = in.readDouble();
+    sumDiff = in.readDouble();
+    sumCount = in.readInt();
+  }
+
   public void writeCalibration(String fname, StreamHeader prototype) throws Exception {
     String[] ids = { id1, id2 };
     cHead = new DistanceHeader("calibration", prototype.startTime, prototype.frameTime, ids);
@@ -0,0 +1,135 @@
+package edu.cmu.pandaa.stream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.cmu.pandaa.header.RawAudioHeader;
+import edu.cmu.pandaa.header.RawAudioHeader.RawAudioFrame;
+import edu.cmu.pandaa.header.StreamHeader;
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+
+/*
+ * A device per channel of a multichannel recording, e.g. a mic array recorded into one file, instead of
+ * RawAudioFileStream's mixdown, which loses the timing between the mics. Channel c of device id reads as
+ * device id-c (from 1), a mono stream with its own header, so the channels pair up like separate devices.
+ *
+ * The file is read once for all of them: whichever channel runs out of frames first reads the next frame
+ * of the file and queues the other channels' share. The queues aren't bounded, the channels are expected
+ * to be read about in step, as the pair joins do anyway; a channel that's closed stops getting frames, and
+ * the file closes with the last channel.
+ */
+public class ChannelSplitter {
+  private final RawAudioFileStream in;
+  private final Channel[] channels;
+  private final short[][] channelData;
+  private final ReentrantLock readLock = new ReentrantLock();  // channels may be read on virtual threads
+  private boolean done = false;
+  private int open;
+
+  public ChannelSplitter(RawAudioFileStream in) throws Exception {
+    this.in = in;
+    RawAudioHeader source = (RawAudioHeader) in.getHeader();
+    int count = (int) source.getNumChannels();
+    channels = new Channel[count];
+    channelData = new short[count][];
+    for (int c = 0; c < count; c++) {
+      RawAudioHeader h = new RawAudioHeader(source.id + "-" + (c + 1), source.startTime, source.frameTime,
+              source.getAudioFormat(), 1, (int) source.getSamplingRate(), source.getBitsPerSample(), source.comment);
+      h.nextSeq = source.nextSeq;
+      channels[c] = new Channel(h);
+    }
+    open = count;
+  }
+
+  public List<FrameStream> getStreams() {
+    List<FrameStream> streams = new ArrayList<FrameStream>();
+    for (Channel channel : channels) {
+      streams.add(channel);
+    }
+    return streams;
+  }
+
+  // with readLock held: a frame of the file, queued to every open channel
+  private void readFrame() throws Exception {
+    RawAudioFrame[] frames = new RawAudioFrame[channels.length];
+    for (int c = 0; c < channels.length; c++) {
+      if (!channels[c].closed) {
+        frames[c] = channels[c].header.makeFrame(in.frameLength);
+        channelData[c] = frames[c].audioData;
+      } else {
+        channelData[c] = null;
+      }
+    }
+    boolean full = in.readChannels(channelData);
+    for (int c = 0; c < channels.length; c++) {
+      if (frames[c] == null) {
+        continue;
+      }
+      if (full) {
+        channels[c].pending.add(frames[c]);
+      } else {
+        frames[c].release();
+      }
+    }
+    done = !full;
+  }
+
+  class Channel implements FrameStream {
+    final RawAudioHeader header;
+    final ArrayDeque<RawAudioFrame> pending = new ArrayDeque<RawAudioFrame>();
+    boolean closed = false;
+
+    Channel(RawAudioHeader header) {
+      this.header = header;
+    }
+
+    @Override
+    public void setHeader(StreamHeader h) throws Exception {
+      throw new RuntimeException("setHeader: Writing to a recording's channel is not supported");
+    }
+
+    @Override
+    public void sendFrame(StreamFrame m) throws Exception {
+      throw new RuntimeException("sendFrame: Writing to a recording's channel is not supported");
+    }
+
+    @Override
+    public StreamHeader getHeader() {
+      return header;
+    }
+
+    @Override
+    public StreamFrame recvFrame() throws Exception {
+      readLock.lock();
+      try {
+        while (pending.isEmpty() && !done && !closed) {
+          readFrame();
+        }
+        return pending.poll();
+      } finally {
+        readLock.unlock();
+      }
+    }
+
+    @Override
+    public void close() {
+      readLock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        while (!pending.isEmpty()) {
+          pending.poll().release();
+        }
+        if (--open == 0) {
+          in.close();
+        }
+      } finally {
+        readLock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package edu.cmu.pandaa.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cmu.pandaa.header.StreamHeader;
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+
+// keeps everything sent to it in memory, in place of the text file between two stages that run one
+// after the other; reader() reads it back from the start, as often as needed and from any thread once
+// the writer is done. Optionally also writes it all to a trace stream, e.g. the file it stands in for.
+// Never blocks: recvFrame returns null at the end of what's been sent so far.
+public class FrameListStream implements FrameStream {
+  private final List<StreamFrame> frames;
+  private final FrameStream trace;
+  private StreamHeader header;
+  private int next = 0;
+
+  public FrameListStream() {
+    this((FrameStream) null);
+  }
+
+  public FrameListStream(FrameStream trace) {
+    this.trace = trace;
+    frames = new ArrayList<StreamFrame>();
+  }
+
+  private FrameListStream(FrameListStream source) {
+    trace = null;
+    frames = source.frames;
+    header = source.header;
+  }
+
+  // a stream over the same header and frames, positioned at the first frame
+  public FrameListStream reader() {
+    return new FrameListStream(this);
+  }
+
+  @Override
+  public void setHeader(StreamHeader h) throws Exception {
+    header = h;
+    if (trace != null) {
+      trace.setHeader(h);
+    }
+  }
+
+  @Override
+  public void sendFrame(StreamFrame m) throws Exception {
+    if (m == null) {
+      return;
+    }
+    frames.add(m);
+    if (trace != null) {
+      trace.sendFrame(m);
+    }
+  }
+
+  @Override
+  public StreamHeader getHeader() {
+    return header;
+  }
+
+  @Override
+  public StreamFrame recvFrame() {
+    return next < frames.size() ? frames.get(next++) : null;
+  }
+
+  public int size() {
+    return frames.size();
+  }
+
+  @Override
+  public void close() {
+    if (trace != null) {
+      trace.close();
+    }
+  }
+}
@@ -1,61 +1,92 @@
 package edu.cmu.pandaa.stream;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
 
-// a memory buffer
+// a single-slot memory buffer; use RingBufferStream between stages that run at different rates
+// (uses a j.u.c lock rather than the object monitor so a waiting virtual thread doesn't pin its carrier)
 public class MemoryStream implements FrameStream {
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
   private boolean isActive = true;
   private StreamHeader headerBuffer;
   private StreamFrame frameBuffer;
 
   @Override
-public synchronized void setHeader(StreamHeader h) {
-    headerBuffer = h;
-    notify();     // if receiver is waiting for header, wake up
+public void setHeader(StreamHeader h) {
+    lock.lock();
+    try {
+      headerBuffer = h;
+      changed.signal();     // if receiver is waiting for header, wake up
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
-public synchronized StreamHeader getHeader() {
-    while (headerBuffer == null && isActive) {
-      try {
-        wait();   // sleep until there's a header
-      }
-      catch (InterruptedException e) {
-        return null;
+public StreamHeader getHeader() {
+    lock.lock();
+    try {
+      while (headerBuffer == null && isActive) {
+        try {
+          changed.await();   // sleep until there's a header
+        }
+        catch (InterruptedException e) {
+          return null;
+        }
       }
+      return isActive ? headerBuffer : null;
+    } finally {
+      lock.unlock();
     }
-    return isActive ? headerBuffer : null;
   }
 
   @Override
-public synchronized void sendFrame(StreamFrame f) {
-    if (frameBuffer == null) {
-      if (f == null) {
-        throw new NullPointerException();
+public void sendFrame(StreamFrame f) {
+    lock.lock();
+    try {
+      if (frameBuffer == null) {
+        if (f == null) {
+          throw new NullPointerException();
+        }
+        frameBuffer = f;
+        changed.signal();   // if receiver is sleeping, wake up
       }
-      frameBuffer = f;
-      notify();   // if receiver is sleeping, wake up 
-    }
-    else {
-      throw new RuntimeException("Frame Buffer full");
+      else {
+        throw new RuntimeException("Frame Buffer full");
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
-public synchronized StreamFrame recvFrame() throws Exception {
-    while (frameBuffer == null && isActive) {
-      wait();
-    }
+public StreamFrame recvFrame() throws Exception {
+    lock.lock();
+    try {
+      while (frameBuffer == null && isActive) {
+        changed.await();
+      }
 
-    StreamFrame f = frameBuffer;
-    frameBuffer = null;
-    return f;
+      StreamFrame f = frameBuffer;
+      frameBuffer = null;
+      return f;
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
-public synchronized void close() {
-    isActive = false;
-    notify();
+public void close() {
+    lock.lock();
+    try {
+      isActive = false;
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
   }
-}
\ No newline at end of file
+}
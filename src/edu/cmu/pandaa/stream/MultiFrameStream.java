@@ -1,9 +1,12 @@
 package edu.cmu.pandaa.stream;
 
 import java.nio.channels.IllegalBlockingModeException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.cmu.pandaa.header.MultiHeader;
 import edu.cmu.pandaa.header.MultiHeader.MultiFrame;
@@ -17,116 +20,679 @@ import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
  * Time: 9:33 PM
  */
 
-public class MultiFrameStream implements FrameStream {
+/*
+ * Joins frames from several input streams into MultiFrames, one per time slice.
+ *
+ * Every input gets a dense slot (the same position it has in the MultiHeader) with its own
+ * queue, found through the input's DeviceRegistry stream index. Producers only touch their own
+ * slot plus a shared count of empty slots, and the consumer is signalled when that count drops
+ * to zero, i.e. when a complete time slice exists. An input only takes part in the join once it
+ * has sent its first frame. setMinInputs holds the first slice back until the inputs known up
+ * front have all started, so none of them misses the beginning; one of them closing before it
+ * started ends the join instead, as nothing would complete that first slice.
+ *
+ * By default recvFrame waits until every input has a frame. In watermark mode (setWatermark) it
+ * waits at most latenessMs of wall-clock time for a slice to fill up and then emits it with the
+ * missing entries left null; closed inputs count as missing instead of ending the join, and
+ * registered inputs that haven't sent anything yet also hold a slice back until then. Frames
+ * that arrive for a slice that was already emitted are dropped: they belong to that slice's time, so
+ * they can't fill a later one, and the slice has gone downstream.
+ *
+ * With setOverflow each input queue is bounded. BLOCK holds the producer until the consumer has
+ * taken a frame (or is gone); the other policies drop frames and count them. Producers take the
+ * lock only once their queue is full, the normal path stays lock-free. A producer that must not wait
+ * asks isFull first and is called back once its queue has room.
+ *
+ * removeInput drops an input that has ended, e.g. a device that left, so the join stops waiting for
+ * it and the MultiHeader shrinks. The consumer applies this itself once the input's queued frames have
+ * all gone out, so the header only changes between MultiFrames.
+ */
+public class MultiFrameStream implements ReadyStream, BoundedStream {
   public  final String id;
-  private MultiHeader outHeader;
-  private Map<StreamHeader, LinkedList<StreamFrame>> frames = new HashMap<StreamHeader, LinkedList<StreamFrame>>();
-  private boolean isOpen = true;
+  private volatile MultiHeader outHeader;
+  private volatile Slot[] byStream = new Slot[0];  // by input stream index, replaced under the lock
+  private volatile Slot[] slots = new Slot[0];
+  private final AtomicInteger activeSlots = new AtomicInteger();
+  private final AtomicInteger emptySlots = new AtomicInteger();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition ready = lock.newCondition();
+  private final Condition space = lock.newCondition();  // BLOCK overflow: a full queue was drained
+  private volatile boolean isOpen = true;
   public boolean noblock = false;
   private int lastSeq;
+  private long[] heads = new long[0]; // consumer-side cache of each slot's head start time, -1 if unknown
+
+  private volatile boolean watermark = false;
+  private long latenessMs;
+  private long lastEmittedTime = -1;
+  private long pendingTime = -1, pendingSince;
+  private volatile long partialFrames, missingEntries, lateDropped;
+  private int capacity = 0;  // per input, 0 for unbounded
+  private OverflowPolicy overflow = OverflowPolicy.BLOCK;
+  private volatile boolean trimming = false;  // DROP_OLDEST/COALESCE: producers may take queue heads
+  private volatile boolean consumerDone = false;
+  private volatile long overflowDropped, overflowBlocked;
+  private volatile boolean pendingRemoval = false;
+  private volatile long removedInputs;
+  private volatile Runnable readyListener;
+  private int minInputs = 0;
+  private volatile boolean gathered = false;  // minInputs inputs have sent a frame
+
+  static final class Slot {
+    final StreamHeader header;
+    int index;  // position in the MultiHeader, changes when an earlier input is removed
+    final ConcurrentLinkedQueue<StreamFrame> queue = new ConcurrentLinkedQueue<StreamFrame>();
+    final AtomicInteger size = new AtomicInteger();
+    volatile boolean active;
+    volatile boolean waiting;    // producer parked on a full queue
+    final AtomicReference<Runnable> spaceListener = new AtomicReference<Runnable>();  // see isFull
+    volatile boolean headStale;  // producer dropped queued frames, the consumer's cached head is gone
+    volatile boolean removed;    // removeInput was called, applied by the consumer once drained
+
+    Slot(StreamHeader header, int index) {
+      this.header = header;
+      this.index = index;
+    }
+  }
 
   public MultiFrameStream(String id) throws Exception {
     this.id = id;
   }
 
+  // emit partial slices once a slice has waited latenessMs for its missing inputs
+  public void setWatermark(long latenessMs) {
+    if (latenessMs < 0) {
+      throw new IllegalArgumentException("latenessMs must be >= 0");
+    }
+    this.latenessMs = latenessMs;
+    watermark = true;
+  }
+
+  // don't emit anything until num inputs have sent their first frame; later inputs join as usual
+  public void setMinInputs(int num) {
+    minInputs = num;
+  }
+
+  // bound every input queue to capacity frames, handling overflow according to policy
+  public void setOverflow(int capacity, OverflowPolicy policy) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be > 0");
+    }
+    lock.lock();
+    try {
+      this.capacity = capacity;
+      this.overflow = policy;
+      trimming = policy == OverflowPolicy.DROP_OLDEST || policy == OverflowPolicy.COALESCE;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getOverflowDropped() {
+    return overflowDropped;
+  }
+
+  public long getOverflowBlocked() {
+    return overflowBlocked;
+  }
+
+  // stop joining h's frames; call once its producer has stopped sending
+  public void removeInput(StreamHeader h) {
+    Slot slot = slotOf(h);
+    if (slot == null) {
+      return;
+    }
+    lock.lock();
+    try {
+      slot.removed = true;
+      pendingRemoval = true;
+      ready.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    notifyListener();
+  }
+
+  public long getRemovedInputs() {
+    return removedInputs;
+  }
+
+  // consumer side, with the lock held: take out removed inputs that have nothing queued any more
+  private void applyRemovals() {
+    if (!pendingRemoval) {
+      return;
+    }
+    Slot[] current = slots;
+    int keep = 0;
+    boolean pending = false;
+    for (Slot slot : current) {
+      if (!isDrained(slot)) {
+        keep++;
+        pending |= slot.removed;
+      }
+    }
+    pendingRemoval = pending;
+    if (keep == current.length) {
+      return;
+    }
+    Slot[] nslots = new Slot[keep];
+    long[] nheads = new long[keep];
+    int n = 0;
+    for (int i = 0; i < current.length; i++) {
+      Slot slot = current[i];
+      if (!isDrained(slot)) {
+        nheads[n] = i < heads.length ? heads[i] : -1;
+        nslots[n++] = slot;
+        continue;
+      }
+      int k = slot.header.getStreamIndex();
+      if (byStream[k] == slot) {
+        Slot[] table = byStream.clone();
+        table[k] = null;
+        byStream = table;
+      }
+      outHeader.removeHeader(slot.header);
+      if (slot.active) {
+        activeSlots.decrementAndGet();
+        emptySlots.decrementAndGet();
+      }
+      removedInputs++;
+      System.out.println("Removed input " + slot.header.id + " from " + id);
+    }
+    for (Slot slot : nslots) {
+      slot.index = outHeader.indexOf(slot.header);
+    }
+    heads = nheads;
+    slots = nslots;
+  }
+
+  private boolean isDrained(Slot slot) {
+    return slot.removed && slot.size.get() == 0;
+  }
+
+  // every input was removed: the join ends, as it would once they all closed
+  private boolean allRemoved(Slot[] current) {
+    return current.length == 0 && removedInputs > 0;
+  }
+
+  public long getPartialFrames() {
+    return partialFrames;
+  }
+
+  public long getMissingEntries() {
+    return missingEntries;
+  }
+
+  public long getLateDropped() {
+    return lateDropped;
+  }
+
+  public String getStats() {
+    return id + " partial=" + partialFrames + " missing=" + missingEntries + " late_dropped=" + lateDropped +
+            (capacity > 0 ? " overflow_dropped=" + overflowDropped + " blocked=" + overflowBlocked : "");
+  }
+
+  // h's slot, null if h isn't an input
+  private Slot slotOf(StreamHeader h) {
+    Slot[] table = byStream;
+    int k = h.getStreamIndex();
+    Slot slot = k < table.length ? table[k] : null;
+    if (slot != null && slot.header == h) {
+      return slot;
+    }
+    for (Slot s : slots) {  // the same devices under an older header, still draining
+      if (s.header == h) {
+        return s;
+      }
+    }
+    return null;
+  }
+
   // set/write the header
   @Override
-  public synchronized void setHeader(StreamHeader h) throws Exception {
-    if (outHeader == null) {
-      if (isOpen) {
+  public void setHeader(StreamHeader h) throws Exception {
+    lock.lock();
+    try {
+      if (slotOf(h) != null) {
+        return;
+      }
+      if (outHeader == null) {
+        if (!isOpen) {
+          return;
+        }
         outHeader = new MultiHeader(id, h);
-        notifyAll();
+        ready.signalAll();
+      } else {
+        outHeader.addHeader(h);
       }
-    } else {
-      outHeader.addHeader(h);
+      Slot slot = new Slot(h, outHeader.indexOf(h));
+      Slot[] nslots = new Slot[slots.length + 1];
+      System.arraycopy(slots, 0, nslots, 0, slots.length);
+      nslots[slots.length] = slot;
+      slots = nslots;
+      int k = h.getStreamIndex();
+      Slot[] table = Arrays.copyOf(byStream, Math.max(byStream.length, k + 1));
+      table[k] = slot;  // a rejoining stream takes over from its removed predecessor, see slotOf
+      byStream = table;
+    } finally {
+      lock.unlock();
     }
   }
 
   // send a frame of data
   @Override
-  public synchronized void sendFrame(StreamFrame m) throws Exception {
+  public void sendFrame(StreamFrame m) throws Exception {
     if (m == null)
       return;
-    StreamHeader h = m.getHeader();
-    if (!frames.containsKey(h)) {
-      frames.put(h, new LinkedList<StreamFrame>());
+    Slot slot = slotOf(m.getHeader());
+    if (slot == null) {
+      throw new IllegalArgumentException("Frame from unregistered stream " + m.getHeader().id + " in " + id);
+    }
+    m.retain();  // until the MultiFrame it ends up in is released
+    if (capacity > 0 && slot.size.get() >= capacity) {
+      offerFull(slot, m);
+      return;
+    }
+    enqueue(slot, m);
+  }
+
+  private void enqueue(Slot slot, StreamFrame m) {
+    slot.queue.offer(m);
+    if (slot.size.getAndIncrement() == 0) {
+      if (!slot.active) {
+        slot.active = true;
+        activeSlots.incrementAndGet();
+      } else if (emptySlots.decrementAndGet() != 0 && !watermark) {
+        return;
+      }
+      signalReady();
     }
-    frames.get(h).addLast(m);
-    notifyAll();
   }
 
+  // the input's queue is at capacity: wait, drop or make room
+  private void offerFull(Slot slot, StreamFrame m) throws InterruptedException {
+    lock.lock();
+    try {
+      switch (overflow) {
+        case BLOCK:
+          overflowBlocked++;
+          slot.waiting = true;
+          while (slot.size.get() >= capacity && isOpen && !consumerDone) {
+            space.await();
+          }
+          slot.waiting = false;
+          if (!isOpen || consumerDone) {
+            m.release();  // nobody left to read it
+            return;
+          }
+          break;
+        case DROP_NEWEST:
+          overflowDropped++;
+          m.release();
+          return;
+        default:
+          // DROP_OLDEST keeps capacity-1 queued frames, COALESCE none; the consumer also takes the
+          // lock in these modes, so it never sees a head we are about to drop
+          int keep = overflow == OverflowPolicy.DROP_OLDEST ? capacity - 1 : 0;
+          while (slot.size.get() > keep) {
+            StreamFrame f = pollSlot(slot);
+            if (f == null) {
+              break;
+            }
+            f.release();
+            overflowDropped++;
+          }
+          slot.headStale = true;
+          break;
+      }
+      enqueue(slot, m);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // BLOCK overflow: true if f's queue is full, onSpace then runs once the consumer has taken a frame
   @Override
-  public synchronized MultiHeader getHeader() throws Exception {
-    while (outHeader == null && isOpen) {
-      wait();
+  public boolean isFull(StreamFrame f, Runnable onSpace) {
+    Slot slot = slotOf(f.getHeader());
+    if (slot == null || capacity <= 0 || overflow != OverflowPolicy.BLOCK || slot.size.get() < capacity) {
+      return false;
+    }
+    slot.spaceListener.set(onSpace);
+    if (slot.size.get() < capacity || !isOpen || consumerDone) {
+      if (slot.spaceListener.compareAndSet(onSpace, null)) {
+        return false;
+      }
+      // else the consumer made room since and has taken the listener, which calls back
+    }
+    return true;
+  }
+
+  private void runSpaceListener(Slot slot) {
+    Runnable listener = slot.spaceListener.getAndSet(null);
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  private void signalSpace() {
+    lock.lock();
+    try {
+      space.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void signalReady() {
+    lock.lock();
+    try {
+      ready.signal();
+    } finally {
+      lock.unlock();
+    }
+    notifyListener();
+  }
+
+  private void notifyListener() {
+    Runnable listener = readyListener;
+    if (listener != null) {
+      listener.run();
     }
-    return outHeader;
   }
 
   @Override
-  public synchronized MultiFrame recvFrame() throws Exception {
-    long minTime;
-    boolean incomplete;
-    boolean closed;
-
-    do {
-      incomplete = (frames.size() == 0);
-      closed = false;
-      minTime = -1;
-      for (StreamHeader in : frames.keySet()) {
-        StreamFrame f = frames.get(in).peekFirst();
-        if (f == null) {
-          incomplete = true;
-          if (in.closed) {
-            closed = true;
+  public void setReadyListener(Runnable listener) {
+    readyListener = listener;
+  }
+
+  @Override
+  public void setNoBlock(boolean noblock) {
+    this.noblock = noblock;
+  }
+
+  @Override
+  public boolean isReady() {
+    if (!watermark) {
+      if (pendingRemoval) {
+        // a removal can complete the slice or leave it still waiting, only recvFrame's view counts
+        lock.lock();
+        try {
+          applyRemovals();
+        } finally {
+          lock.unlock();
+        }
+      }
+      return isComplete() || hasClosedInput(slots);
+    }
+    lock.lock();
+    try {
+      applyRemovals();
+      Slot[] current = slots;
+      return watermarkDelay(current, refreshHeads(current)) <= 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public MultiHeader getHeader() throws Exception {
+    lock.lock();
+    try {
+      while (outHeader == null && isOpen) {
+        ready.await();
+      }
+      return outHeader;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean isComplete() {
+    if (!gathered) {
+      if (activeSlots.get() < minInputs) {
+        return false;
+      }
+      gathered = true;  // inputs leaving later don't hold up the rest
+    }
+    return activeSlots.get() > 0 && emptySlots.get() == 0;
+  }
+
+  // true if some participating input has no data left and never will; removed inputs don't end the join.
+  // Before the gather (setMinInputs) any registered input counts, a closed one would hold it up forever
+  private boolean hasClosedInput(Slot[] current) {
+    if (allRemoved(current)) {
+      return true;
+    }
+    for (Slot slot : current) {
+      if ((slot.active || !gathered) && slot.size.get() == 0 && slot.header.closed && !slot.removed) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public MultiFrame recvFrame() throws Exception {
+    if (watermark) {
+      return recvWatermarkFrame();
+    }
+
+    if (!isComplete() || trimming || pendingRemoval) {
+      lock.lock();
+      try {
+        applyRemovals();
+        while (!isComplete()) {
+          if (hasClosedInput(slots)) {
+            setConsumerDone();
+            return null;
           }
-        } else {
-          long time = f.getStartTime();
-          if ((minTime < 0)||(time < minTime)) {
-            minTime = time;
-          } else if ((time - minTime) % in.frameTime != 0) {
-            throw new RuntimeException("Timebases are not aligned");
+          if (noblock) {
+            throw new IllegalBlockingModeException();
           }
+          ready.await();
+          applyRemovals();
         }
+        if (trimming || pendingRemoval) {
+          Slot[] current = slots;
+          return emitFrame(current, refreshHeads(current));
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    Slot[] current = slots;
+    return emitFrame(current, refreshHeads(current));
+  }
+
+  // the join has ended: release producers waiting for room, later frames are discarded
+  private void setConsumerDone() {
+    consumerDone = true;
+    if (capacity > 0) {
+      space.signalAll();  // callers hold the lock
+      for (Slot slot : slots) {
+        runSpaceListener(slot);
       }
-      if (incomplete) {
-        if (closed) {
+    }
+  }
+
+  private MultiFrame recvWatermarkFrame() throws Exception {
+    lock.lock();
+    try {
+      while (true) {
+        applyRemovals();
+        Slot[] current = slots;
+        long minTime = refreshHeads(current);
+        long delay = watermarkDelay(current, minTime);
+        if (delay < 0) {
+          setConsumerDone();
           return null;
-        }
-        if (noblock) {
+        } else if (delay == 0) {
+          return emitFrame(current, minTime);
+        } else if (noblock) {
           throw new IllegalBlockingModeException();
+        } else if (delay == Long.MAX_VALUE) {
+          ready.await();
+        } else {
+          ready.awaitNanos(delay * 1000000L);
         }
-        wait();
       }
-    } while (incomplete);
+    } finally {
+      lock.unlock();
+    }
+  }
 
-    lastSeq = (int) ((minTime - outHeader.startTime)/outHeader.frameTime);
-    MultiFrame frame = outHeader.makeFrame(lastSeq);
-    if (frame.getStartTime() != minTime) {
-      throw new RuntimeException("Time inconsistency");
+  // ms until the earliest slice should go out: 0 for now, -1 at the end of all inputs,
+  // Long.MAX_VALUE if there's nothing queued to wait for
+  private long watermarkDelay(Slot[] current, long minTime) {
+    boolean waiting = false, open = false;
+    for (int i = 0; i < current.length; i++) {
+      Slot slot = current[i];
+      if (!slot.header.closed) {
+        open |= slot.active;
+        if (heads[i] < 0) {
+          waiting = true;  // includes registered inputs that haven't sent their first frame yet
+        }
+      }
     }
 
-    for (StreamHeader in : frames.keySet()) {
-      StreamFrame f = frames.get(in).peekFirst();
-      if (f != null) {
+    if (minTime < 0) {
+      return (!open && activeSlots.get() > 0) || allRemoved(current) ? -1 : Long.MAX_VALUE;
+    }
+    if (!waiting) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    if (minTime != pendingTime) {
+      pendingTime = minTime;
+      pendingSince = now;
+    }
+    return Math.max(0, pendingSince + latenessMs - now);
+  }
+
+  // update the cached head times and return the earliest one, -1 if nothing is queued
+  private long refreshHeads(Slot[] current) {
+    if (heads.length != current.length) {
+      long[] nheads = new long[current.length];
+      System.arraycopy(heads, 0, nheads, 0, Math.min(heads.length, nheads.length));
+      for (int i = heads.length; i < nheads.length; i++) {
+        nheads[i] = -1;
+      }
+      heads = nheads;
+    }
+
+    long minTime = -1;
+    for (int i = 0; i < current.length; i++) {
+      Slot slot = current[i];
+      if (!slot.active) {
+        continue;
+      }
+      if (slot.headStale) {
+        slot.headStale = false;
+        heads[i] = -1;
+      }
+      while (heads[i] < 0) {
+        StreamFrame f = slot.queue.peek();
+        if (f == null) {
+          break;
+        }
         long time = f.getStartTime();
-        if (time == minTime) {
-          frame.setFrame(frames.get(in).pollFirst());
+        if (lastEmittedTime >= 0 && time <= lastEmittedTime) {
+          pollSlot(slot).release();  // its slice already went out without it
+          lateDropped++;
+        } else {
+          heads[i] = time;
         }
       }
+      long time = heads[i];
+      if (time < 0) {
+        continue;
+      }
+      if ((minTime < 0)||(time < minTime)) {
+        minTime = time;
+      } else if ((time - minTime) % slot.header.frameTime != 0) {
+        throw new RuntimeException("Timebases are not aligned");
+      }
+    }
+    return minTime;
+  }
+
+  private StreamFrame pollSlot(Slot slot) {
+    StreamFrame f = slot.queue.poll();
+    if (slot.size.decrementAndGet() == 0) {
+      emptySlots.incrementAndGet();
+    }
+    if (slot.waiting) {
+      signalSpace();
+    }
+    runSpaceListener(slot);
+    return f;
+  }
+
+  private MultiFrame emitFrame(Slot[] current, long minTime) {
+    MultiHeader header = outHeader;
+    lastSeq = (int) ((minTime - header.startTime)/header.frameTime);
+    MultiFrame frame = header.makeFrame(lastSeq);
+    if (frame.getStartTime() != minTime) {
+      throw new RuntimeException("Time inconsistency");
     }
 
-    notifyAll();
+    int missing = 0;
+    boolean partial = false;
+    for (int i = 0; i < current.length; i++) {
+      Slot slot = current[i];
+      if (heads[i] == minTime) {
+        frame.setFrame(slot.index, pollSlot(slot));
+        heads[i] = -1;
+      } else if (slot.active && watermark) {
+        partial = true;
+        missing++;
+      }
+    }
+
+    if (watermark) {
+      lastEmittedTime = minTime;
+      if (partial) {
+        partialFrames++;
+        missingEntries += missing;
+      }
+    }
     return frame;
   }
 
   @Override
-  public synchronized void close() {
-    isOpen = false;
-    notifyAll();
+  public void close() {
+    lock.lock();
+    try {
+      isOpen = false;
+      ready.signalAll();
+      space.signalAll();
+      for (Slot slot : slots) {
+        runSpaceListener(slot);
+      }
+    } finally {
+      lock.unlock();
+    }
+    notifyListener();
   }
 
   public static void main(String[] args) throws Exception {
+    // a pair whose first device ends before sending anything: the join ends rather than waiting for it
+    MultiFrameStream pair = new MultiFrameStream("pair");
+    pair.setMinInputs(2);
+    StreamHeader first = new StreamHeader("first", 0, 100);
+    StreamHeader second = new StreamHeader("second", 0, 100);
+    pair.setHeader(first);
+    pair.setHeader(second);
+    for (int j = 0; j < 3; j++) {
+      pair.sendFrame(second.makeFrame());
+    }
+    first.close();
+    pair.close();
+    pair.noblock = true;  // throws instead of hanging
+    System.out.println("Input closed before its first frame: " + (pair.recvFrame() == null ? "join ended" : "joined"));
+
     StreamHeader[] streams = new StreamHeader[10];
     MultiFrameStream dm = new MultiFrameStream("test");
 
@@ -149,5 +715,6 @@ public class MultiFrameStream implements FrameStream {
     }
 
     dm.close();
+
   }
 }
@@ -0,0 +1,45 @@
+package edu.cmu.pandaa.stream;
+
+import java.util.concurrent.locks.LockSupport;
+
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+
+/*
+ * Multi-producer/single-consumer version of RingBufferStream. Producers claim a slot with a CAS on
+ * the tail and then publish into it; the consumer treats a claimed-but-empty slot as "not yet
+ * available", so frames from one producer stay in order while producers interleave freely.
+ */
+public class MultiProducerRingBufferStream extends RingBufferStream {
+  static final long FULL_PARK_NS = 50 * 1000;
+
+  public MultiProducerRingBufferStream(String id) {
+    super(id);
+  }
+
+  public MultiProducerRingBufferStream(String id, int capacity, WaitStrategy waitStrategy) {
+    super(id, capacity, waitStrategy);
+  }
+
+  @Override
+  protected boolean offer(StreamFrame f) {
+    while (true) {
+      long t = tail.get();
+      if (t - head.get() > mask) {
+        return false;
+      }
+      if (tail.compareAndSet(t, t + 1)) {
+        ring.set((int) t & mask, f);
+        return true;
+      }
+    }
+  }
+
+  @Override
+  protected void waitForSpace() throws InterruptedException {
+    // several producers may be waiting, so poll with a short timed park rather than a single waiter slot
+    LockSupport.parkNanos(this, FULL_PARK_NS);
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package edu.cmu.pandaa.stream;
+
+/*
+ * What a bounded stream edge does with a new frame once it already holds its capacity. Every edge
+ * using one of these keeps counters of what it dropped or how often its producer had to wait, so an
+ * overloaded deployment shows where it is shedding load.
+ */
+public enum OverflowPolicy {
+  BLOCK,        // the producer waits for the consumer; lossless, pushes the delay upstream
+  DROP_OLDEST,  // discard the oldest queued frame to make room
+  DROP_NEWEST,  // discard the incoming frame
+  COALESCE;     // discard the whole backlog and keep only the incoming frame, for streams where
+                // the latest value supersedes the rest (distance, geometry)
+
+  // "block", "drop_oldest", ... as used on the command line
+  public static OverflowPolicy parse(String name) {
+    return valueOf(name.trim().toUpperCase().replace('-', '_'));
+  }
+}
@@ -1,6 +1,9 @@
 package edu.cmu.pandaa.stream;
 
 import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.SortedSet;
 
@@ -14,20 +17,28 @@ public class RawAudioFileStream implements FrameStream {
   private OutputStream os;
   private InputStream is;
   DataInputStream dis;
-  DataOutputStream dos;
+  private WavWriter wav;  // output, written behind the caller
   private String fileName;
+  private String deviceId;  // null: from the file name
   private RawAudioHeader headerRef;
   private int startFrame;
   private double timeDilation;
   private int byteCount = 0;
-  private int update_pos1, update_pos2, wavDataSize;
+  private int wavDataSize;
   private int loopSize = 0;
   public int loopCount = 1;
   private final int BITS_PER_BYTE = 8;
   private int wavFrameLength;
   private List<String> fileList;
   public int frameLength;
-  byte[] carryoverData;
+  private byte[] frameBytes;  // read buffer, reused for every frame
+  private int carryover;      // bytes of a partial frame left in frameBytes at the end of a file
+  private boolean mapped;         // read the data chunk through a memory mapping instead of dis
+  private ShortBuffer samples;    // mapped: the current file's samples, from the data chunk to the end
+  private short[] frameSamples;   // interleaved samples of a frame, when they need mixing, splitting or span files
+  private int carrySamples;       // mapped: samples of a partial frame left in frameSamples at the end of a file
+  private int fileStartSeq;       // mapped: sequence number of the frame the current file starts in
+  private boolean floating;       // 32 bit float samples rather than integers
 
   int wavSamplingRate;
   int wavSampleCount;
@@ -36,6 +47,8 @@ public class RawAudioFileStream implements FrameStream {
   private final short MONO = 1;
   private final short STEREO = 2;
   private final int PCM_FORMAT = 1;
+  private final int FLOAT_FORMAT = 3;
+  private final int EXTENSIBLE_FORMAT = 0xfffe;
 
   private final String riffString = "RIFF";
   private final String formatString = "WAVE";
@@ -44,7 +57,6 @@ public class RawAudioFileStream implements FrameStream {
   private final String infoString = "INFO";
   private final String commentString = "ICMT";
   private final String subChunk2String = "data";
-  private final int DEFAULT_SUBCHUNK1_SIZE = 16; // For PCM
 
   public RawAudioFileStream(String fileName) throws Exception {
     this.fileName = fileName;
@@ -94,6 +106,20 @@ public class RawAudioFileStream implements FrameStream {
     return DataConversionUtil.byteArrayToInt(tmpInt32);
   }
 
+  private int read16() throws IOException {
+    return dis.readUnsignedByte() | dis.readUnsignedByte() << 8;
+  }
+
+  // seeks, through the FileInputStream, rather than reading what's skipped
+  private void skipBytes(int count) throws IOException {
+    while (count > 0) {
+      int skipped = dis.skipBytes(count);
+      if (skipped <= 0)
+        throw new EOFException("File not in correct format, chunk past the end of " + fileName);
+      count -= skipped;
+    }
+  }
+
   private boolean resetStream() throws Exception {
     if (fileList != null) {
       if (fileList.size() <= 0)
@@ -122,9 +148,56 @@ public class RawAudioFileStream implements FrameStream {
     if (saved != null) {
       headerRef = saved;
     }
+    if (mapped) {
+      mapData(saved != null);
+    }
     System.out.println("Initialized " + fileName + " at " + headerRef.nextSeq);
   }
 
+  // serve frames from a read-only mapping of the data chunk rather than reading it through a stream:
+  // 16 bit mono samples are copied straight into the frames, and seek() can jump to any frame.
+  // Stays with the stream for other sample sizes, or a file too large to map in one piece.
+  public void setMapped(boolean mapped) throws IOException {
+    this.mapped = mapped && wavBitsPerSample == 16;
+    samples = null;
+    if (this.mapped && dis != null) {
+      mapData(false);
+    }
+  }
+
+  // map what follows the header, which dis has just read, as little-endian samples; to the end of the
+  // file, like reads from dis go, whatever the data chunk claims (recordings still being written say 0)
+  private void mapData(boolean midFrame) throws IOException {
+    FileChannel channel = ((FileInputStream) is).getChannel();
+    long start = channel.position();
+    long length = channel.size() - start;
+    if (length > Integer.MAX_VALUE) {
+      mapped = false;
+      samples = null;
+      return;
+    }
+    samples = channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN)
+            .asShortBuffer();
+    // the frame being filled in when a loop or the next segment starts already has its number
+    fileStartSeq = midFrame ? headerRef.nextSeq - 1 : headerRef.nextSeq;
+  }
+
+  // make the next frame read the one numbered seqNum, counting frames from the start of the current file
+  public void seek(int seqNum) {
+    if (!mapped) {
+      throw new IllegalStateException("Seeking needs mapped reads, see setMapped");
+    }
+    int channels = (int) headerRef.getNumChannels();
+    long offset = (long) (seqNum - fileStartSeq) * frameLength * channels;
+    if (offset < 0 || offset > samples.limit()) {
+      throw new IllegalArgumentException("Frame " + seqNum + " is not in " + fileName);
+    }
+    samples.position((int) offset);
+    carrySamples = 0;
+    byteCount = (seqNum - fileStartSeq) * frameLength * 2;
+    headerRef.nextSeq = seqNum;
+  }
+
   @Override
   public StreamHeader getHeader() throws Exception {
     if (dis != null) {
@@ -134,85 +207,86 @@ public class RawAudioFileStream implements FrameStream {
         throw new RuntimeException("getHeader called twice!");
     }
     dis = new DataInputStream(is);
-    byte[] tmpInt32 = new byte[4];
-    byte[] tmpInt16 = new byte[2];
 
-    int wavFileSize = 0, wavSubChunk1Size = 0;
-    int wavByteRate = 0;
     String wavComment = null;
-    int wavFormat = 0, wavChannels = 0, wavBlockAlign = 0;
+    int wavFormat = 0, wavChannels = 0;
 
     byte[] chunkID = new byte[4];
     int retval = dis.read(chunkID, 0, 4);
     if (!checkChunk(retval, chunkID, riffString))
       throw new RuntimeException("File not in correct format");
 
-    dis.read(tmpInt32);
-    wavFileSize = DataConversionUtil.byteArrayToInt(tmpInt32);
+    read32();  // RIFF size, not to be trusted: recordings still being written say 0
 
     retval = dis.read(chunkID, 0, 4);
     if (!checkChunk(retval, chunkID, formatString))
       throw new RuntimeException("File not in correct format");
 
-    retval = dis.read(chunkID, 0, 4);
-    if (!checkChunk(retval, chunkID, subChunk1String))
-      throw new RuntimeException("File not in correct format");
-
-    dis.read(tmpInt32);
-    wavSubChunk1Size = DataConversionUtil.byteArrayToInt(tmpInt32);
-
-    dis.read(tmpInt16);
-    wavFormat = DataConversionUtil.byteArrayToInt(tmpInt16);
-
-    if (wavFormat != PCM_FORMAT)
-      throw new RuntimeException("Format not supported for conversion");
-
-    dis.read(tmpInt16);
-    wavChannels = DataConversionUtil.byteArrayToInt(tmpInt16);
-
-    dis.read(tmpInt32);
-    wavSamplingRate = DataConversionUtil.byteArrayToInt(tmpInt32);
-
-    dis.read(tmpInt32);
-    wavByteRate = DataConversionUtil.byteArrayToInt(tmpInt32);
-
-    dis.read(tmpInt16);
-    wavBlockAlign = DataConversionUtil.byteArrayToInt(tmpInt16);
-
-    dis.read(tmpInt16);
-    wavBitsPerSample = DataConversionUtil.byteArrayToInt(tmpInt16);
-
-    retval = dis.read(chunkID, 0, 4);
-    if (checkChunk(retval, chunkID, metadataString)) {
-      int length = read32()-4;
+    // chunks up to the data, in whatever order; the ones not needed are seeked over
+    while (true) {
       retval = dis.read(chunkID, 0, 4);
-      if (checkChunk(retval, chunkID, infoString)) {
-        while (length > 0) {
-          retval = dis.read(chunkID, 0, 4);
-          int chunkSize = read32();
-          byte[] chunkData = new byte[chunkSize];
-          dis.read(chunkData);
-          length -= chunkSize + 8;
-
-          if (checkChunk(retval, chunkID, commentString)) {
+      if (retval != 4)
+        throw new RuntimeException("File not in correct format, no data chunk");
+      int chunkSize = read32();
+      if (checkChunk(retval, chunkID, subChunk2String)) {
+        wavDataSize = chunkSize;
+        break;
+      }
+      if (chunkSize < 0 || chunkSize == Integer.MAX_VALUE)  // no room for the pad byte either
+        throw new RuntimeException("File not in correct format, chunk size " + (chunkSize & 0xffffffffL));
+      int remaining = chunkSize + (chunkSize & 1);  // chunks are word aligned
+
+      if (checkChunk(retval, chunkID, subChunk1String)) {
+        wavFormat = read16();
+        wavChannels = read16();
+        wavSamplingRate = read32();
+        read32();  // byte rate
+        read16();  // block align
+        wavBitsPerSample = read16();
+        remaining -= 16;
+        if (wavFormat == EXTENSIBLE_FORMAT && chunkSize >= 40) {
+          read16();  // extension size
+          read16();  // valid bits, within the wavBitsPerSample each sample is stored in
+          read32();  // speaker positions of the channels
+          wavFormat = read16();  // the sub-format GUID starts with the format code
+          remaining -= 10;
+        }
+      } else if (checkChunk(retval, chunkID, metadataString) && chunkSize >= 4) {
+        retval = dis.read(chunkID, 0, 4);
+        remaining -= 4;
+        while (checkChunk(retval, chunkID, infoString) && remaining >= 8) {
+          byte[] subID = new byte[4];
+          int subRead = dis.read(subID, 0, 4);
+          int subSize = read32();
+          remaining -= 8;
+          if (subSize < 0)
+            throw new RuntimeException("File not in correct format, INFO entry size " + (subSize & 0xffffffffL));
+          // entries are word aligned too; the last one's pad byte may be the LIST chunk's own
+          int padded = (int) Math.min(subSize + (long) (subSize & 1), remaining);
+          if (checkChunk(subRead, subID, commentString) && subSize <= remaining) {
+            byte[] chunkData = new byte[subSize];
+            dis.readFully(chunkData);
+            skipBytes(padded - subSize);
             wavComment = new String(chunkData);
-            while (wavComment.charAt(wavComment.length()-1) == 0)
+            while (wavComment.length() > 0 && wavComment.charAt(wavComment.length()-1) == 0)
               wavComment = wavComment.substring(0, wavComment.length()-1);
+          } else {
+            skipBytes(padded);
           }
+          remaining -= padded;
         }
-      } else {
-        for (int i = 0; i < length; i++)
-          dis.read();
       }
-
-      retval = dis.read(chunkID, 0, 4);
+      skipBytes(remaining);
     }
+    if (wavChannels <= 0)
+      throw new RuntimeException("File not in correct format, no fmt chunk");
 
-    if (!checkChunk(retval, chunkID, subChunk2String))
-      throw new RuntimeException("File not in correct format, bad data chunk header");
+    floating = wavFormat == FLOAT_FORMAT;
+    if (floating ? wavBitsPerSample != 32 : wavFormat != PCM_FORMAT || wavBitsPerSample % BITS_PER_BYTE != 0 ||
+            wavBitsPerSample < 8 || wavBitsPerSample > 32)
+      throw new RuntimeException("Format not supported for conversion: " + wavFormat + ", " + wavBitsPerSample +
+              " bit");
 
-    dis.read(tmpInt32);
-    wavDataSize = DataConversionUtil.byteArrayToInt(tmpInt32);
     wavSampleCount = wavDataSize * wavBitsPerSample / BITS_PER_BYTE;
     headerRef = new RawAudioHeader(getDeviceID(), 0, wavFrameLength, wavFormat, wavChannels,
             wavSamplingRate, wavBitsPerSample, wavComment);
@@ -232,7 +306,22 @@ public class RawAudioFileStream implements FrameStream {
     return true;
   }
 
+  // the id to read the recording as, instead of one from its file name (e.g. sync-1 for a copy of set-1.wav)
+  public void setDeviceId(String id) {
+    deviceId = id;
+    if (headerRef != null) {
+      RawAudioHeader renamed = new RawAudioHeader(id, headerRef.startTime, headerRef.frameTime,
+              headerRef.getAudioFormat(), (int) headerRef.getNumChannels(), (int) headerRef.getSamplingRate(),
+              headerRef.getBitsPerSample(), headerRef.comment);
+      renamed.nextSeq = headerRef.nextSeq;
+      headerRef = renamed;
+    }
+  }
+
   private String getDeviceID() {
+    if (deviceId != null) {
+      return deviceId;
+    }
     int startIndex = 0, endIndex;
 
     startIndex = fileName.lastIndexOf(File.separatorChar) + 1;
@@ -247,126 +336,140 @@ public class RawAudioFileStream implements FrameStream {
 
   @Override
   public StreamFrame recvFrame() throws Exception {
+    RawAudioFrame rawAudioFrame = headerRef.makeFrame(frameLength);
+    if (!nextFrame(rawAudioFrame.audioData, null)) {
+      rawAudioFrame.release();
+      return null;
+    }
+    return rawAudioFrame;
+  }
+
+  // one frame of every channel, for a ChannelSplitter; channelData[c] is null for a channel nobody reads
+  boolean readChannels(short[][] channelData) throws Exception {
+    headerRef.nextSeq++;  // as recvFrame's makeFrame does, so loops and seeks count the same
+    return nextFrame(null, channelData);
+  }
+
+  // the next frame, continuing with the next loop or segment at the end of a file
+  private boolean nextFrame(short[] audioData, short[][] channelData) throws Exception {
     if (timeDilation > 0)
       Thread.sleep((long) (headerRef.frameTime * timeDilation));
 
-    RawAudioFrame rawAudioFrame = headerRef.makeFrame(frameLength);
-    rawAudioFrame.audioData = readData();
+    boolean full = readData(audioData, channelData);
 
-    int bytesRead = rawAudioFrame.audioData.length * 2;
+    int bytesRead = full ? frameLength * 2 : 0;
     byteCount += bytesRead;
 
     if (bytesRead <= 0 || (byteCount >= loopSize && loopSize > 0)) {
       if (!resetStream()) {
-        return null;
+        return false;
       }
       byteCount = 0;
-      rawAudioFrame.audioData = readData();
-    }
-    if (rawAudioFrame.audioData.length == 0) {
-      return null;
+      full = readData(audioData, channelData);
     }
-    return rawAudioFrame;
+    return full;
   }
-  private byte[] concatenate(byte[] a, byte[] b, int bLen) {
-    if ((a == null)&&(b == null))
-      return null;
-    if (b == null)
-      return a;
-    if (a == null) {
-      if (bLen < b.length) {
-        byte[] ndata = new byte[bLen];
-        System.arraycopy(b, 0, ndata, 0, bLen);
-        return ndata;
+
+  // fills in one frame, mixed down to mono in audioData or split into channelData; false, keeping what
+  // was read, if the file ends mid-frame
+  private boolean readData(short[] audioData, short[][] channelData) throws IOException {
+    int channels = (int) headerRef.getNumChannels();
+    short[] direct = channels == MONO && audioData != null ? audioData : null;  // no mixing to do
+    if (!(mapped ? readMapped(direct) : readStream(direct))) {
+      return false;
+    }
+    if (direct != null) {
+      return true;
+    }
+
+    if (audioData != null) {
+      if (channels == STEREO) {
+        for (int i = 0, j = 0; j < frameLength; i += 2, j++) {
+          audioData[j] = (short) ((frameSamples[i] + frameSamples[i + 1]) / 2);
+        }
+      } else {
+        for (int i = 0, j = 0; j < frameLength; j++) {
+          int sum = 0;
+          for (int c = 0; c < channels; c++) {
+            sum += frameSamples[i++];
+          }
+          audioData[j] = (short) (sum / channels);
+        }
+      }
+    } else {
+      for (int c = 0; c < channels; c++) {
+        short[] channel = channelData[c];
+        if (channel != null) {
+          for (int i = c, j = 0; j < frameLength; i += channels, j++) {
+            channel[j] = frameSamples[i];
+          }
+        }
       }
-      return b;
     }
-    byte[] ndata = new byte[a.length + bLen];
-    System.arraycopy(a, 0, ndata, 0, a.length);
-    System.arraycopy(b, 0, ndata, a.length, bLen);
-    return ndata;
+    return true;
   }
 
-  private short[] readData() throws IOException {
+  // a frame of samples into direct if given, else interleaved into frameSamples
+  private boolean readStream(short[] direct) throws IOException {
     int numBytesInSample = headerRef.getBitsPerSample() / BITS_PER_BYTE;
-    int frameBytes = (int) (frameLength * numBytesInSample * headerRef.getNumChannels());
-    int readBytes = frameBytes - (carryoverData == null ? 0 : carryoverData.length);
-    byte[] audioDataBytes = new byte[readBytes];
-    int bytesRead = dis.read(audioDataBytes);
-    int useLen = bytesRead > 0 ? bytesRead : 0;
-    audioDataBytes = concatenate(carryoverData, audioDataBytes, useLen);
-    if (audioDataBytes.length < frameBytes) {
-      carryoverData = audioDataBytes;
-      return new short[0];
-    } else {
-      carryoverData = null;
+    int channels = (int) headerRef.getNumChannels();
+    int frameSize = frameLength * numBytesInSample * channels;
+    if (frameBytes == null || frameBytes.length != frameSize) {
+      frameBytes = new byte[frameSize];
+      carryover = 0;
+    }
+    int bytesRead = dis.read(frameBytes, carryover, frameSize - carryover);
+    carryover += bytesRead > 0 ? bytesRead : 0;
+    if (carryover < frameSize) {
+      return false;
     }
+    carryover = 0;
 
+    int bits = headerRef.getBitsPerSample();
+    if (direct != null) {
+      DataConversionUtil.pcmToShorts(frameBytes, 0, bits, floating, direct, 0, frameLength);
+    } else {
+      if (frameSamples == null || frameSamples.length != frameLength * channels) {
+        frameSamples = new short[frameLength * channels];
+      }
+      DataConversionUtil.pcmToShorts(frameBytes, 0, bits, floating, frameSamples, 0, frameLength * channels);
+    }
+    return true;
+  }
 
-    short[] audioDataShort = DataConversionUtil.byteArrayToShortArray(audioDataBytes, audioDataBytes.length);
-    if (headerRef.getNumChannels() == STEREO) {
-      short[] monoAudioData = new short[audioDataShort.length / 2];
-      for (int i = 0, j = 0; i < audioDataShort.length; i += 2, j++)
-        monoAudioData[j] = (short) ((audioDataShort[i] + audioDataShort[i + 1]) / 2);
-      audioDataShort = monoAudioData;
+  private boolean readMapped(short[] direct) {
+    int channels = (int) headerRef.getNumChannels();
+    int frameSize = frameLength * channels;
+    if (direct != null && carrySamples == 0 && samples.remaining() >= frameSize) {
+      samples.get(direct, 0, frameLength);
+      return true;
     }
-    if (audioDataShort.length < frameLength) {
-      if (byteCount < loopSize && loopSize > 0) {
-        short[] newShort = new short[frameLength];
-        System.arraycopy(audioDataShort, 0, newShort, 0, audioDataShort.length);
-        audioDataShort = newShort;
-      }
+    if (frameSamples == null || frameSamples.length != frameSize) {
+      frameSamples = new short[frameSize];
+      carrySamples = 0;
+    }
+    int count = Math.min(samples.remaining(), frameSize - carrySamples);
+    samples.get(frameSamples, carrySamples, count);
+    carrySamples += count;
+    if (carrySamples < frameSize) {
+      return false;
     }
+    carrySamples = 0;
 
-    return audioDataShort;
+    if (direct != null) {
+      System.arraycopy(frameSamples, 0, direct, 0, frameLength);
+    }
+    return true;
   }
 
   @Override
   public void setHeader(StreamHeader h) throws Exception {
     headerRef = (RawAudioHeader) h;
     startFrame = headerRef.nextSeq;
-    if (dos != null) {
+    if (wav != null) {
       throw new RuntimeException("setHeader called twice!");
     }
-    dos = new DataOutputStream(new FileOutputStream(fileName));
-
-    long byteRate = (headerRef.getSamplingRate() * MONO * headerRef.getBitsPerSample()) / 8;
-    int blockAlign = (int) (MONO * headerRef.getBitsPerSample()) / 8;
-    long subChunk1Size = DEFAULT_SUBCHUNK1_SIZE;
-
-    String paddedComment = null;
-    if (headerRef.comment != null) {
-      paddedComment = headerRef.comment;
-      while (paddedComment.length() % 4 != 0)
-        paddedComment = paddedComment + '\0';
-      //headerSize += paddedComment.length() + 20; // LIST, size, INFO, ICMT, size
-    }
-
-    dos.writeBytes(riffString);
-    update_pos1 = dos.size();
-    dos.write(DataConversionUtil.intToByteArray(0), 0, 4); // dummy data value, updated on close
-    dos.writeBytes(formatString);
-    dos.writeBytes(subChunk1String);
-    dos.write(DataConversionUtil.intToByteArray((int) subChunk1Size), 0, 4);
-    dos.write(DataConversionUtil.shortToByteArray((short) headerRef.getAudioFormat()), 0, 2);
-    dos.write(DataConversionUtil.shortToByteArray(MONO), 0, 2);
-    dos.write(DataConversionUtil.intToByteArray((int) headerRef.getSamplingRate()), 0, 4);
-    dos.write(DataConversionUtil.intToByteArray((int) byteRate), 0, 4);
-    dos.write(DataConversionUtil.shortToByteArray((short) blockAlign), 0, 2);
-    dos.write(DataConversionUtil.shortToByteArray((short) headerRef.getBitsPerSample()), 0, 2);
-    if (paddedComment != null) {
-      int size = paddedComment.length();
-      dos.writeBytes(metadataString);
-      dos.write(DataConversionUtil.intToByteArray(size + 12), 0, 4);
-      dos.writeBytes(infoString);
-      dos.writeBytes(commentString);
-      dos.write(DataConversionUtil.intToByteArray(size), 0, 4);
-      dos.writeBytes(paddedComment);
-    }
-    dos.writeBytes(subChunk2String);
-    update_pos2 = dos.size();
-    dos.write(DataConversionUtil.intToByteArray(0), 0, 4); // dummy data, updated on close
-    dos.flush();
+    wav = new WavWriter(fileName, headerRef);
     frameLength = (int) (headerRef.getSamplingRate() * headerRef.frameTime);
     if (frameLength % 1000 != 0) {
       throw new IllegalArgumentException("Bad frame length: rounding error");
@@ -383,39 +486,36 @@ public class RawAudioFileStream implements FrameStream {
     //if (audioData.length != frameLength) {
     //  throw new IllegalArgumentException("Length " + audioData.length + " != " + frameLength);
     //}
-    for (int i = 0; i < audioData.length; i++) {
-      dos.write((DataConversionUtil.shortToByteArray(audioData[i])), 0, 2);
-    }
-    byteCount += 2 * audioData.length;
-
-    dos.flush();
+    wav.write(audioData, 0, audioData.length);  // converted now, written behind
   }
 
   public long getCurrentLength() {
     return (headerRef.nextSeq - startFrame) * headerRef.frameTime;
   }
 
-  private void updateWavLength() throws Exception {
-    RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
-    raf.seek(update_pos1);
-    raf.write(DataConversionUtil.intToByteArray(byteCount + update_pos2 - update_pos1));
-    raf.seek(update_pos2);
-    raf.write(DataConversionUtil.intToByteArray(byteCount));
-    raf.close();
+  // for output: like close, but returns before the rest of the file is on disk, e.g. on a capture thread
+  public void closeBehind() {
+    try {
+      if (wav != null) {
+        wav.closeBehind();
+        wav = null;
+      }
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    close();
   }
 
   @Override
   public void close() {
-    boolean update = false;
     try {
       if (dis != null) {
         dis.close();
         dis = null;
       }
-      if (dos != null) {
-        dos.close();
-        dos = null;
-        update = true;
+      if (wav != null) {
+        wav.close();  // patches the sizes
+        wav = null;
       }
       if (os != null) {
         os.close();
@@ -425,8 +525,7 @@ public class RawAudioFileStream implements FrameStream {
         is.close();
         is = null;
       }
-      if (update)
-        updateWavLength();
+      samples = null;  // the mapping goes with the buffer
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
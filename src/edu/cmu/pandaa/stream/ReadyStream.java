@@ -0,0 +1,15 @@
+package edu.cmu.pandaa.stream;
+
+// a FrameStream that can tell its consumer when recvFrame would not block
+public interface ReadyStream extends FrameStream {
+  // true if recvFrame will return right away (a frame, or null at the end of the stream);
+  // only call this from the consuming side
+  public boolean isReady();
+
+  // run whenever new data may have become available; called on the producer's thread, so keep it cheap
+  public void setReadyListener(Runnable listener);
+
+  // with noblock, recvFrame throws IllegalBlockingModeException where it would wait, e.g. for a
+  // consumer on a worker pool, which must not park a worker on a wrong isReady
+  public void setNoBlock(boolean noblock);
+}
@@ -0,0 +1,264 @@
+package edu.cmu.pandaa.stream;
+
+import java.nio.channels.IllegalBlockingModeException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.cmu.pandaa.header.StreamHeader;
+import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+
+/*
+ * Bounded single-producer/single-consumer frame queue. Unlike MemoryStream, the producer can run
+ * ahead of the consumer by up to capacity frames, and neither side takes a monitor on the fast path:
+ * frames are published through a volatile slot write, and a side only parks when the ring is
+ * empty (consumer) or full (producer).
+ *
+ * Use MultiProducerRingBufferStream when more than one thread calls sendFrame.
+ */
+public class RingBufferStream implements ReadyStream {
+  public enum WaitStrategy {
+    BLOCKING,   // park immediately when the ring is empty/full
+    SPIN_PARK   // busy-spin for a while before parking, lower latency for hot stages
+  }
+
+  public static final int DEFAULT_CAPACITY = 64;
+  static final int SPIN_TRIES = 1000;
+
+  public final String id;
+  protected final AtomicReferenceArray<StreamFrame> ring;
+  protected final int mask;
+  protected final AtomicLong head = new AtomicLong(); // next slot to read, written by the consumer
+  protected final AtomicLong tail = new AtomicLong(); // next slot to write, claimed by producer(s)
+  protected final WaitStrategy waitStrategy;
+
+  private volatile StreamHeader header;
+  protected volatile boolean isActive = true;
+  private volatile Thread consumerWaiter;
+  private volatile Thread producerWaiter;
+  private volatile Runnable readyListener;
+  private volatile boolean noblock = false;
+
+  public RingBufferStream(String id) {
+    this(id, DEFAULT_CAPACITY, WaitStrategy.BLOCKING);
+  }
+
+  public RingBufferStream(String id, int capacity, WaitStrategy waitStrategy) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be > 0");
+    }
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.id = id;
+    this.ring = new AtomicReferenceArray<StreamFrame>(size);
+    this.mask = size - 1;
+    this.waitStrategy = waitStrategy;
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  @Override
+  public void setHeader(StreamHeader h) {
+    header = h;
+    wakeConsumer();
+  }
+
+  @Override
+  public StreamHeader getHeader() {
+    int spins = 0;
+    while (header == null && isActive) {
+      if (spins < SPIN_TRIES && waitStrategy == WaitStrategy.SPIN_PARK) {
+        spins++;
+        Thread.onSpinWait();
+        continue;
+      }
+      consumerWaiter = Thread.currentThread();
+      if (header == null && isActive) {
+        LockSupport.park(this);
+      }
+      consumerWaiter = null;
+      if (Thread.interrupted()) {
+        return null;
+      }
+    }
+    return isActive || size() > 0 ? header : null;  // a closed ring still has its queued frames to hand out
+  }
+
+  @Override
+  public void sendFrame(StreamFrame f) throws Exception {
+    if (f == null || !isActive) {
+      return;
+    }
+    int spins = 0;
+    while (!offer(f)) {
+      if (!isActive) {
+        return;
+      }
+      if (spins < SPIN_TRIES && waitStrategy == WaitStrategy.SPIN_PARK) {
+        spins++;
+        Thread.onSpinWait();
+      } else {
+        waitForSpace();
+      }
+    }
+    wakeConsumer();
+  }
+
+  // try to publish one frame, returns false if the ring is full
+  protected boolean offer(StreamFrame f) {
+    long t = tail.get();
+    if (t - head.get() > mask) {
+      return false;
+    }
+    ring.set((int) t & mask, f);
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  protected void waitForSpace() throws InterruptedException {
+    producerWaiter = Thread.currentThread();
+    if (tail.get() - head.get() > mask && isActive) {
+      LockSupport.park(this);
+    }
+    producerWaiter = null;
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  // non-blocking read, null if nothing is queued
+  public StreamFrame poll() {
+    long h = head.get();
+    int index = (int) h & mask;
+    StreamFrame f = ring.get(index);
+    if (f == null) {
+      return null;
+    }
+    ring.lazySet(index, null);
+    head.set(h + 1);
+    wakeProducer();
+    return f;
+  }
+
+  @Override
+  public StreamFrame recvFrame() throws Exception {
+    int spins = 0;
+    while (true) {
+      StreamFrame f = poll();
+      if (f != null) {
+        return f;
+      }
+      if (!isActive && tail.get() == head.get()) {
+        return null;
+      }
+      if (spins < SPIN_TRIES && (waitStrategy == WaitStrategy.SPIN_PARK || tail.get() != head.get())) {
+        // a claimed-but-unpublished slot is only a few instructions away, so always spin for those
+        spins++;
+        Thread.onSpinWait();
+        continue;
+      }
+      if (noblock) {
+        throw new IllegalBlockingModeException();
+      }
+      consumerWaiter = Thread.currentThread();
+      if (ring.get((int) head.get() & mask) == null && isActive) {
+        LockSupport.park(this);
+      }
+      consumerWaiter = null;
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  protected void wakeConsumer() {
+    Thread waiter = consumerWaiter;
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+    Runnable listener = readyListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  @Override
+  public boolean isReady() {
+    return ring.get((int) head.get() & mask) != null || (!isActive && tail.get() == head.get());
+  }
+
+  @Override
+  public void setReadyListener(Runnable listener) {
+    readyListener = listener;
+  }
+
+  @Override
+  public void setNoBlock(boolean noblock) {
+    this.noblock = noblock;
+  }
+
+  protected void wakeProducer() {
+    Thread waiter = producerWaiter;
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+  }
+
+  @Override
+  public void close() {
+    isActive = false;
+    wakeConsumer();
+    wakeProducer();
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    final boolean multi = args.length > 1 && args[1].equals("multi");
+    final int producers = multi ? 4 : 1;
+    final RingBufferStream rb = multi ?
+            new MultiProducerRingBufferStream("test", 1024, WaitStrategy.SPIN_PARK) :
+            new RingBufferStream("test", 1024, WaitStrategy.SPIN_PARK);
+    final StreamHeader header = new StreamHeader("id0", System.currentTimeMillis(), 100);
+    rb.setHeader(header);
+
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      threads[p] = new Thread("producer" + p) {
+        public void run() {
+          try {
+            for (int i = 0; i < count / producers; i++) {
+              rb.sendFrame(header.makeFrame(i));
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      };
+    }
+
+    long start = System.nanoTime();
+    for (Thread t : threads) {
+      t.start();
+    }
+    int received = 0;
+    while (received < (count / producers) * producers) {
+      if (rb.recvFrame() == null) {
+        break;
+      }
+      received++;
+    }
+    long elapsed = System.nanoTime() - start;
+    rb.close();
+    System.out.println(rb.getHeader() == null ? "closed" : "open");
+    System.out.println("Received " + received + " frames from " + producers + " producer(s) in " +
+            elapsed / 1000000 + "ms (" + (elapsed / Math.max(1, received)) + "ns/frame)");
+  }
+}
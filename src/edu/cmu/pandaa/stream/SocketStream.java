@@ -4,25 +4,64 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
 
+// a socket is read by a single pipe thread, which may be virtual, so reads are guarded by a j.u.c lock
+// (not a monitor) and getHeader reads ahead on the socket itself instead of waiting for another thread.
+// A client may name the session (room) it belongs to by sending the name as a String before its header;
+// clients that don't end up in the server's default session.
+// The output stream is reset after every frame, since frames and their sample buffers are pooled: a
+// recycled one would otherwise go out as a back-reference to what it held before, and the stream's handle
+// table would keep everything ever sent. A frame's header is the one setHeader sent, so rather than a copy
+// of it per frame a frame carries a SentHeader token, which the other side resolves to the header it has.
 public class SocketStream implements FrameStream {
 
-  StreamHeader headerBuffer;
+  volatile StreamHeader headerBuffer;
+  private volatile String session;
+  final ReentrantLock readLock = new ReentrantLock();
   Socket connection;
   ObjectOutputStream outObjectStream;
   ObjectInputStream inObjectStream;
   Object incomingMessage;
+  private volatile boolean failed = false;
+  private StreamHeader sentHeader;  // what frames refer to by SentHeader
+
+  // stands for the header last sent, within a frame
+  static final class SentHeader implements Serializable {
+    private static final long serialVersionUID = 1L;
+  }
+  private static final SentHeader SENT_HEADER = new SentHeader();
 
   public SocketStream(Socket connection) {
     this.connection = connection;
 
     try {
-      this.outObjectStream = new ObjectOutputStream(connection.getOutputStream());
-      this.inObjectStream = new ObjectInputStream(connection.getInputStream());
+      this.outObjectStream = new ObjectOutputStream(connection.getOutputStream()) {
+        {
+          enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+          return obj == sentHeader && sentHeader != null ? SENT_HEADER : obj;
+        }
+      };
+      outObjectStream.flush();  // the stream header, or the other end's ObjectInputStream blocks forever
+      this.inObjectStream = new ObjectInputStream(connection.getInputStream()) {
+        {
+          enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+          return obj instanceof SentHeader ? headerBuffer : obj;
+        }
+      };
     }
     catch (IOException e) {
       e.printStackTrace();
@@ -31,45 +70,77 @@ public class SocketStream implements FrameStream {
 
   @Override
 public void setHeader(StreamHeader h) {
-    headerBuffer = h;
-    sendObject(h);    // send header over network
-    notify();         // if a thread is waiting for the header, wake it up
+    sentHeader = null;  // the header itself goes out whole
+    sendObject(h);    // send header over network; headerBuffer is what the other side sent us
+    sentHeader = h;
   }
 
   @Override
 public StreamHeader getHeader() {
-    if (headerBuffer == null) {
-      try {
-        wait();   // sleep until there's a header
-      }
-      catch (InterruptedException e) {
-        e.printStackTrace();
+    readLock.lock();
+    try {
+      while (headerBuffer == null) {
+        Object message = readMessage();   // the header is the first thing a client sends
+        if (message == null) {
+          return null;
+        }
+        if (message instanceof StreamHeader) {
+          headerBuffer = (StreamHeader) message;
+        } else if (message instanceof String) {
+          session = (String) message;
+        }
       }
+      return headerBuffer;
+    } finally {
+      readLock.unlock();
     }
-    return headerBuffer;
+  }
+
+  // client side, before setHeader
+  public void sendSession(String name) {
+    sendObject(name);
+  }
+
+  // the session the client asked for, null if none; known once getHeader returned
+  public String getSession() {
+    return session;
   }
 
   @Override
 public void sendFrame(StreamFrame f) {
+    if (f == null) {
+      return;  // "no output this time"; a null on the wire would read as the end of the stream
+    }
     sendObject(f);    // send frame over network
   }
 
   @Override
 public StreamFrame recvFrame() {
+    readLock.lock();
     try {
-      incomingMessage = inObjectStream.readObject();
+      while (true) {
+        incomingMessage = readMessage();
 
-      if (incomingMessage instanceof StreamFrame) {
-        return (StreamFrame) incomingMessage;
-      }
-      else if (incomingMessage instanceof StreamHeader) {
-        setHeader((StreamHeader) incomingMessage);
+        if (incomingMessage == null || incomingMessage instanceof StreamFrame) {
+          return (StreamFrame) incomingMessage;
+        }
+        else if (incomingMessage instanceof StreamHeader) {
+          headerBuffer = (StreamHeader) incomingMessage;
+        }
+        // skip anything that wasn't a frame
       }
-      return recvFrame();   // return next message if this one wasn't a frame
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  // next object off the socket, null once the connection is gone
+  private Object readMessage() {
+    try {
+      return inObjectStream.readObject();
     }
     catch (EOFException e) {
       System.out.println("Connection closed by client.");
-      e.printStackTrace();
       try { connection.close(); }
       catch (IOException ioex) { ioex.printStackTrace(); }
       return null;
@@ -85,12 +156,30 @@ public StreamFrame recvFrame() {
   private void sendObject(Object o) {
     try {
       outObjectStream.writeObject(o);
+      outObjectStream.reset();
+      outObjectStream.flush();
     }
     catch (IOException e) {
+      failed = true;
       System.out.println("Error sending message."); e.printStackTrace();
     }
   }
 
+  // false once a send failed or the socket was closed
+  public boolean isOpen() {
+    return !failed && !connection.isClosed();
+  }
+
+  // end of our frames; the other side's recvFrame returns null, we can still read what it sends back
+  public void finishSending() {
+    try {
+      outObjectStream.flush();
+      connection.shutdownOutput();
+    } catch (IOException e) {
+      failed = true;
+    }
+  }
+
   @Override
   public void close() {
     try {
@@ -0,0 +1,247 @@
+package edu.cmu.pandaa.stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import edu.cmu.pandaa.header.RawAudioHeader;
+import edu.cmu.pandaa.utils.DataConversionUtil;
+import edu.cmu.pandaa.utils.ThreadUtil;
+
+/*
+ * Writes a mono WAV file behind the thread that produces the audio, so capture and processing threads
+ * don't wait on the disk. write() converts the samples straight into the current chunk buffer (so the
+ * caller can reuse or release its frame right away) and hands full chunks, or ones older than
+ * HANDOFF_MS, to a writer thread that puts them on a FileChannel. There are at most BUFFERS chunks: if
+ * the disk falls that far behind, write() waits for one to come back rather than dropping audio.
+ * close() writes what's left and then patches the RIFF and data sizes, once.
+ */
+public class WavWriter {
+  static final int CHUNK_BYTES = 64 * 1024;
+  static final int BUFFERS = 32;       // 2MB, about 20s of 16 bit 44.1kHz audio
+  static final long HANDOFF_MS = 1000; // a partial chunk is written after this long
+  static final int FLOAT_FORMAT = 3;   // WAVE_FORMAT_IEEE_FLOAT, PCM is 1
+
+  private final String fileName;
+  private final FileChannel channel;
+  private final int bitsPerSample, bytesPerSample;
+  private final boolean floating;
+  private final int riffSizePos, dataSizePos;  // where the sizes go on close
+  private long dataBytes = 0;
+
+  private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+  private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(BUFFERS + 1);
+  private int allocated = 0;
+  private ByteBuffer current;
+  private long currentSince;
+  private final Thread writer;
+  private volatile IOException failure;
+  private volatile boolean closed = false;
+
+  private static final ByteBuffer END = ByteBuffer.allocate(0);  // tells the writer thread to finish
+
+  public WavWriter(String fileName, RawAudioHeader h) throws IOException {
+    this.fileName = fileName;
+    floating = h.getAudioFormat() == FLOAT_FORMAT && h.getBitsPerSample() == 32;
+    int bits = h.getBitsPerSample();
+    // the samples are shorts, written at the header's depth when that is one we can convert to
+    bitsPerSample = floating || (bits % 8 == 0 && bits >= 8 && bits <= 32) ? bits : 16;
+    bytesPerSample = bitsPerSample / 8;
+
+    ByteBuffer header = ByteBuffer.allocate(RawAudioHeader.WAV_FILE_HEADER_LENGTH +
+            (h.comment == null ? 0 : h.comment.length() + 24)).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(ascii("RIFF"));
+    riffSizePos = header.position();
+    header.putInt(0);  // dummy, updated on close
+    header.put(ascii("WAVE"));
+    header.put(ascii("fmt "));
+    header.putInt(16);  // PCM fmt chunk
+    header.putShort((short) (floating ? FLOAT_FORMAT : h.getAudioFormat()));
+    header.putShort((short) 1);  // mono
+    header.putInt((int) h.getSamplingRate());
+    header.putInt((int) h.getSamplingRate() * bytesPerSample);  // byte rate
+    header.putShort((short) bytesPerSample);  // block align
+    header.putShort((short) bitsPerSample);
+    if (h.comment != null) {
+      String padded = h.comment;
+      while (padded.length() % 4 != 0)
+        padded = padded + '\0';
+      header.put(ascii("LIST"));
+      header.putInt(padded.length() + 12);
+      header.put(ascii("INFO"));
+      header.put(ascii("ICMT"));
+      header.putInt(padded.length());
+      header.put(ascii(padded));
+    }
+    header.put(ascii("data"));
+    dataSizePos = header.position();
+    header.putInt(0);  // dummy, updated on close
+    header.flip();
+
+    channel = new RandomAccessFile(new File(fileName), "rw").getChannel();
+    channel.truncate(0);
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+
+    writer = ThreadUtil.daemonFactory("wav").newThread(new Runnable() {
+      public void run() {
+        drain();
+      }
+    });
+    writer.start();
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  // converts and queues count samples; only blocks when all BUFFERS chunks are waiting for the disk
+  public void write(short[] samples, int offset, int count) throws IOException {
+    checkFailure();
+    if (closed) {
+      throw new IOException("WavWriter closed: " + fileName);
+    }
+    while (count > 0) {
+      if (current == null) {
+        current = take();
+        currentSince = System.currentTimeMillis();
+      }
+      int n = Math.min(count, current.remaining() / bytesPerSample);
+      int pos = current.position();
+      DataConversionUtil.shortsToPcm(samples, offset, bitsPerSample, floating, current.array(), pos, n);
+      current.position(pos + n * bytesPerSample);
+      offset += n;
+      count -= n;
+      dataBytes += n * bytesPerSample;
+      if (current.remaining() < bytesPerSample) {
+        handOff();
+      }
+    }
+    if (current != null && System.currentTimeMillis() - currentSince >= HANDOFF_MS) {
+      handOff();
+    }
+  }
+
+  private ByteBuffer take() throws IOException {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null && allocated < BUFFERS) {
+      allocated++;
+      return ByteBuffer.allocate(CHUNK_BYTES);
+    }
+    try {
+      return buffer != null ? buffer : free.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting to write " + fileName);
+    }
+  }
+
+  private void handOff() throws IOException {
+    current.flip();
+    put(current);
+    current = null;
+  }
+
+  private void put(ByteBuffer buffer) throws IOException {
+    try {
+      full.put(buffer);  // never waits long: there are only BUFFERS chunks plus END
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted writing " + fileName);
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Writing " + fileName + " failed", failure);
+    }
+  }
+
+  // the writer thread: the chunks as they come, then the sizes and the close
+  private void drain() {
+    try {
+      while (true) {
+        ByteBuffer buffer = full.take();
+        if (buffer == END) {
+          break;
+        }
+        try {
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        } catch (IOException e) {
+          fail(e);  // the rest is dropped
+        }
+        buffer.clear();
+        free.offer(buffer);
+      }
+      if (failure == null) {
+        ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        size.putInt(0, (int) (dataBytes + dataSizePos - riffSizePos));
+        channel.write(size, riffSizePos);
+        size.putInt(0, (int) dataBytes);
+        size.clear();
+        channel.write(size, dataSizePos);
+      }
+    } catch (InterruptedException e) {
+      // abandoned
+    } catch (IOException e) {
+      fail(e);
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+
+  // reported by the next write or close, or here if the file was closed behind
+  private void fail(IOException e) {
+    if (failure == null) {
+      failure = e;
+      if (closed) {
+        System.err.println("Writing " + fileName + " failed: " + e);
+      }
+    }
+  }
+
+  public long getDataBytes() {
+    return dataBytes;
+  }
+
+  // queues the rest of the audio and returns; the writer thread fills in the sizes and closes the file
+  public void closeBehind() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (current != null) {
+      handOff();
+    }
+    put(END);
+  }
+
+  // writes out the queued audio, fills in the sizes and closes the file, waiting for all of it
+  public void close() throws IOException {
+    closeBehind();
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted closing " + fileName);
+    }
+    checkFailure();
+  }
+}
@@ -5,9 +5,12 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import edu.cmu.pandaa.header.StreamHeader;
 import edu.cmu.pandaa.header.StreamHeader.StreamFrame;
+import edu.cmu.pandaa.utils.ThreadUtil;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by IntelliJ IDEA.
@@ -16,21 +19,35 @@ import java.net.InetSocketAddress;
  * Time: 9:03 AM
  */
 
+/*
+ * Dashboard feed for one pipe: serves the static pages and the pipe's latest frame as JSON.
+ *
+ * The feed is best effort and must never slow the pipe down. sendFrame only swaps in a reference to
+ * the latest frame; a frame is serialized when a client asks for it, at most once however many clients
+ * poll, and all views share one low-priority thread for it. Clients sample whatever is latest.
+ */
 public class WebViewStream implements FrameStream {
   static final String STATIC_URL_PREFIX = "/";
   static final String SERVE_FILE_PREFIX = "www/";
   static final String SERVER_ALT_PREFIX = "../";
   static final String DATA_FILE_PREFIX = "/json";
 
-  StreamHeader header;
-  StreamFrame frame;
+  // every view's HTTP handling, queued behind the pipes
+  private static final ExecutorService handlers =
+          Executors.newSingleThreadExecutor(ThreadUtil.daemonFactory("webview", Thread.MIN_PRIORITY));
+
+  volatile StreamHeader header;
+  volatile StreamFrame frame;
   HttpServer server;
+  private StreamFrame jsonFrame;  // what json holds, handler thread only
+  private byte[] json;
 
   public WebViewStream(int port) {
     try {
       server = HttpServer.create(new InetSocketAddress(port), 2);
       server.createContext(STATIC_URL_PREFIX, new PageHandler());
       server.createContext(DATA_FILE_PREFIX, new DataHandler());
+      server.setExecutor(handlers);
       server.start();
     } catch (Exception e) {
       throw new RuntimeException(e);
@@ -69,21 +86,27 @@ public class WebViewStream implements FrameStream {
   class DataHandler implements HttpHandler {
     public void handle(HttpExchange t) throws IOException {
       try {
-        synchronized(WebViewStream.this) {
-          if (header == null) {
-            t.sendResponseHeaders(400, -1);
-            return;
-          }
-          t.sendResponseHeaders(200, 0);
-          FileStream outStream = header.createOutput();
-          OutputStream os = t.getResponseBody();
+        StreamFrame latest = frame;
+        StreamHeader h = latest == null ? header : latest.getHeader();
+        if (h == null) {
+          t.sendResponseHeaders(400, -1);
+          return;
+        }
+        if (json == null || latest != jsonFrame) {
+          ByteArrayOutputStream buf = new ByteArrayOutputStream();
+          FileStream outStream = h.createOutput();
           outStream.setFormatJson(true);
-          outStream.setOutputStream(os);
-          outStream.setHeader(header);
-          outStream.sendFrame(frame);
+          outStream.setOutputStream(buf);
+          outStream.setHeader(h);
+          outStream.sendFrame(latest);
           outStream.close();
-          os.close();
+          json = buf.toByteArray();
+          jsonFrame = latest;
         }
+        t.sendResponseHeaders(200, json.length);
+        OutputStream os = t.getResponseBody();
+        os.write(json);
+        os.close();
       } catch (Exception e) {
         t.sendResponseHeaders(400, -1);
       }
@@ -96,15 +119,16 @@ public class WebViewStream implements FrameStream {
   }
 
   @Override
-  public synchronized void sendFrame(StreamFrame m) throws Exception {
+  public void sendFrame(StreamFrame m) throws Exception {
     if (m != null) {
-      frame = m;
+      frame = m;  // its header follows changes mid-stream, e.g. a device leaving the geometry
     }
   }
 
   @Override
   public StreamHeader getHeader() throws Exception {
-    return header;
+    StreamFrame latest = frame;
+    return latest == null ? header : latest.getHeader();
   }
 
   @Override
@@ -112,6 +136,11 @@ public class WebViewStream implements FrameStream {
     return frame;
   }
 
+  // the one it was opened on, or the one picked for port 0
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
   @Override
   public void close() {
     server.stop(0);
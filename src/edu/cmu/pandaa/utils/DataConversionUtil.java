@@ -1,6 +1,15 @@
 package edu.cmu.pandaa.utils;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 public class DataConversionUtil {
+  // little-endian views of byte arrays, for the bulk PCM conversions below
+  private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle FLOAT_LE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+
 	// ===========================
 	// CONVERT BYTES TO JAVA TYPES
 	// ===========================
@@ -32,41 +41,125 @@ public class DataConversionUtil {
     return byteArrayToShortArray(bArray, bArray.length);
   }
 
-	public static final short[] byteArrayToShortArray(byte[] bArray, int size) {
-		int numShorts = (int) Math.ceil(size) / 2;
-		int nextByteIndex = 0;
-		short[] shortArray = new short[numShorts];
-		byte[] dataBytes = new byte[2];
-		for (int i = 0; i < numShorts; i++) {
-			if (nextByteIndex >= bArray.length)
-				break;
-			else {
-				dataBytes[0] = bArray[nextByteIndex];
-				nextByteIndex++;
-			}
-			if (nextByteIndex >= bArray.length)
-				dataBytes[1] = 0;
-			else
-				dataBytes[1] = bArray[nextByteIndex];
-			nextByteIndex++;
-			shortArray[i] = byteArrayToShort(dataBytes);
-		}
+  public static final short[] byteArrayToShortArray(byte[] bArray, int size) {
+    short[] shortArray = new short[size / 2];
+    int whole = Math.min(shortArray.length, bArray.length / 2);
+    bytesToShorts(bArray, 0, shortArray, 0, whole);
+    if (whole < shortArray.length && bArray.length % 2 == 1) {
+      shortArray[whole] = (short) (bArray[bArray.length - 1] & 0xff);  // a trailing odd byte is the low half
+    }
+    return shortArray;
+  }
 
-		return shortArray;
-	}
-	
-	public static final byte[] shortArrayToByteArray(short[] sArray) {
-		byte[] byteArray = null;
-		int byteArrayIndex = 0;
-		if(sArray.length >0)
-			byteArray = new byte[sArray.length * 2];
-		for(int i=0;i<sArray.length;i++,byteArrayIndex+=2) {
-			byte[] audioByte = shortToByteArray(sArray[i]);
-			byteArray[byteArrayIndex] = audioByte[0];
-			byteArray[byteArrayIndex + 1] = audioByte[1];
-		}
-		return byteArray;
-	}
+  // little endian 16 bit samples into the caller's array, for readers that reuse their frame buffers
+  public static final void byteArrayToShortArray(byte[] bArray, int size, short[] out) {
+    bytesToShorts(bArray, 0, out, 0, Math.min(size / 2, out.length));
+  }
+
+  public static final byte[] shortArrayToByteArray(short[] sArray) {
+    if (sArray.length == 0) {
+      return null;
+    }
+    byte[] byteArray = new byte[sArray.length * 2];
+    shortsToBytes(sArray, 0, byteArray, 0, sArray.length);
+    return byteArray;
+  }
+
+  // ===========================
+  // BULK PCM CONVERSION
+  // ===========================
+  // count samples between little-endian PCM bytes and the caller's arrays, nothing allocated. Samples
+  // in other formats are scaled to and from the 16 bits the pipeline works in: 8 bit is unsigned,
+  // 24 and 32 bit keep their top 16 bits, and float is -1..1 (clipped on the way to 16 bits).
+
+  public static void bytesToShorts(byte[] src, int srcOff, short[] dst, int dstOff, int count) {
+    for (int i = 0; i < count; i++) {
+      dst[dstOff + i] = (short) SHORT_LE.get(src, srcOff + 2 * i);
+    }
+  }
+
+  public static void shortsToBytes(short[] src, int srcOff, byte[] dst, int dstOff, int count) {
+    for (int i = 0; i < count; i++) {
+      SHORT_LE.set(dst, dstOff + 2 * i, src[srcOff + i]);
+    }
+  }
+
+  // bitsPerSample 8, 16, 24 or 32 of integer PCM, or 32 with floating for IEEE float (WAV format 3)
+  public static void pcmToShorts(byte[] src, int srcOff, int bitsPerSample, boolean floating,
+                                 short[] dst, int dstOff, int count) {
+    checkFormat(bitsPerSample, floating);
+    if (floating) {
+      floatsToShorts(src, srcOff, dst, dstOff, count);
+    } else if (bitsPerSample == 8) {
+      for (int i = 0; i < count; i++) {
+        dst[dstOff + i] = (short) (((src[srcOff + i] & 0xff) - 128) << 8);
+      }
+    } else if (bitsPerSample == 16) {
+      bytesToShorts(src, srcOff, dst, dstOff, count);
+    } else if (bitsPerSample == 24) {
+      int24sToShorts(src, srcOff, dst, dstOff, count);
+    } else {
+      for (int i = 0; i < count; i++) {
+        dst[dstOff + i] = (short) ((int) INT_LE.get(src, srcOff + 4 * i) >> 16);
+      }
+    }
+  }
+
+  public static void shortsToPcm(short[] src, int srcOff, int bitsPerSample, boolean floating,
+                                 byte[] dst, int dstOff, int count) {
+    checkFormat(bitsPerSample, floating);
+    if (floating) {
+      for (int i = 0; i < count; i++) {
+        FLOAT_LE.set(dst, dstOff + 4 * i, src[srcOff + i] / 32768f);
+      }
+    } else if (bitsPerSample == 8) {
+      for (int i = 0; i < count; i++) {
+        dst[dstOff + i] = (byte) ((src[srcOff + i] >> 8) + 128);
+      }
+    } else if (bitsPerSample == 16) {
+      shortsToBytes(src, srcOff, dst, dstOff, count);
+    } else if (bitsPerSample == 24) {
+      for (int i = 0, b = dstOff; i < count; i++, b += 3) {
+        dst[b] = 0;
+        SHORT_LE.set(dst, b + 1, src[srcOff + i]);
+      }
+    } else {
+      for (int i = 0; i < count; i++) {
+        INT_LE.set(dst, dstOff + 4 * i, src[srcOff + i] << 16);
+      }
+    }
+  }
+
+  // the top two bytes of each 3 byte sample
+  private static void int24sToShorts(byte[] src, int srcOff, short[] dst, int dstOff, int count) {
+    for (int i = 0; i < count; i++) {
+      dst[dstOff + i] = (short) SHORT_LE.get(src, srcOff + 3 * i + 1);
+    }
+  }
+
+  private static void floatsToShorts(byte[] src, int srcOff, short[] dst, int dstOff, int count) {
+    for (int i = 0; i < count; i++) {
+      dst[dstOff + i] = floatToShort((float) FLOAT_LE.get(src, srcOff + 4 * i));
+    }
+  }
+
+  private static short floatToShort(float sample) {
+    float scaled = sample * 32768f;
+    if (scaled >= Short.MAX_VALUE) {
+      return Short.MAX_VALUE;
+    }
+    if (scaled <= Short.MIN_VALUE) {
+      return Short.MIN_VALUE;
+    }
+    return (short) scaled;
+  }
+
+  private static void checkFormat(int bitsPerSample, boolean floating) {
+    if (floating ? bitsPerSample != 32 : bitsPerSample % 8 != 0 || bitsPerSample < 8 || bitsPerSample > 32) {
+      throw new IllegalArgumentException("Unsupported PCM format: " + bitsPerSample + " bit" +
+              (floating ? " float" : ""));
+    }
+  }
 
 	// convert a short to a byte array
 	public static byte[] shortToByteArray(short data) {
@@ -0,0 +1,92 @@
+package edu.cmu.pandaa.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Creates the threads that drive blocking streams (pipe handlers, socket readers, source pumps).
+ * With setVirtual(true) these become virtual threads when the JVM has them (Java 21+), so a server
+ * can run thousands of pair pipelines with plain blocking recvFrame loops; on older JVMs it quietly
+ * falls back to ordinary platform threads.
+ */
+public class ThreadUtil {
+  private static Method ofVirtual, builderName, builderUnstarted;
+  private static volatile boolean virtual = false;
+
+  static {
+    try {
+      // go through the public Thread.Builder interface, the builder classes themselves aren't accessible
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      builderName = builder.getMethod("name", String.class);
+      builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+    } catch (Exception e) {
+      ofVirtual = null;  // pre-21 JVM
+    }
+  }
+
+  public static boolean isVirtualSupported() {
+    return ofVirtual != null;
+  }
+
+  // returns false if virtual threads were requested but this JVM doesn't have them
+  public static boolean setVirtual(boolean enable) {
+    virtual = enable && isVirtualSupported();
+    return virtual == enable;
+  }
+
+  public static boolean isVirtual() {
+    return virtual;
+  }
+
+  public static Thread newThread(Runnable r, String name) {
+    if (virtual) {
+      try {
+        // Thread.ofVirtual().name(name).unstarted(r)
+        Object builder = ofVirtual.invoke(null);
+        builder = builderName.invoke(builder, name);
+        return (Thread) builderUnstarted.invoke(builder, r);
+      } catch (Exception e) {
+        throw new IllegalStateException("Unable to create virtual thread " + name, e);
+      }
+    }
+    return new Thread(r, name);
+  }
+
+  // for executors; platform threads are marked daemon so a pool never keeps the JVM alive
+  public static ThreadFactory daemonFactory(final String prefix) {
+    return new ThreadFactory() {
+      final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread t = ThreadUtil.newThread(r, prefix + "-" + count.incrementAndGet());
+        if (!t.isDaemon()) {
+          t.setDaemon(true);
+        }
+        return t;
+      }
+    };
+  }
+
+  // platform threads at the given priority, for best-effort work like trace writers and dashboards;
+  // virtual threads ignore priorities, so these never are
+  public static ThreadFactory daemonFactory(final String prefix, final int priority) {
+    return new ThreadFactory() {
+      final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        t.setPriority(priority);
+        return t;
+      }
+    };
+  }
+
+  public static Thread start(Runnable r, String name) {
+    Thread t = newThread(r, name);
+    t.start();
+    return t;
+  }
+}